@@ -0,0 +1,50 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application of a received fleet diff to the local copy of the fleet.
+ * The diff covers a few ticks so it moves the fleet, changes some cr and toggles abilities,
+ * the location change is left out since it needs a running sector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApplyBenchmark {
+    @Param({"5", "15", "30"})
+    public int ships;
+
+    private CampaignFleetAPI remoteCopy;
+    private JSONObject diff;
+
+    @Setup
+    public void setup() throws JSONException {
+        SyncMetrics.setEnabled(false);
+        Random random = new Random(42);
+        CampaignFleetAPI fleet = FleetFixtures.fleet("remote", ships, random);
+        remoteCopy = FleetFixtures.fleet("remote", ships, new Random(42));
+        JSONObject before = FleetSerializer.serializeFleet(fleet);
+        for (int tick = 0; tick < 20; tick++) {
+            FleetFixtures.advance(fleet, random);
+        }
+        diff = JsonDiffUtility.getDifferences(before, FleetSerializer.serializeFleet(fleet));
+    }
+
+    @Benchmark
+    public CampaignFleetAPI applyFleetDiff() throws JSONException {
+        FleetSerializer.applyFleetDiff(remoteCopy, diff);
+        return remoteCopy;
+    }
+}
@@ -0,0 +1,122 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.state.FleetState;
+import matlabmaster.multiplayer.state.FleetStateDiffer;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diff between two consecutive ticks, for the player fleet (small map) and for the npc fleets of the sector (large map)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class OwnFleet {
+        JSONObject before;
+        JSONObject after;
+
+        @Setup
+        public void setup() throws JSONException {
+            SyncMetrics.setEnabled(false);
+            Random random = new Random(42);
+            CampaignFleetAPI fleet = FleetFixtures.fleet("player", 15, random);
+            before = FleetSerializer.serializeFleet(fleet);
+            FleetFixtures.advance(fleet, random);
+            after = FleetSerializer.serializeFleet(fleet);
+        }
+    }
+
+    /**
+     * A whole player fleet tick : the fleet moves, it is serialized and diffed against the previous tick
+     */
+    @State(Scope.Benchmark)
+    public static class OwnFleetTicks {
+        CampaignFleetAPI fleet;
+        Random random;
+        JSONObject last;
+        FleetState lastState;
+
+        @Setup
+        public void setup() throws JSONException {
+            SyncMetrics.setEnabled(false);
+            random = new Random(42);
+            fleet = FleetFixtures.fleet("player", 15, random);
+            last = FleetSerializer.serializeFleet(fleet);
+            lastState = FleetState.capture(fleet, null);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sector {
+        @Param({"100", "500"})
+        public int fleets;
+
+        JSONObject before;
+        JSONObject after;
+        Map<String, FleetState> beforeStates;
+        Map<String, FleetState> afterStates;
+
+        @Setup
+        public void setup() throws JSONException {
+            SyncMetrics.setEnabled(false);
+            Random random = new Random(42);
+            List<CampaignFleetAPI> sector = FleetFixtures.sector(fleets, random);
+            before = FleetFixtures.serializeAll(sector);
+            beforeStates = FleetFixtures.captureAll(sector, Collections.emptyMap());
+            for (CampaignFleetAPI fleet : sector) {
+                FleetFixtures.advance(fleet, random);
+            }
+            after = FleetFixtures.serializeAll(sector);
+            afterStates = FleetFixtures.captureAll(sector, beforeStates);
+        }
+    }
+
+    @Benchmark
+    public JSONObject ownFleet(OwnFleet state) {
+        return JsonDiffUtility.getDifferences(state.before, state.after);
+    }
+
+    @Benchmark
+    public JSONObject ownFleetTick(OwnFleetTicks state) throws JSONException {
+        FleetFixtures.advance(state.fleet, state.random);
+        JSONObject current = FleetSerializer.serializeFleet(state.fleet);
+        JSONObject diffs = JsonDiffUtility.getDifferences(state.last, current);
+        state.last = current;
+        return diffs;
+    }
+
+    @Benchmark
+    public JSONObject ownFleetTickTyped(OwnFleetTicks state) throws JSONException {
+        FleetFixtures.advance(state.fleet, state.random);
+        FleetState current = FleetState.capture(state.fleet, state.lastState);
+        JSONObject diffs = FleetStateDiffer.diffFleet(state.lastState, current);
+        state.lastState = current;
+        return diffs;
+    }
+
+    @Benchmark
+    public JSONObject sectorFleets(Sector state) {
+        return JsonDiffUtility.getDifferences(state.before, state.after);
+    }
+
+    @Benchmark
+    public JSONObject sectorFleetsTyped(Sector state) throws JSONException {
+        return FleetStateDiffer.diffFleets(state.beforeStates, state.afterStates);
+    }
+}
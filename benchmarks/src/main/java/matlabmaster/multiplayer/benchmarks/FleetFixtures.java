@@ -0,0 +1,230 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import com.fs.starfarer.api.campaign.*;
+import com.fs.starfarer.api.characters.*;
+import com.fs.starfarer.api.combat.ShipHullSpecAPI;
+import com.fs.starfarer.api.combat.ShipVariantAPI;
+import com.fs.starfarer.api.fleet.FleetMemberAPI;
+import com.fs.starfarer.api.fleet.RepairTrackerAPI;
+import com.fs.starfarer.api.loading.FighterWingSpecAPI;
+import com.fs.starfarer.api.loading.WeaponGroupSpec;
+import com.fs.starfarer.api.loading.WeaponGroupType;
+import com.fs.starfarer.api.loading.WeaponSpecAPI;
+import matlabmaster.multiplayer.state.FleetState;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.lwjgl.util.vector.Vector2f;
+
+import java.util.*;
+
+/**
+ * Synthetic fleets of realistic size built from {@link StandIn}s : ships with hull mods, s-mods, guns, wings,
+ * weapon groups and a captain, a cargo of commodities, weapons and fighter chips, and the usual abilities.
+ * Every fixture is seeded so two runs benchmark the same data.
+ */
+final class FleetFixtures {
+    private static final String[] HULLS = {"onslaught", "dominator", "eagle", "falcon", "hammerhead", "enforcer", "sunder", "wolf", "lasher", "condor", "atlas", "buffalo"};
+    private static final String[] HULL_MODS = {"heavyarmor", "hardenedshieldemitter", "fluxdistributor", "fluxcoil", "reinforcedhull", "augmentedengines", "autorepair", "targetingunit", "expanded_deck_crew", "converted_hangar"};
+    private static final String[] WEAPONS = {"heavymauler", "hveldriver", "gauss", "hephag", "harpoon", "sabot", "pdlaser", "tachyonlance", "heavyac", "lightmg"};
+    private static final String[] WINGS = {"broadsword_wing", "thunder_wing", "talon_wing", "xyphos_wing", "longbow_wing"};
+    private static final String[] COMMODITIES = {"supplies", "fuel", "crew", "marines", "heavy_machinery", "food", "metals", "rare_metals", "volatiles", "organics"};
+    private static final String[] ABILITIES = {"transponder", "go_dark", "sensor_burst", "emergency_burn", "sustained_burn", "interdiction_pulse", "scavenge", "distress_call"};
+    private static final String[] SKILLS = {"helmsmanship", "combat_endurance", "impact_mitigation", "damage_control", "field_modulation", "point_defense", "target_analysis", "ballistic_mastery"};
+
+    private FleetFixtures() {}
+
+    static CampaignFleetAPI fleet(String id, int shipCount, Random random) {
+        Vector2f location = new Vector2f(random.nextFloat() * 20000 - 10000, random.nextFloat() * 20000 - 10000);
+        Vector2f destination = new Vector2f(location.x + 500, location.y - 300);
+
+        List<FleetMemberAPI> members = new ArrayList<>();
+        for (int i = 0; i < shipCount; i++) {
+            members.add(member(id + "_ship_" + i, i == 0, random));
+        }
+        FleetDataAPI fleetData = StandIn.of(FleetDataAPI.class,
+                "getMembersListCopy", (StandIn.Call) args -> new ArrayList<>(members),
+                "getMembersListWithFightersCopy", (StandIn.Call) args -> new ArrayList<>(members),
+                "getNumMembers", (StandIn.Call) args -> members.size());
+
+        Map<String, AbilityPlugin> abilities = new LinkedHashMap<>();
+        for (String abilityId : ABILITIES) {
+            abilities.put(abilityId, ability(abilityId, random.nextInt(4) == 0));
+        }
+
+        return StandIn.of(CampaignFleetAPI.class,
+                "getId", id,
+                "getName", "Fleet " + id,
+                "getLocation", location,
+                "setLocation", (StandIn.Call) args -> {
+                    location.x = (Float) args[0];
+                    location.y = (Float) args[1];
+                    return null;
+                },
+                "getMoveDestination", destination,
+                "setMoveDestination", (StandIn.Call) args -> {
+                    destination.x = (Float) args[0];
+                    destination.y = (Float) args[1];
+                    return null;
+                },
+                "getContainingLocation", StandIn.of(LocationAPI.class, "getId", "corvus"),
+                "getFaction", StandIn.of(FactionAPI.class, "getId", "hegemony"),
+                "isTransponderOn", true,
+                "isAIMode", true,
+                "getAbilities", abilities,
+                "hasAbility", (StandIn.Call) args -> abilities.containsKey((String) args[0]),
+                "getAbility", (StandIn.Call) args -> abilities.get((String) args[0]),
+                "getCargo", cargo(random),
+                "getFleetData", fleetData);
+    }
+
+    private static FleetMemberAPI member(String id, boolean flagship, Random random) {
+        List<String> hullMods = pick(HULL_MODS, 3 + random.nextInt(4), random);
+        List<String> sMods = pick(HULL_MODS, random.nextInt(3), random);
+        List<String> wings = pick(WINGS, random.nextInt(3), random);
+
+        Map<String, String> guns = new LinkedHashMap<>();
+        int slots = 6 + random.nextInt(8);
+        for (int i = 0; i < slots; i++) {
+            guns.put(String.format("WS %03d", i + 1), WEAPONS[random.nextInt(WEAPONS.length)]);
+        }
+        List<WeaponGroupSpec> groups = new ArrayList<>();
+        List<String> slotIds = new ArrayList<>(guns.keySet());
+        for (int g = 0, start = 0; start < slotIds.size(); g++) {
+            WeaponGroupSpec group = new WeaponGroupSpec(g % 2 == 0 ? WeaponGroupType.LINKED : WeaponGroupType.ALTERNATING);
+            group.setAutofireOnByDefault(g > 0);
+            int end = Math.min(slotIds.size(), start + 2 + random.nextInt(3));
+            for (String slotId : slotIds.subList(start, end)) group.addSlot(slotId);
+            groups.add(group);
+            start = end;
+        }
+
+        ShipVariantAPI variant = StandIn.of(ShipVariantAPI.class,
+                "getHullMods", hullMods,
+                "getSMods", sMods,
+                "getFittedWings", wings,
+                "getFittedWeaponSlots", slotIds,
+                "getWeaponId", (StandIn.Call) args -> guns.get((String) args[0]),
+                "getWeaponGroups", groups,
+                "getNumFluxVents", 10 + random.nextInt(20),
+                "getNumFluxCapacitors", random.nextInt(20));
+
+        return StandIn.of(FleetMemberAPI.class,
+                "getId", id,
+                "getHullSpec", StandIn.of(ShipHullSpecAPI.class, "getHullId", HULLS[random.nextInt(HULLS.length)]),
+                "getRepairTracker", StandIn.of(RepairTrackerAPI.class, "getCR", 0.5f + random.nextFloat() * 0.2f),
+                "getShipName", "ISS " + id,
+                "isMothballed", false,
+                "isFlagship", flagship,
+                "getVariant", variant,
+                "getCaptain", captain(id + "_captain", random));
+    }
+
+    private static PersonAPI captain(String id, Random random) {
+        List<MutableCharacterStatsAPI.SkillLevelAPI> skills = new ArrayList<>();
+        for (String skillId : pick(SKILLS, 2 + random.nextInt(5), random)) {
+            SkillSpecAPI spec = StandIn.of(SkillSpecAPI.class, "getId", skillId);
+            skills.add(StandIn.of(MutableCharacterStatsAPI.SkillLevelAPI.class, "getSkill", spec, "getLevel", 1f + random.nextInt(2)));
+        }
+        MutableCharacterStatsAPI stats = StandIn.of(MutableCharacterStatsAPI.class,
+                "getLevel", 1 + random.nextInt(7),
+                "getSkillsCopy", skills);
+        return StandIn.of(PersonAPI.class,
+                "getId", id,
+                "getPersonalityAPI", StandIn.of(PersonalityAPI.class, "getId", "steady"),
+                "getName", new FullName("Ada", "Okoro", FullName.Gender.FEMALE),
+                "getRank", "spaceCommander",
+                "getPostId", "officer",
+                "getPortraitSprite", "graphics/portraits/portrait_hegemony01.png",
+                "getStats", stats);
+    }
+
+    private static CargoAPI cargo(Random random) {
+        List<CargoStackAPI> stacks = new ArrayList<>();
+        for (String commodity : COMMODITIES) {
+            stacks.add(StandIn.of(CargoStackAPI.class,
+                    "getType", CargoAPI.CargoItemType.RESOURCES,
+                    "isCommodityStack", true,
+                    "getCommodityId", commodity,
+                    "getSize", (float) random.nextInt(2000)));
+        }
+        for (String weapon : pick(WEAPONS, 4, random)) {
+            stacks.add(StandIn.of(CargoStackAPI.class,
+                    "getType", CargoAPI.CargoItemType.WEAPONS,
+                    "isWeaponStack", true,
+                    "getWeaponSpecIfWeapon", StandIn.of(WeaponSpecAPI.class, "getWeaponId", weapon),
+                    "getSize", (float) (1 + random.nextInt(6))));
+        }
+        for (String wing : pick(WINGS, 2, random)) {
+            stacks.add(StandIn.of(CargoStackAPI.class,
+                    "getType", CargoAPI.CargoItemType.FIGHTER_CHIP,
+                    "isFighterWingStack", true,
+                    "getFighterWingSpecIfWing", StandIn.of(FighterWingSpecAPI.class, "getId", wing),
+                    "getSize", (float) (1 + random.nextInt(3))));
+        }
+        return StandIn.of(CargoAPI.class, "getStacksCopy", (StandIn.Call) args -> new ArrayList<>(stacks));
+    }
+
+    private static AbilityPlugin ability(String id, boolean active) {
+        boolean[] state = {active};
+        return StandIn.of(AbilityPlugin.class,
+                "getId", id,
+                "isActive", (StandIn.Call) args -> state[0],
+                "isActiveOrInProgress", (StandIn.Call) args -> state[0],
+                "activate", (StandIn.Call) args -> state[0] = true,
+                "deactivate", (StandIn.Call) args -> state[0] = false);
+    }
+
+    private static List<String> pick(String[] from, int count, Random random) {
+        List<String> shuffled = new ArrayList<>(Arrays.asList(from));
+        Collections.shuffle(shuffled, random);
+        return new ArrayList<>(shuffled.subList(0, Math.min(count, shuffled.size())));
+    }
+
+    /**
+     * What usually changes between two 20 Hz ticks : the fleet moves, sometimes a ship's cr drifts
+     * or an ability toggles
+     */
+    static void advance(CampaignFleetAPI fleet, Random random) {
+        fleet.setLocation(fleet.getLocation().x + random.nextFloat() * 8 - 4, fleet.getLocation().y + random.nextFloat() * 8 - 4);
+        if (random.nextInt(4) == 0) {
+            List<FleetMemberAPI> members = fleet.getFleetData().getMembersListCopy();
+            RepairTrackerAPI repair = members.get(random.nextInt(members.size())).getRepairTracker();
+            repair.setCR(Math.min(1f, repair.getCR() + 0.01f));
+        }
+        if (random.nextInt(20) == 0) {
+            AbilityPlugin ability = fleet.getAbility(ABILITIES[random.nextInt(ABILITIES.length)]);
+            if (ability.isActive()) ability.deactivate(); else ability.activate();
+        }
+    }
+
+    /**
+     * Serialized npc fleets keyed by id, the map FleetSync.sendGlobalFleetsUpdate diffs every tick
+     */
+    static List<CampaignFleetAPI> sector(int fleetCount, Random random) {
+        List<CampaignFleetAPI> fleets = new ArrayList<>(fleetCount);
+        for (int i = 0; i < fleetCount; i++) {
+            fleets.add(fleet("npc_" + i, 3 + random.nextInt(13), random));
+        }
+        return fleets;
+    }
+
+    /**
+     * Typed states of the fleets keyed by id, captured against the previous ones like FleetSync does
+     */
+    static Map<String, FleetState> captureAll(List<CampaignFleetAPI> fleets, Map<String, FleetState> previous) {
+        Map<String, FleetState> states = new LinkedHashMap<>();
+        for (CampaignFleetAPI fleet : fleets) {
+            states.put(fleet.getId(), FleetState.capture(fleet, previous.get(fleet.getId())));
+        }
+        return states;
+    }
+
+    static JSONObject serializeAll(List<CampaignFleetAPI> fleets) throws JSONException {
+        JSONObject map = new JSONObject();
+        for (CampaignFleetAPI fleet : fleets) {
+            map.put(fleet.getId(), FleetSerializer.serializeFleet(fleet));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,301 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import matlabmaster.multiplayer.metrics.Histogram;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.server.Server;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.Quantization;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loopback load test of the {@link Server} : starts it in this jvm and connects N {@link SyntheticClient}s to it,
+ * each one sending its own fleet at the configured rate while one of them plays the authority for the npc fleets.
+ * Reports the server throughput, the end to end relay latency, the cpu used by the server threads and the heap,
+ * so two cores or relay modes can be compared on the same load.
+ * <pre>
+ * mvn -f benchmarks/pom.xml package exec:exec@load-test -Dload.args="--clients=16 --core=NIO --relay=TICK"
+ * </pre>
+ */
+public final class LoadTest {
+    static final class Config {
+        int clients = 8;
+        int npcFleets = 200;
+        int ships = 10;
+        int locations = 3;
+        /** playerFleetUpdate per second and per client */
+        double rate = 20;
+        /** globalFleetsUpdate per second of the authority */
+        double npcRate = 20;
+        /** share of the npc fleets that move every npc tick */
+        double npcMovingShare = 0.5;
+        double pauseEverySeconds = 20;
+        double snapshotEverySeconds = 5;
+        int durationSeconds = 60;
+        int warmupSeconds = 5;
+        int port = 20703;
+        Server.Mode core = Server.Mode.NIO;
+        Server.RelayMode relay = Server.RelayMode.IMMEDIATE;
+        String csv;
+    }
+
+    /** shared by every synthetic client */
+    static final class Stats {
+        final LongAdder sentMessages = new LongAdder();
+        final LongAdder sentBytes = new LongAdder();
+        final LongAdder receivedFrames = new LongAdder();
+        final LongAdder receivedBytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder authorityChanges = new LongAdder();
+        /** sentAt to reception, milliseconds */
+        final Histogram relayLatency = new Histogram(0.001);
+        /** request to response, milliseconds */
+        final Histogram snapshotLatency = new Histogram(0.001);
+
+        void recordRelay(double millis) {
+            relayLatency.record(Math.max(0, millis));
+        }
+
+        void recordSnapshot(double millis) {
+            snapshotLatency.record(Math.max(0, millis));
+        }
+
+        void reset() {
+            sentMessages.reset();
+            sentBytes.reset();
+            receivedFrames.reset();
+            receivedBytes.reset();
+            relayLatency.reset();
+            snapshotLatency.reset();
+        }
+    }
+
+    static final class NpcFleet {
+        final String id;
+        final String location;
+        final JSONObject state;
+        double x;
+        double y;
+
+        NpcFleet(String id, String location, JSONObject state) throws JSONException {
+            this.id = id;
+            this.location = location;
+            this.state = state;
+            this.x = Quantization.decodePosition((Number) state.get("locationX"));
+            this.y = Quantization.decodePosition((Number) state.get("locationY"));
+        }
+    }
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        Config config = parse(args);
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN); // the server logs every join and pause otherwise
+        SyncMetrics.setEnabled(false);
+
+        System.out.printf("Building %d npc fleets and %d player fleets of %d ships...%n", config.npcFleets, config.clients, config.ships);
+        List<NpcFleet> npcFleets = npcFleets(config);
+
+        Server server = new Server(config.port);
+        server.setMode(config.core);
+        server.setRelayMode(config.relay);
+        server.start();
+        Thread.sleep(500); // the accept loop binds asynchronously
+
+        Stats stats = new Stats();
+        List<SyntheticClient> clients = new ArrayList<>();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.max(2, Math.min(8, config.clients / 4)), r -> {
+            Thread thread = new Thread(r, "LoadTest-Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long playerPeriod = (long) (1_000_000 / config.rate);
+        long npcPeriod = (long) (1_000_000 / config.npcRate);
+        for (int i = 0; i < config.clients; i++) {
+            SyntheticClient client = new SyntheticClient(i, config, stats, npcFleets);
+            client.connect("127.0.0.1", config.port);
+            clients.add(client);
+            // spread the ticks of the clients over the period, real players aren't in phase
+            long offset = playerPeriod * i / config.clients;
+            scheduler.scheduleAtFixedRate(client::tick, offset, playerPeriod, TimeUnit.MICROSECONDS);
+            scheduler.scheduleAtFixedRate(client::npcTick, offset, npcPeriod, TimeUnit.MICROSECONDS);
+            Thread.sleep(20);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%d clients connected, %d s warmup...%n", config.clients, config.warmupSeconds);
+        Thread.sleep(config.warmupSeconds * 1000L);
+
+        stats.reset();
+        long gcCountStart = gcCount();
+        long gcTimeStart = gcTime();
+        Map<Long, Long> serverCpuStart = cpuByThread(threads, true);
+        Map<Long, Long> harnessCpuStart = cpuByThread(threads, false);
+        long start = System.nanoTime();
+        long heapPeak = 0;
+        double heapSum = 0;
+        int heapSamples = 0;
+        for (int s = 0; s < config.durationSeconds; s++) {
+            Thread.sleep(1000);
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            heapPeak = Math.max(heapPeak, heap);
+            heapSum += heap;
+            heapSamples++;
+            if ((s + 1) % 10 == 0) System.out.printf("  %d s, relay p99 %.2f ms%n", s + 1, stats.relayLatency.getPercentile(99));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double serverCpu = cpuDelta(serverCpuStart, cpuByThread(threads, true)) / 1e9;
+        double harnessCpu = cpuDelta(harnessCpuStart, cpuByThread(threads, false)) / 1e9;
+        long gcCount = gcCount() - gcCountStart;
+        long gcTime = gcTime() - gcTimeStart;
+
+        long dropped = 0;
+        long coalesced = 0;
+        int maxQueue = 0;
+        for (Server.ClientHandler handler : server.clients.values()) {
+            dropped += handler.getDroppedCount();
+            coalesced += handler.getCoalescedCount();
+            maxQueue = Math.max(maxQueue, handler.getQueueDepth());
+        }
+
+        scheduler.shutdownNow();
+        for (SyntheticClient client : clients) client.close();
+        server.stop();
+
+        report(config, stats, seconds, serverCpu, harnessCpu, heapPeak, heapSum / Math.max(1, heapSamples), gcCount, gcTime, dropped, coalesced, maxQueue);
+        System.exit(0);
+    }
+
+    private static List<NpcFleet> npcFleets(Config config) throws JSONException {
+        Random random = new Random(42);
+        List<NpcFleet> fleets = new ArrayList<>(config.npcFleets);
+        for (int i = 0; i < config.npcFleets; i++) {
+            CampaignFleetAPI fleet = FleetFixtures.fleet("npc_" + i, 3 + random.nextInt(Math.max(1, config.ships)), random);
+            String location = "loc_" + (i % config.locations);
+            JSONObject state = FleetSerializer.serializeFleet(fleet);
+            state.put("location", location);
+            fleets.add(new NpcFleet(fleet.getId(), location, state));
+        }
+        return fleets;
+    }
+
+    private static void report(Config config, Stats stats, double seconds, double serverCpu, double harnessCpu,
+                               long heapPeak, double heapAverage, long gcCount, long gcTime, long dropped, long coalesced, int maxQueue) throws IOException {
+        Histogram relay = stats.relayLatency;
+        Histogram snapshot = stats.snapshotLatency;
+        double sent = stats.sentMessages.sum() / seconds;
+        double received = stats.receivedFrames.sum() / seconds;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println();
+        System.out.printf("Server %s core, %s relay, %d clients, %d npc fleets, %d ships, %d locations, %.0f Hz, %.0f s%n",
+                config.core, config.relay, config.clients, config.npcFleets, config.ships, config.locations, config.rate, seconds);
+        System.out.printf("%-22s %10.0f msg/s  %10.1f KB/s%n", "to server", sent, stats.sentBytes.sum() / seconds / 1024);
+        System.out.printf("%-22s %10.0f msg/s  %10.1f KB/s%n", "from server", received, stats.receivedBytes.sum() / seconds / 1024);
+        System.out.printf("%-22s n=%-9d p50 %8.2f  p90 %8.2f  p99 %8.2f  max %8.2f ms%n", "relay latency",
+                relay.getCount(), relay.getPercentile(50), relay.getPercentile(90), relay.getPercentile(99), relay.getMax());
+        System.out.printf("%-22s n=%-9d p50 %8.2f  p90 %8.2f  p99 %8.2f  max %8.2f ms%n", "snapshot latency",
+                snapshot.getCount(), snapshot.getPercentile(50), snapshot.getPercentile(90), snapshot.getPercentile(99), snapshot.getMax());
+        System.out.printf("%-22s %10.1f %% of one core (%d cores), harness %.1f %%%n", "server cpu", serverCpu / seconds * 100, cores, harnessCpu / seconds * 100);
+        System.out.printf("%-22s avg %6.1f MB  peak %6.1f MB, %d gc (%d ms)%n", "heap (whole jvm)", heapAverage / 1048576, heapPeak / 1048576d, gcCount, gcTime);
+        System.out.printf("%-22s dropped %d  coalesced %d  max queue %d%n", "outbound queues", dropped, coalesced, maxQueue);
+        System.out.printf("%-22s %d errors, %d authority changes%n", "clients", stats.errors.sum(), stats.authorityChanges.sum());
+
+        if (config.csv == null) return;
+        boolean header = !new java.io.File(config.csv).exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(config.csv, true))) {
+            if (header) {
+                out.println("core,relay,clients,npcFleets,ships,rate,seconds,sentMsgPerSec,receivedMsgPerSec,receivedKBPerSec,"
+                        + "relayP50,relayP90,relayP99,relayMax,snapshotP99,serverCpuPercent,heapAvgMB,heapPeakMB,gcCount,gcMs,dropped,coalesced");
+            }
+            out.println(String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%.0f,%.0f,%.0f,%.0f,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f,%.1f,%d,%d,%d,%d",
+                    config.core, config.relay, config.clients, config.npcFleets, config.ships, config.rate, seconds, sent, received,
+                    stats.receivedBytes.sum() / seconds / 1024, relay.getPercentile(50), relay.getPercentile(90), relay.getPercentile(99),
+                    relay.getMax(), snapshot.getPercentile(99), serverCpu / seconds * 100, heapAverage / 1048576, heapPeak / 1048576d,
+                    gcCount, gcTime, dropped, coalesced));
+        }
+    }
+
+    /**
+     * Cpu time of the live threads, server side or harness side (the threads named LoadTest-* and main)
+     */
+    private static Map<Long, Long> cpuByThread(ThreadMXBean threads, boolean server) {
+        Map<Long, Long> times = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null) continue;
+            String name = info.getThreadName();
+            boolean harness = name.startsWith("LoadTest-") || name.equals("main");
+            if (harness == server) continue;
+            long time = threads.getThreadCpuTime(info.getThreadId());
+            if (time >= 0) times.put(info.getThreadId(), time);
+        }
+        return times;
+    }
+
+    /** threads started during the run count from 0 */
+    private static long cpuDelta(Map<Long, Long> before, Map<Long, Long> after) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+
+    private static Config parse(String[] args) {
+        Config config = new Config();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String key = equals < 0 ? arg : arg.substring(0, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+            switch (key) {
+                case "--clients": config.clients = Integer.parseInt(value); break;
+                case "--npcFleets": config.npcFleets = Integer.parseInt(value); break;
+                case "--ships": config.ships = Integer.parseInt(value); break;
+                case "--locations": config.locations = Math.max(1, Integer.parseInt(value)); break;
+                case "--rate": config.rate = Double.parseDouble(value); break;
+                case "--npcRate": config.npcRate = Double.parseDouble(value); break;
+                case "--npcMoving": config.npcMovingShare = Double.parseDouble(value); break;
+                case "--pauseEvery": config.pauseEverySeconds = Double.parseDouble(value); break;
+                case "--snapshotEvery": config.snapshotEverySeconds = Double.parseDouble(value); break;
+                case "--duration": config.durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": config.warmupSeconds = Integer.parseInt(value); break;
+                case "--port": config.port = Integer.parseInt(value); break;
+                case "--core": config.core = Server.Mode.valueOf(value.toUpperCase()); break;
+                case "--relay": config.relay = Server.RelayMode.valueOf(value.toUpperCase()); break;
+                case "--csv": config.csv = value; break;
+                default:
+                    System.err.println("Usage: LoadTest [--clients=8] [--npcFleets=200] [--ships=10] [--locations=3] [--rate=20] [--npcRate=20]"
+                            + " [--npcMoving=0.5] [--pauseEvery=20] [--snapshotEvery=5] [--duration=60] [--warmup=5] [--port=20703]"
+                            + " [--core=NIO|BLOCKING] [--relay=IMMEDIATE|TICK] [--csv=results.csv]");
+                    System.exit(1);
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,54 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.state.FleetState;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of one fleet, done every tick for the player fleet and for every npc fleet on the authority
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializeBenchmark {
+    @Param({"5", "15", "30"})
+    public int ships;
+
+    private CampaignFleetAPI fleet;
+    private FleetState previous;
+
+    @Setup
+    public void setup() {
+        SyncMetrics.setEnabled(false);
+        fleet = FleetFixtures.fleet("player", ships, new Random(42));
+        previous = FleetState.capture(fleet, null);
+    }
+
+    @Benchmark
+    public JSONObject serializeFleet() throws JSONException {
+        return FleetSerializer.serializeFleet(fleet);
+    }
+
+    /**
+     * Typed capture of an unchanged fleet, only the root fields and the fingerprints are read
+     */
+    @Benchmark
+    public FleetState captureFleet() {
+        return FleetState.capture(fleet, previous);
+    }
+
+    @Benchmark
+    public JSONObject serializeFleetShips() throws JSONException {
+        return FleetSerializer.serializeFleetShips(fleet.getFleetData());
+    }
+}
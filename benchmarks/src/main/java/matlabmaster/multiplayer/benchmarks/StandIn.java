@@ -0,0 +1,94 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * Lightweight stand-in for the Starsector API interfaces, backed by a map of method name to value.
+ * Getters return the stored value, setters with a single argument update the matching getter,
+ * a {@link Call} value runs on every invocation and anything else returns the default of its type.
+ * Good enough for the serializer and the apply path, which only read and write plain properties.
+ */
+final class StandIn implements InvocationHandler {
+    /** computed result of a method, receives the invocation arguments */
+    interface Call {
+        Object invoke(Object[] args);
+    }
+
+    private final Map<String, Object> values = new HashMap<>();
+
+    /**
+     * @param keyValues method name, value, method name, value...
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T of(Class<T> type, Object... keyValues) {
+        StandIn handler = new StandIn();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            handler.values.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return (T) Proxy.newProxyInstance(StandIn.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        int argCount = args == null ? 0 : args.length;
+        switch (name) {
+            case "equals":
+                return argCount == 1 && proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "StandIn" + values.getOrDefault("getId", "");
+        }
+
+        Object value = values.get(name);
+        if (value instanceof Call call) {
+            return adapt(call.invoke(args), method.getReturnType());
+        }
+        if (value != null || values.containsKey(name)) {
+            return adapt(value, method.getReturnType());
+        }
+        if (name.startsWith("set") && argCount == 1) {
+            String property = name.substring(3);
+            values.put("get" + property, args[0]);
+            values.put("is" + property, args[0]);
+            return null;
+        }
+        return defaultOf(method.getReturnType());
+    }
+
+    /**
+     * Lets the fixtures store any collection or number whatever the exact type the api declares
+     */
+    private static Object adapt(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) return value;
+        if (type.isPrimitive()) {
+            if (!(value instanceof Number number)) return value;
+            if (type == int.class) return number.intValue();
+            if (type == float.class) return number.floatValue();
+            if (type == long.class) return number.longValue();
+            if (type == double.class) return number.doubleValue();
+            return value;
+        }
+        if (value instanceof Collection<?> collection) {
+            if (type.isAssignableFrom(LinkedHashSet.class)) return new LinkedHashSet<>(collection);
+            if (type.isAssignableFrom(ArrayList.class)) return new ArrayList<>(collection);
+        }
+        return value;
+    }
+
+    private static Object defaultOf(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == float.class) return 0f;
+        return 0d;
+    }
+}
@@ -0,0 +1,315 @@
+package matlabmaster.multiplayer.benchmarks;
+
+import matlabmaster.multiplayer.net.Frame;
+import matlabmaster.multiplayer.net.RoutingHeader;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import matlabmaster.multiplayer.utils.Quantization;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One fake player of the {@link LoadTest}, speaks the same protocol as the mod client over loopback :
+ * hello, fleetSnapshot and requestAllFleetsSnapshot on join, then playerFleetUpdate at the configured rate,
+ * globalFleetsUpdate while it is the authority, snapshot requests and pause / unpause.
+ * Every update carries a sentAt field (nanoTime, the whole test runs in one jvm) so the receivers measure the relay latency.
+ * The authority also answers the requests the server relays to it, like the real ClientScripts.
+ */
+final class SyntheticClient {
+    private final LoadTest.Config config;
+    private final LoadTest.Stats stats;
+    private final List<LoadTest.NpcFleet> npcFleets;
+    private final Random random;
+    private final String location;
+
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+    String clientId;
+    private JSONObject fleet;
+    private volatile boolean running = false;
+    volatile boolean isAuthority = false;
+    private boolean sentNpcFleets = false;
+    private boolean paused = false;
+    private long nextPauseToggle;
+    private long nextSnapshotRequest;
+    private double x;
+    private double y;
+    /** pending snapshot requests, fleet id to request time */
+    private final Map<String, Long> pendingSnapshots = new ConcurrentHashMap<>();
+
+    SyntheticClient(int index, LoadTest.Config config, LoadTest.Stats stats, List<LoadTest.NpcFleet> npcFleets) {
+        this.config = config;
+        this.stats = stats;
+        this.npcFleets = npcFleets;
+        this.random = new Random(index);
+        this.location = "loc_" + (index % config.locations);
+    }
+
+    void connect(String host, int port) throws IOException, JSONException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 5000);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        clientId = "User-" + socket.getLocalPort();
+        running = true;
+
+        fleet = serializedFleet(clientId);
+        x = Quantization.decodePosition((Number) fleet.get("locationX"));
+        y = Quantization.decodePosition((Number) fleet.get("locationY"));
+        long now = System.nanoTime();
+        nextPauseToggle = now + jitter(config.pauseEverySeconds);
+        nextSnapshotRequest = now + jitter(config.snapshotEverySeconds);
+
+        Thread reader = new Thread(this::readLoop, "LoadTest-Reader-" + clientId);
+        reader.setDaemon(true);
+        reader.start();
+
+        JSONObject hello = new JSONObject();
+        hello.put("commandId", "hello");
+        send(hello);
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("commandId", "fleetSnapshot");
+        snapshot.put("fleet", fleet);
+        snapshot.put("location", location);
+        send(snapshot);
+        JSONObject request = new JSONObject();
+        request.put("commandId", "requestAllFleetsSnapshot");
+        request.put("from", clientId);
+        pendingSnapshots.put("*", System.nanoTime());
+        send(request);
+    }
+
+    private JSONObject serializedFleet(String fleetId) throws JSONException {
+        JSONObject serialized = FleetSerializer.serializeFleet(FleetFixtures.fleet(fleetId, config.ships, random));
+        serialized.put("location", location);
+        return serialized;
+    }
+
+    /** first occurrence spread over the period so the clients don't all act on the same tick */
+    private long jitter(double periodSeconds) {
+        if (periodSeconds <= 0) return Long.MAX_VALUE;
+        return (long) (random.nextDouble() * periodSeconds * 1e9);
+    }
+
+    /**
+     * One player tick, called by the harness scheduler at the configured rate
+     */
+    void tick() {
+        if (!running) return;
+        try {
+            long now = System.nanoTime();
+            if (now >= nextPauseToggle) {
+                paused = !paused;
+                JSONObject packet = new JSONObject();
+                packet.put("commandId", paused ? "paused" : "unpaused");
+                send(packet);
+                // stays paused a short while, like a player opening a dialog
+                nextPauseToggle = now + (long) ((paused ? Math.min(2, config.pauseEverySeconds / 2) : config.pauseEverySeconds) * 1e9);
+            }
+            if (paused) return;
+
+            x += random.nextDouble() * 20 - 10;
+            y += random.nextDouble() * 20 - 10;
+            JSONObject changes = new JSONObject();
+            changes.put("locationX", update(x));
+            changes.put("locationY", update(y));
+            if (random.nextInt(10) == 0) changes.put("ships", shipChange());
+            JSONObject packet = new JSONObject();
+            packet.put("commandId", "playerFleetUpdate");
+            packet.put("fleetId", clientId);
+            packet.put("from", clientId);
+            packet.put("location", location);
+            packet.put("changes", changes);
+            packet.put("sentAt", now);
+            send(packet);
+
+            if (now >= nextSnapshotRequest && !npcFleets.isEmpty()) {
+                nextSnapshotRequest = now + (long) (config.snapshotEverySeconds * 1e9);
+                String fleetId = npcFleets.get(random.nextInt(npcFleets.size())).id;
+                JSONObject request = new JSONObject();
+                request.put("commandId", "requestFleetSnapshot");
+                request.put("fleetId", fleetId);
+                pendingSnapshots.put(fleetId, now);
+                send(request);
+            }
+        } catch (Exception e) {
+            if (running) stats.errors.increment();
+        }
+    }
+
+    /**
+     * Npc fleets tick, only does something while this client is the authority
+     */
+    void npcTick() {
+        if (!running || !isAuthority || paused) return;
+        try {
+            long now = System.nanoTime();
+            if (!sentNpcFleets) {
+                // first update of a new authority, the fleets are added like a diff against nothing
+                JSONObject updates = new JSONObject();
+                for (LoadTest.NpcFleet npc : npcFleets) {
+                    updates.put(npc.id, JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, npc.state));
+                }
+                sendGlobalUpdate("", updates, now);
+                sentNpcFleets = true;
+                return;
+            }
+            Map<String, JSONObject> byLocation = new HashMap<>();
+            for (LoadTest.NpcFleet npc : npcFleets) {
+                if (random.nextDouble() >= config.npcMovingShare) continue;
+                npc.x += random.nextDouble() * 20 - 10;
+                npc.y += random.nextDouble() * 20 - 10;
+                JSONObject diff = new JSONObject();
+                diff.put("locationX", update(npc.x));
+                diff.put("locationY", update(npc.y));
+                byLocation.computeIfAbsent(npc.location, k -> new JSONObject()).put(npc.id, diff);
+            }
+            for (Map.Entry<String, JSONObject> entry : byLocation.entrySet()) {
+                sendGlobalUpdate(entry.getKey(), entry.getValue(), now);
+            }
+        } catch (Exception e) {
+            if (running) stats.errors.increment();
+        }
+    }
+
+    private void sendGlobalUpdate(String updateLocation, JSONObject updates, long now) throws JSONException, IOException {
+        JSONObject packet = new JSONObject();
+        packet.put("commandId", "globalFleetsUpdate");
+        packet.put("location", updateLocation);
+        packet.put("updates", updates);
+        packet.put("sentAt", now);
+        send(packet);
+    }
+
+    private static JSONArray update(double value) {
+        return JsonDiffUtility.createInstruction(JsonDiffUtility.SET, Quantization.position(value));
+    }
+
+    private JSONObject shipChange() throws JSONException {
+        JSONObject ships = fleet.getJSONObject("ships");
+        String shipId = (String) ships.keys().next();
+        JSONObject ship = new JSONObject();
+        ship.put("combatReadiness", JsonDiffUtility.createInstruction(JsonDiffUtility.SET, Quantization.cr(random.nextDouble())));
+        JSONObject changes = new JSONObject();
+        changes.put(shipId, ship);
+        return changes;
+    }
+
+    private void send(JSONObject packet) throws IOException {
+        String body = packet.toString();
+        write(RoutingHeader.encode(packet.optString("commandId"), packet.optString("to"), packet.optString("from"), packet.optString("location"), body));
+        stats.sentMessages.increment();
+        stats.sentBytes.add(body.length());
+    }
+
+    private void write(Frame frame) throws IOException {
+        synchronized (out) {
+            frame.writeTo(out);
+        }
+    }
+
+    private void readLoop() {
+        try {
+            Frame frame;
+            while (running && (frame = Frame.readFrom(in)) != null) {
+                stats.receivedFrames.increment();
+                stats.receivedBytes.add(frame.payload.length + Frame.HEADER_SIZE);
+                byte type = frame.baseType();
+                if (type == Frame.TYPE_PING) {
+                    write(frame.pong());
+                } else if (type == Frame.TYPE_JSON || type == Frame.TYPE_ROUTED) {
+                    onMessage(frame.text());
+                }
+            }
+        } catch (IOException e) {
+            if (running) stats.errors.increment();
+        } catch (Exception e) {
+            stats.errors.increment();
+        }
+    }
+
+    private void onMessage(String text) throws JSONException, IOException {
+        // relayed updates : only the sentAt fields matter, a worldUpdate holds several of them
+        long now = System.nanoTime();
+        int found = 0;
+        for (int i = text.indexOf("\"sentAt\":"); i >= 0; i = text.indexOf("\"sentAt\":", i + 9)) {
+            int start = i + 9;
+            int end = start;
+            while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '-')) end++;
+            stats.recordRelay((now - Long.parseLong(text.substring(start, end))) / 1_000_000d);
+            found++;
+        }
+        if (found > 0) return;
+
+        JSONObject message = new JSONObject(text);
+        JSONObject packet;
+        switch (message.optString("commandId")) {
+            case "youAreAuthority":
+                sentNpcFleets = false;
+                isAuthority = true;
+                stats.authorityChanges.increment();
+                break;
+            case "youAreNoLongerAuthority":
+                isAuthority = false;
+                break;
+            case "handleAllFleetsSnapshot":
+                recordSnapshot("*");
+                break;
+            case "handleFleetSnapshotRequest":
+                recordSnapshot(message.getJSONObject("fleet").optString("id"));
+                break;
+            case "requestAllFleetsSnapshot":
+                packet = new JSONObject();
+                packet.put("commandId", "handleAllFleetsSnapshot");
+                packet.put("to", message.getString("from"));
+                JSONArray fleets = new JSONArray();
+                for (LoadTest.NpcFleet npc : npcFleets) fleets.put(npc.state);
+                packet.put("fleets", fleets);
+                send(packet);
+                break;
+            case "requestFleetSnapshot":
+                packet = new JSONObject();
+                packet.put("commandId", "handleFleetSnapshotRequest");
+                packet.put("to", message.getString("from"));
+                packet.put("fleet", stateOf(message.getString("fleetId")));
+                send(packet);
+                break;
+            case "requestPlayerFleetSnapshot":
+                packet = new JSONObject();
+                packet.put("commandId", "handleFleetSnapshotRequest");
+                packet.put("to", message.getString("from"));
+                packet.put("fleet", fleet);
+                send(packet);
+                break;
+        }
+    }
+
+    private JSONObject stateOf(String fleetId) {
+        for (LoadTest.NpcFleet npc : npcFleets) {
+            if (npc.id.equals(fleetId)) return npc.state;
+        }
+        return fleet;
+    }
+
+    private void recordSnapshot(String key) {
+        Long requestedAt = pendingSnapshots.remove(key);
+        if (requestedAt != null) stats.recordSnapshot((System.nanoTime() - requestedAt) / 1_000_000d);
+    }
+
+    void close() {
+        running = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -6,8 +6,10 @@ import matlabmaster.multiplayer.client.Client;
 import matlabmaster.multiplayer.client.ClientScripts;
 import matlabmaster.multiplayer.listeners.MultiplayerWatchdog;
 import matlabmaster.multiplayer.server.Server;
-import matlabmaster.multiplayer.server.ServerScripts;
 import matlabmaster.multiplayer.ui.UI;
+import matlabmaster.multiplayer.utils.EntityIndex;
+import matlabmaster.multiplayer.utils.Quantization;
+import matlabmaster.multiplayer.utils.SettingsHelper;
 
 import java.util.Objects;
 
@@ -19,11 +21,13 @@ public class MultiplayerModPlugin extends BaseModPlugin {
     private static Client clientInstance;
     private static UI uiInstance;
     private static ClientScripts clientScriptsInstance;
-    private static ServerScripts serverScriptsInstance;
 
     @Override
     public void onApplicationLoad() throws Exception {
         super.onApplicationLoad();
+        // resolution announced by our server, a server we join announces its own
+        Quantization.setHostResolution((int) SettingsHelper.getFloat(Quantization.POSITION_STEPS_SETTING, Quantization.DEFAULT_POSITION_STEPS),
+                (int) SettingsHelper.getFloat(Quantization.CR_STEPS_SETTING, Quantization.DEFAULT_CR_STEPS));
         // Unique instantiation of client / server
         if (serverInstance == null) {
             serverInstance = new Server(20603);
@@ -44,16 +48,12 @@ public class MultiplayerModPlugin extends BaseModPlugin {
     @Override
     public void onGameLoad(boolean newGame) {
         super.onGameLoad(newGame);
+        EntityIndex.clear();
 
         if (clientScriptsInstance == null) { //ensure only one client script exist at any time
             clientScriptsInstance = new ClientScripts(clientInstance);
         }
         Global.getSector().addTransientScript(clientScriptsInstance);
-
-        if (serverScriptsInstance == null) {
-            serverScriptsInstance = new ServerScripts(serverInstance);
-        }
-        Global.getSector().addTransientScript(serverScriptsInstance);
         MultiplayerLog.log().info("registered scripts");
     }
 
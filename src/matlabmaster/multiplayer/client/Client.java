@@ -4,23 +4,46 @@ import com.fs.starfarer.api.Global;
 import com.fs.starfarer.api.campaign.CampaignClockAPI;
 import matlabmaster.multiplayer.MultiplayerLog;
 import matlabmaster.multiplayer.UserError;
+import matlabmaster.multiplayer.metrics.RttStats;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.net.Frame;
+import matlabmaster.multiplayer.net.RoutingHeader;
+import matlabmaster.multiplayer.net.WireCompression;
 import matlabmaster.multiplayer.updates.WorldSync;
 import matlabmaster.multiplayer.utils.FleetHelper;
 import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.Quantization;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Client {
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private DataOutputStream out;
+    private DataInputStream in;
     private volatile boolean isConnected = false;
+    /** enabled once the server acknowledged our hello with the same compression algorithm */
+    private volatile boolean compressionEnabled = false;
+    /** set once helloAck arrived, nothing quantized (fleets, positions) is sent before, see {@link Quantization} */
+    private volatile boolean joined = false;
+    private PositionChannel positionChannel;
+    /** frames waiting for the write thread, the game thread never blocks on the socket */
+    private final LinkedBlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+    /** "bytesOut." metric names per commandId, built once */
+    private static final ConcurrentHashMap<String, String> bytesOutNames = new ConcurrentHashMap<>();
+    private Thread writeThread;
+    /** interval between two pings to the server */
+    private static final long PING_INTERVAL_MS = 1000;
+    /** round trip to the server, measured by our pings, replaced on every connection */
+    private volatile RttStats rtt = new RttStats();
     private final CopyOnWriteArrayList<ClientListener> listeners = new CopyOnWriteArrayList<>();
     private boolean savedIdleWhileWindowNotVisible = true;
     private float savedCampaignSpeedupMult = 2f;
@@ -30,10 +53,27 @@ public class Client {
     public String clientId;
     public Long multiplayerTimestamp;
     public CampaignClockAPI multiplayerClock;
+    /** tick of the last worldUpdate received, -1 when the server relays the updates immediately */
+    public long worldTick = -1;
 
     public interface ClientListener {
         void onDisconnected();
-        void onMessageReceived(String msg);
+        /**
+         * @param frameBytes size of the frame as it came over the wire, header included and still compressed
+         */
+        void onMessageReceived(String msg, int frameBytes);
+    }
+
+    /** frame queued for the write thread, with the counter its size on the wire goes to */
+    private static final class Outgoing {
+        final Frame frame;
+        /** null for the frames that aren't counted (pongs, raw json) */
+        final String metric;
+
+        Outgoing(Frame frame, String metric) {
+            this.frame = frame;
+            this.metric = metric;
+        }
     }
 
     public void addListener(ClientListener listener) {
@@ -46,13 +86,20 @@ public class Client {
         }
         socket = new Socket();
         socket.connect(new InetSocketAddress(ip, port), 5000);
+        socket.setTcpNoDelay(true);
 
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
         Global.getSector().getPlayerFleet().setId("User-" + socket.getLocalPort());
         isConnected = true;
+        compressionEnabled = false;
+        joined = false;
         clientId = "User-" + socket.getLocalPort();
+        positionChannel = new PositionChannel(clientId);
+        rtt = new RttStats();
+        outbox.clear();
+        startWriteThread();
 
         // Apply multiplayer-only settings (reverted on disconnect)
         savedIdleWhileWindowNotVisible = Global.getSettings().getBoolean("idleWhileWindowNotVisible");
@@ -62,6 +109,70 @@ public class Client {
 
         // SUCCESS MESSAGE
         MultiplayerLog.log().info("CONNECTED SUCCESSFULLY TO SERVER " + ip + ":" + port);
+        try {
+            //announce what we can read, the server answers with helloAck
+            JSONObject hello = new JSONObject();
+            hello.put("commandId","hello");
+            hello.put("compression", WireCompression.ALGORITHM);
+            hello.put("udp", true);
+            send(hello);
+        }catch (Exception e){
+            MultiplayerLog.log().error("Failed to send hello", e);
+        }
+        if(isSelfHosted){
+            //is self-hosted also since it's the first client it will be the authority
+            multiplayerTimestamp = Global.getSector().getClock().getTimestamp();
+        }
+        //the fleets are sent once helloAck told us the resolution they are quantized with, see onHelloAck
+        new Thread(() -> {
+            try {
+                Frame frame;
+                while (isConnected && (frame = Frame.readFrom(in)) != null) {
+                    if (frame.baseType() == Frame.TYPE_PING) {
+                        write(frame.pong(), null);
+                        continue;
+                    }
+                    if (frame.baseType() == Frame.TYPE_PONG) {
+                        rtt.record((System.nanoTime() - frame.timestamp()) / 1_000_000d);
+                        continue;
+                    }
+                    if (frame.baseType() == Frame.TYPE_POSITIONS) {
+                        // positions the server couldn't send us over udp
+                        positionChannel.receive(frame.payload, 0, frame.payload.length);
+                        continue;
+                    }
+                    if (frame.baseType() != Frame.TYPE_JSON && frame.baseType() != Frame.TYPE_ROUTED) {
+                        MultiplayerLog.log().warn("Unknown frame type " + frame.type + ", skipped " + frame.payload.length + " bytes");
+                        continue;
+                    }
+                    String line = frame.text();
+                    int frameBytes = Frame.HEADER_SIZE + frame.payload.length;
+                    // Notify ALL listeners
+                    for (ClientListener listener : listeners) {
+                        try {
+                            listener.onMessageReceived(line, frameBytes);
+                        } catch (Exception e) {
+                            MultiplayerLog.log().error("Exception in listener.onMessageReceived(): " + e.getMessage(), e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // server probably cut out
+            } finally {
+                // Crucial : inform ui in case of error
+                handleDisconnect();
+            }
+        }, "Client-Read-Thread").start();
+    }
+
+    /**
+     * Second half of the join, helloAck gave us the server's resolution (applied by the caller) so our fleet
+     * snapshot and the following updates are quantized like the server expects.
+     * Executed in the main game thread
+     */
+    public void onHelloAck() {
+        if (joined) return;
+        joined = true;
         if(!isSelfHosted){
             try {
                 //send our fleet to the server so that it knows about it
@@ -69,7 +180,8 @@ public class Client {
                 MultiplayerLog.log().info("SENDING PLAYER FLEET TO SERVER");
                 packet.put("commandId","fleetSnapshot");
                 packet.put("fleet",FleetSerializer.serializeFleet(Global.getSector().getPlayerFleet()));
-                send(packet.toString());
+                packet.put("location",Global.getSector().getPlayerFleet().getContainingLocation().getId());
+                send(packet);
 
                 //prepare for all fleet syncing
                 MultiplayerLog.log().info("DESTROYING EXISTING FLEETS");
@@ -79,7 +191,7 @@ public class Client {
                 MultiplayerLog.log().info("REQUESTING FLEETS SNAPSHOT");
                 packet = new JSONObject();
                 packet.put("commandId","requestAllFleetsSnapshot");
-                send(packet.toString());
+                send(packet);
 
                 //ask for current location orbits
                 //todo update for all locations maybe if rly useful?
@@ -90,45 +202,107 @@ public class Client {
                 MultiplayerLog.log().error("Handshake failed", e);
                 disconnect();
             }
-        }else{
-            //is self-hosted also since it's the first client it will be the authority
-            multiplayerTimestamp = Global.getSector().getClock().getTimestamp();
         }
-        new Thread(() -> {
+    }
+
+    public void send(String message){
+        write(Frame.json(message), null);
+    }
+
+    /**
+     * Sends the packet with a routing header built from its commandId / to / from / location fields,
+     * the server relays it without parsing the json
+     */
+    public void send(JSONObject packet){
+        String commandId = packet.optString("commandId");
+        Frame frame = RoutingHeader.encode(commandId, packet.optString("to"), packet.optString("from"), packet.optString("location"), packet.toString());
+        write(frame, bytesOutNames.computeIfAbsent(commandId, id -> "bytesOut." + id));
+    }
+
+    /**
+     * @param metric counter of the frame's size on the wire, null to leave it out of the metrics
+     */
+    private void write(Frame frame, String metric){
+        if (isConnected) outbox.add(new Outgoing(frame, metric));
+    }
+
+    /**
+     * Writes the queued frames, compressing them here keeps the deflate cost off the game thread.
+     * Only flushes once the queue is empty so a burst of updates goes out in as few packets as possible.
+     * Also pings the server every {@link #PING_INTERVAL_MS}
+     */
+    private void startWriteThread() {
+        writeThread = new Thread(() -> {
             try {
-                String line;
-                while (isConnected && (line = in.readLine()) != null) {
-                    // Notify ALL listeners
-                    for (ClientListener listener : listeners) {
-                        try {
-                            listener.onMessageReceived(line);
-                        } catch (Exception e) {
-                            MultiplayerLog.log().error("Exception in listener.onMessageReceived(): " + e.getMessage(), e);
-                        }
+                long nextPing = System.currentTimeMillis() + PING_INTERVAL_MS;
+                while (isConnected) {
+                    Outgoing outgoing = outbox.poll(Math.max(1, nextPing - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    long now = System.currentTimeMillis();
+                    if (now >= nextPing) {
+                        nextPing = now + PING_INTERVAL_MS;
+                        writeFrame(Frame.ping(System.nanoTime()), outgoing == null);
                     }
+                    if (outgoing == null) continue;
+                    Frame frame = outgoing.frame;
+                    if (compressionEnabled) frame = frame.compressed();
+                    int written = writeFrame(frame, outbox.isEmpty());
+                    if (outgoing.metric != null) SyncMetrics.count(outgoing.metric, written);
                 }
+            } catch (InterruptedException e) {
+                // disconnected
             } catch (IOException e) {
-                // server probably cut out
-            } finally {
-                // Crucial : inform ui in case of error
-                handleDisconnect();
+                MultiplayerLog.log().error("Failed to send message: " + e.getMessage());
+                // the read thread notices the closed socket and handles the disconnection
+                try { socket.close(); } catch (IOException ignored) {}
             }
-        }, "Client-Read-Thread").start();
+        }, "Client-Write-Thread");
+        writeThread.setDaemon(true);
+        writeThread.start();
     }
 
-    public void send(String message){
-        out.println(message);
+    /**
+     * @return bytes written, header included
+     */
+    private int writeFrame(Frame frame, boolean flush) throws IOException {
+        ByteBuffer encoded = frame.encode();
+        out.write(encoded.array(), 0, encoded.limit());
+        if (flush) out.flush();
+        return encoded.limit();
+    }
+
+    /**
+     * @return frames not written to the server yet, grows when the link can't keep up
+     */
+    public int getQueueDepth() {
+        return outbox.size();
+    }
+
+    /**
+     * @return the smoothed round trip to the server in milliseconds, -1 until the first pong
+     */
+    public float getRttMillis() {
+        return (float) rtt.getSmoothed();
+    }
+
+    public RttStats getRttStats() {
+        return rtt;
     }
 
     private void handleDisconnect() {
         if (isConnected) {
             isSelfHosted = false;
             isConnected = false;
+            joined = false;
+            Quantization.reset();
             multiplayerTimestamp = null;
             multiplayerClock = null;
+            worldTick = -1;
             Global.getSettings().setBoolean("idleWhileWindowNotVisible", savedIdleWhileWindowNotVisible);
             Global.getSettings().setFloat("campaignSpeedupMult", savedCampaignSpeedupMult);
             MultiplayerLog.log().info("DISCONNECTED FROM SERVER.");
+            if (positionChannel != null) positionChannel.close();
+            outbox.clear();
+            if (writeThread != null) writeThread.interrupt();
             try { if (socket != null) socket.close(); } catch (IOException e) {MultiplayerLog.log().error("Unknown IO exception" + Arrays.toString(e.getStackTrace()));}
 
             // Notify ALL listeners
@@ -147,4 +321,25 @@ public class Client {
     }
 
     public boolean isConnected() { return isConnected; }
+
+    public boolean isJoined() { return joined; }
+
+    public PositionChannel getPositionChannel() {
+        return positionChannel;
+    }
+
+    /**
+     * Called when helloAck advertised the udp port of the server
+     */
+    public void openPositionChannel(int udpPort) {
+        positionChannel.open(socket.getInetAddress(), udpPort);
+    }
+
+    /**
+     * Called when the server acknowledged our hello
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+        MultiplayerLog.log().info("Compression " + (enabled ? "enabled (" + WireCompression.ALGORITHM + ")" : "disabled"));
+    }
 }
\ No newline at end of file
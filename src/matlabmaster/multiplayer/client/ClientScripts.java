@@ -3,48 +3,65 @@ package matlabmaster.multiplayer.client;
 import com.fs.starfarer.api.EveryFrameScript;
 import com.fs.starfarer.api.Global;
 import com.fs.starfarer.api.campaign.CampaignClockAPI;
-import com.fs.starfarer.api.campaign.CampaignFleetAPI;
-import com.fs.starfarer.api.campaign.LocationAPI;
 import com.fs.starfarer.campaign.Faction;
 import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.MultiplayerModPlugin;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.net.WireCompression;
 import matlabmaster.multiplayer.updates.FleetSync;
+import matlabmaster.multiplayer.ui.UI;
 import matlabmaster.multiplayer.updates.WorldSync;
+import matlabmaster.multiplayer.utils.EntityIndex;
 import matlabmaster.multiplayer.utils.FleetHelper;
 import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
 import matlabmaster.multiplayer.utils.PauseUtility;
+import matlabmaster.multiplayer.utils.Quantization;
+import matlabmaster.multiplayer.utils.SettingsHelper;
 import matlabmaster.multiplayer.utils.WorldSerializer;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class ClientScripts implements EveryFrameScript {
     private final Client client;
-    private float timer = 0f;
+    private final SendRateController ownFleetRate = new SendRateController();
+    private final SendRateController globalFleetsRate = new SendRateController();
     private final FleetSync fleetSync = new FleetSync();
     private final WorldSync worldSync = new WorldSync();
+    private final SnapshotApplier snapshotApplier = new SnapshotApplier();
 
     // Message waitlist coming from client thread
     private static final ConcurrentLinkedQueue<JSONObject> messageQueue = new ConcurrentLinkedQueue<>();
+    /** "bytesIn." metric names per commandId, built once */
+    private static final ConcurrentHashMap<String, String> bytesInNames = new ConcurrentHashMap<>();
 
     public ClientScripts(Client client) {
         this.client = client;
+        SyncMetrics.setEnabled(SettingsHelper.getBoolean("multiplayer_syncMetrics", true));
 
         // Attaching listener to fill the queue
         this.client.addListener(new Client.ClientListener() {  // CHANGED FROM setListener TO addListener
             @Override
             public void onDisconnected() {
                 messageQueue.clear();
+                snapshotApplier.clear();
+                ownFleetRate.reset();
+                globalFleetsRate.reset();
                 MultiplayerLog.log().info("CLEARING MESSAGE QUEUE.");
             }
 
             @Override
-            public void onMessageReceived(String msg) {
+            public void onMessageReceived(String msg, int frameBytes) {
                 try {
                     // Transform msg to JSON and add it to the queue
-                    messageQueue.add(new JSONObject(msg));
+                    JSONObject json = new JSONObject(msg);
+                    SyncMetrics.count(bytesInNames.computeIfAbsent(json.optString("commandId"), id -> "bytesIn." + id), frameBytes);
+                    messageQueue.add(json);
                 } catch (Exception e) {
                     MultiplayerLog.log().error("JSON FORMAT ERROR: " + e.getMessage());
                 }
@@ -70,23 +87,29 @@ public class ClientScripts implements EveryFrameScript {
 
         //handle the game pausing , disable classic in game pause
         //if the game is in a dialog inform the server
-        PauseUtility.clientPauseUtility(client,fleetSync);
+        //nothing quantized is sent before helloAck gave us the server's resolution
+        if (client.isJoined()) PauseUtility.clientPauseUtility(client,fleetSync);
         // --- 1. process received message every frame ---
         // they are processed every frame to limit lag
+        SyncMetrics.sample("messageQueue", messageQueue.size());
+        SyncMetrics.sample("outboundQueue", client.getQueueDepth());
         while (!messageQueue.isEmpty()) {
             JSONObject json = messageQueue.poll();
             if (json != null) {
                 processMessage(json);
             }
         }
+        fleetSync.applyRemotePositions(client.getPositionChannel(), snapshotApplier);
+        // spawn the join snapshot a few fleets per frame
+        snapshotApplier.advance();
 
-        // --- 2. send updates (TICKS 20 TPS) ---
-        timer += amount;
-        float INTERVAL = 0.05f;
-        if (timer >= INTERVAL) {
-            timer -= INTERVAL;
-            executeTick();
+        // --- 2. send updates, the rate adapts to the link and to how fast things change (see SendRateController) ---
+        boolean sendOwnFleet = ownFleetRate.advance(amount);
+        boolean sendGlobalFleets = client.isAuthority && globalFleetsRate.advance(amount);
+        if (client.isJoined() && (sendOwnFleet || sendGlobalFleets)) {
+            executeTick(sendOwnFleet, sendGlobalFleets);
         }
+        SyncMetrics.logIfDue();
     }
 
     /**
@@ -97,11 +120,15 @@ public class ClientScripts implements EveryFrameScript {
         try {
             if (!message.has("commandId")) return;
             String commandId = message.getString("commandId");
+            long start = SyncMetrics.start();
             JSONObject packet;
             switch (commandId) {
                 case "playerFleetUpdate":
-                    if(Global.getSector().getEntityById(message.getString("fleetId")) instanceof CampaignFleetAPI){
+                    if(EntityIndex.getFleet(message.getString("fleetId")) != null){
                         fleetSync.handleRemoteFleetUpdate(message);
+                    }else if(snapshotApplier.isPending(message.getString("fleetId"))){
+                        //not spawned yet, keep its snapshot up to date
+                        snapshotApplier.update(message.getString("fleetId"), message.getJSONObject("changes"));
                     }else{
                         //only run if not paused because if the client is pause it will continuously ask for snapshots
                         //and then try to spawn all of them when unpausing resulting in 1000 fleet spawning
@@ -112,20 +139,13 @@ public class ClientScripts implements EveryFrameScript {
                             packet.put("commandId","requestPlayerFleetSnapshot");
                             packet.put("to",message.getString("from"));
                             packet.put("from",client.clientId);
-                            client.send(packet.toString());
+                            client.send(packet);
                         }
                     }
                     break;
                 case "handleAllFleetsSnapshot":
-                    int i;
-                    for(i = 0; i < message.getJSONArray("fleets").length() ; i ++){
-                        JSONObject unserializedFleet = (JSONObject) message.getJSONArray("fleets").get(i);
-                        if(Global.getSector().getEntityById(unserializedFleet.getString("id")) instanceof CampaignFleetAPI){
-                            ((CampaignFleetAPI) Global.getSector().getEntityById(unserializedFleet.getString("id"))).despawn();
-                        }
-                        FleetSerializer.unSerializeFleet(unserializedFleet,Global.getFactory().createEmptyFleet(Faction.NO_FACTION, true));
-                    }
-                    MultiplayerLog.log().info("added " + i + " fleets");
+                    //spawned over the next frames, see SnapshotApplier
+                    snapshotApplier.start(message.getJSONArray("fleets"));
                     break;
                 case "fleetSnapshot":
                     FleetSerializer.unSerializeFleet(message.getJSONObject("fleet"),Global.getFactory().createEmptyFleet(Faction.NO_FACTION,true));
@@ -143,13 +163,21 @@ public class ClientScripts implements EveryFrameScript {
                     Iterator<?> keys = updates.keys();
                     while (keys.hasNext()){
                         String fleetId = (String) keys.next();
-                        JSONObject updateWrapper = new JSONObject();
-                        updateWrapper.put("fleetId", fleetId);
-                        updateWrapper.put("changes", updates.getJSONObject(fleetId));
+                        Object update = updates.get(fleetId);
 
                         //same as PLayerFleetUpdate but with a list of fleets to update
-                        if (Global.getSector().getEntityById(fleetId) instanceof CampaignFleetAPI) {
-                            fleetSync.handleRemoteFleetUpdate(updateWrapper);
+                        if (EntityIndex.getFleet(fleetId) != null) {
+                            if (!JsonDiffUtility.isInstruction(update)) {
+                                JSONObject updateWrapper = new JSONObject();
+                                updateWrapper.put("fleetId", fleetId);
+                                updateWrapper.put("changes", update);
+                                fleetSync.handleRemoteFleetUpdate(updateWrapper);
+                            } else if (JsonDiffUtility.REMOVE.equals(JsonDiffUtility.opOf(update))) {
+                                //despawned on the authority side
+                                FleetHelper.removeFleetById(fleetId);
+                            }
+                        } else if (snapshotApplier.isPending(fleetId)) {
+                            snapshotApplier.update(fleetId, update);
                         } else {
                             if(!Global.getSector().isPaused()){
                                 //only run if not paused because if the client is pause it will continuously ask for snapshots
@@ -158,11 +186,32 @@ public class ClientScripts implements EveryFrameScript {
                                 packet.put("commandId","requestFleetSnapshot");
                                 packet.put("fleetId",fleetId);
                                 MultiplayerLog.log().warn("globalFleetsUpdate : unknown fleet " + fleetId);
-                                client.send(packet.toString());
+                                client.send(packet);
                             }
                         }
                     }
                     break;
+                case "worldUpdate":
+                    //every update the server merged during one tick, in the order they were received
+                    client.worldTick = message.getLong("tick");
+                    JSONArray tickUpdates = message.getJSONArray("updates");
+                    for (int i = 0; i < tickUpdates.length(); i++) {
+                        processMessage(tickUpdates.getJSONObject(i));
+                    }
+                    break;
+                case "helloAck":
+                    client.setCompressionEnabled(WireCompression.ALGORITHM.equals(message.optString("compression")));
+                    Quantization.configure(message.optInt("positionSteps"), message.optInt("crSteps"));
+                    //the baselines of a previous session may be at another resolution
+                    fleetSync.reset();
+                    if (message.has("udpPort")) {
+                        client.openPositionChannel(message.getInt("udpPort"));
+                    }
+                    client.onHelloAck();
+                    break;
+                case "udpReady":
+                    client.getPositionChannel().markReady();
+                    break;
                 case "youAreAuthority":
                     client.isAuthority = true;
                     MultiplayerLog.log().debug("you are the authority");
@@ -171,12 +220,26 @@ public class ClientScripts implements EveryFrameScript {
                     client.isAuthority = false;
                     MultiplayerLog.log().debug("you are no longer the authority");
                     break;
+                case "requestAllFleetsSnapshot":
+                    //the server has no fleet cache yet, the authority answers with its own sector
+                    String requester = message.getString("from");
+                    JSONArray fleets = new JSONArray();
+                    JSONArray sector = FleetHelper.getFleetsSnapshot();
+                    for (int j = 0; j < sector.length(); j++) {
+                        if (!requester.equals(sector.getJSONObject(j).optString("id"))) fleets.put(sector.get(j));
+                    }
+                    packet = new JSONObject();
+                    packet.put("commandId","handleAllFleetsSnapshot");
+                    packet.put("to",requester);
+                    packet.put("fleets",fleets);
+                    client.send(packet);
+                    break;
                 case "requestFleetSnapshot":
                     packet = new JSONObject();
-                    packet.put("fleet",FleetSerializer.serializeFleet((CampaignFleetAPI) Global.getSector().getEntityById(message.getString("fleetId"))));
+                    packet.put("fleet",FleetSerializer.serializeFleet(EntityIndex.getFleet(message.getString("fleetId"))));
                     packet.put("commandId","handleFleetSnapshotRequest");
                     packet.put("to",message.getString("from"));
-                    client.send(packet.toString());
+                    client.send(packet);
                     break;
                 case "handleFleetSnapshotRequest":
                     FleetSerializer.unSerializeFleet(message.getJSONObject("fleet"),Global.getFactory().createEmptyFleet(Faction.NO_FACTION,true));
@@ -187,16 +250,10 @@ public class ClientScripts implements EveryFrameScript {
                     packet.put("commandId","handleFleetSnapshotRequest");
                     packet.put("to",message.getString("from"));
                     packet.put("fleet",FleetSerializer.serializeFleet(Global.getSector().getPlayerFleet()));
-                    client.send(packet.toString());
+                    client.send(packet);
                     break;
                 case "requestOrbitSnapshotForLocation":
-                    LocationAPI location;
-                    if(Objects.equals(message.getString("location"), "hyperspace")){
-                        location = Global.getSector().getHyperspace();
-                    }else{
-                        location = Global.getSector().getStarSystem(message.getString("location"));
-                    }
-                    worldSync.sendOrbitSnapshotForLocation(location,client,message.getString("from"));
+                    worldSync.sendOrbitSnapshotForLocation(EntityIndex.getLocation(message.getString("location")),client,message.getString("from"));
                     break;
                 case "handleOrbitSnapshotForLocation":
                     JSONObject orbits = message.getJSONObject("orbits");
@@ -223,16 +280,27 @@ public class ClientScripts implements EveryFrameScript {
                     MultiplayerLog.log().warn("unknown command: " + commandId);
                     break;
             }
+            SyncMetrics.stop("process." + commandId, start);
         } catch (Exception e) {
             MultiplayerLog.log().error("Exception in processMessage: " + e.getMessage() + " " + Arrays.toString(e.getStackTrace()) + " " + message.toString(), e);
         }
     }
 
-    private void executeTick() {
+    private void executeTick(boolean sendOwnFleet, boolean sendGlobalFleets) {
         try {
-            fleetSync.sendOwnFleetUpdate(client);
-            if(client.isAuthority){
-                fleetSync.sendGlobalFleetsUpdate(client);
+            if (sendOwnFleet) {
+                boolean changed = fleetSync.sendOwnFleetUpdate(client);
+                float speed = Global.getSector().getPlayerFleet().getVelocity().length();
+                ownFleetRate.update(changed, speed, client.getRttMillis(), client.getQueueDepth());
+            }
+            if (sendGlobalFleets) {
+                boolean changed = fleetSync.sendGlobalFleetsUpdate(client);
+                globalFleetsRate.update(changed, 0f, client.getRttMillis(), client.getQueueDepth());
+            }
+            UI ui = MultiplayerModPlugin.getUI();
+            if (ui != null) {
+                ui.setSendRate(ownFleetRate.getRate(), client.isAuthority ? globalFleetsRate.getRate() : 0f);
+                ui.setLatency(client.getRttStats());
             }
             // Update server time clock from game clock
             //updateServerTimeFromGameClock();
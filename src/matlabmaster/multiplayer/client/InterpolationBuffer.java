@@ -0,0 +1,137 @@
+package matlabmaster.multiplayer.client;
+
+import matlabmaster.multiplayer.net.PositionDatagram;
+import matlabmaster.multiplayer.utils.SettingsHelper;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Timestamped positions of one remote fleet, rendered a little behind real time so there are usually two samples
+ * to interpolate between instead of moving the fleet the moment a position arrives.
+ * Sample times are the sender's clock, moved to ours by the smallest transit time seen. How far the transit times
+ * spread above it is the jitter, the render delay follows it from multiplayer_interpolationDelayMs up to {@link #MAX_DELAY_MS}.
+ * Past the newest sample (late or lost datagrams, dead reckoning) the position is extrapolated along its velocity.
+ * Executed in the main game thread.
+ */
+public class InterpolationBuffer {
+    private static final String ENABLED_SETTING = "multiplayer_interpolation";
+    private static final String DELAY_SETTING = "multiplayer_interpolationDelayMs";
+    private static final float DEFAULT_DELAY_MS = 100f;
+    private static final double MAX_DELAY_MS = 1000;
+    /** delay kept above the base delay per ms of jitter */
+    private static final double JITTER_FACTOR = 2;
+    /** the smallest transit time creeps up by this much per sample, so a clock drift or a new route doesn't stick */
+    private static final double OFFSET_RELAX_MS = 0.05;
+    private static final double SMOOTHING = 0.1;
+    private static final long MAX_EXTRAPOLATION_MS = 3000;
+    private static final int CAPACITY = 16;
+
+    private static final class Sample {
+        final PositionDatagram.Entry entry;
+        final long sentAt;
+
+        Sample(PositionDatagram.Entry entry, long sentAt) {
+            this.entry = entry;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final float baseDelayMs;
+    private final ArrayDeque<Sample> samples = new ArrayDeque<>(CAPACITY);
+    /** our clock minus the sender's, smallest transit time seen */
+    private double offset = Double.NaN;
+    private double jitter = 0;
+    private double delay = -1;
+
+    /**
+     * @param baseDelayMs multiplayer_interpolationDelayMs, see {@link #getDelaySetting()}
+     */
+    public InterpolationBuffer(float baseDelayMs) {
+        this.baseDelayMs = baseDelayMs;
+    }
+
+    public static boolean isEnabled() {
+        return SettingsHelper.getBoolean(ENABLED_SETTING, true);
+    }
+
+    public static float getDelaySetting() {
+        return SettingsHelper.getFloat(DELAY_SETTING, DEFAULT_DELAY_MS);
+    }
+
+    public void add(PositionDatagram.Entry entry, long sentAt, long receivedAt) {
+        double transit = receivedAt - sentAt;
+        if (Double.isNaN(offset) || transit < offset) {
+            offset = transit;
+        } else {
+            offset += OFFSET_RELAX_MS;
+        }
+        jitter += (transit - offset - jitter) * SMOOTHING;
+
+        Sample newest = samples.peekLast();
+        if (newest != null && sentAt <= newest.sentAt) return; // older than what we have
+        samples.addLast(new Sample(entry, sentAt));
+        if (samples.size() > CAPACITY) samples.removeFirst();
+    }
+
+    /**
+     * @param now our wall clock in milliseconds
+     * @return the position to show now, null without samples
+     */
+    public PositionDatagram.Entry sample(long now) {
+        if (samples.isEmpty()) return null;
+        double target = Math.min(MAX_DELAY_MS, baseDelayMs + JITTER_FACTOR * jitter);
+        delay = delay < 0 ? target : delay + (target - delay) * SMOOTHING;
+        double renderAt = now - offset - delay; // on the sender's clock
+
+        // keep the newest sample before renderAt, the older ones are behind us
+        while (samples.size() >= 2) {
+            Iterator<Sample> it = samples.iterator();
+            it.next();
+            if (it.next().sentAt > renderAt) break;
+            samples.removeFirst();
+        }
+        Sample from = samples.peekFirst();
+        if (renderAt <= from.sentAt) return from.entry;
+        if (samples.size() == 1) {
+            double late = Math.min(renderAt - from.sentAt, MAX_EXTRAPOLATION_MS);
+            return from.entry.extrapolate((float) (late / 1000));
+        }
+
+        Iterator<Sample> it = samples.iterator();
+        it.next();
+        Sample to = it.next();
+        return interpolate(from.entry, to.entry, (float) ((to.sentAt - from.sentAt) / 1000d),
+                (float) ((renderAt - from.sentAt) / (to.sentAt - from.sentAt)));
+    }
+
+    /**
+     * Cubic hermite between the two samples, follows their velocities so the sparse dead reckoning samples still curve smoothly
+     * @param seconds time between the samples
+     * @param t 0 at a, 1 at b
+     */
+    private static PositionDatagram.Entry interpolate(PositionDatagram.Entry a, PositionDatagram.Entry b, float seconds, float t) {
+        float t2 = t * t;
+        float t3 = t2 * t;
+        float h00 = 2 * t3 - 3 * t2 + 1;
+        float h10 = t3 - 2 * t2 + t;
+        float h01 = -2 * t3 + 3 * t2;
+        float h11 = t3 - t2;
+        float x = h00 * a.x + h10 * seconds * a.velocityX + h01 * b.x + h11 * seconds * b.velocityX;
+        float y = h00 * a.y + h10 * seconds * a.velocityY + h01 * b.y + h11 * seconds * b.velocityY;
+        float velocityX = a.velocityX + (b.velocityX - a.velocityX) * t;
+        float velocityY = a.velocityY + (b.velocityY - a.velocityY) * t;
+        return new PositionDatagram.Entry(a.fleetId, x, y, velocityX, velocityY, b.destX, b.destY);
+    }
+
+    /**
+     * Drops the samples but keeps the clock offset and jitter, used while the game is paused
+     */
+    public void clear() {
+        samples.clear();
+    }
+
+    public double getDelayMs() {
+        return delay;
+    }
+}
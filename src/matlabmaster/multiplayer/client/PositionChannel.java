@@ -0,0 +1,175 @@
+package matlabmaster.multiplayer.client;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.net.PositionDatagram;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client end of the udp side channel for fleet positions.
+ * Positions are sent as sequence numbered {@link PositionDatagram}s, a lost one is simply replaced by the next tick
+ * instead of stalling the tcp stream. Received positions are kept latest-wins per fleet until the game thread applies them,
+ * they come either from udp or from tcp when the server has no udp path to us.
+ */
+public class PositionChannel {
+    /** without any position to send a keepalive is sent so the server keeps our udp address */
+    private static final long KEEPALIVE_INTERVAL_MS = 1000;
+
+    private final String clientId;
+    private volatile DatagramSocket socket;
+    private volatile boolean ready = false;
+    private int seq = 0;
+    private long lastSendTime = 0;
+    /** newest sequence number applied per fleet and the sender it came from, seqs of different senders aren't comparable */
+    private final Map<String, String> lastSender = new HashMap<>();
+    private final Map<String, Integer> lastSeq = new HashMap<>();
+    private final ConcurrentHashMap<String, Received> pending = new ConcurrentHashMap<>();
+
+    /**
+     * A received position, with the sender's and our clock to time it
+     */
+    public static final class Received {
+        public final PositionDatagram.Entry entry;
+        public final long sentAt;
+        public final long receivedAt;
+
+        Received(PositionDatagram.Entry entry, long sentAt, long receivedAt) {
+            this.entry = entry;
+            this.sentAt = sentAt;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    public PositionChannel(String clientId) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * Opens the udp socket towards the port advertised in helloAck and registers with a keepalive
+     */
+    public void open(InetAddress serverAddress, int udpPort) {
+        try {
+            socket = new DatagramSocket();
+            socket.connect(new InetSocketAddress(serverAddress, udpPort));
+            DatagramSocket opened = socket;
+            Thread reader = new Thread(() -> receiveLoop(opened), "Client-UDP-Thread");
+            reader.setDaemon(true);
+            reader.start();
+            send(Collections.emptyMap());
+            MultiplayerLog.log().info("UDP position channel opened on port " + udpPort);
+        } catch (IOException e) {
+            MultiplayerLog.log().warn("UDP position channel unavailable, positions stay on tcp : " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Called once the server received our first datagram, positions can leave the tcp diffs from now on
+     */
+    public void markReady() {
+        if (socket != null) {
+            ready = true;
+            MultiplayerLog.log().info("UDP position channel ready");
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Sends the positions of this tick, split over as many datagrams as needed and never mixing two locations
+     * so the server can relay them by location.
+     * Called every tick, without any entry it only sends the periodic keepalive
+     * @param entriesByLocation positions by location of their fleets
+     */
+    public void send(Map<String, List<PositionDatagram.Entry>> entriesByLocation) {
+        DatagramSocket current = socket;
+        if (current == null) return;
+        long now = System.currentTimeMillis();
+        boolean empty = true;
+        for (List<PositionDatagram.Entry> entries : entriesByLocation.values()) {
+            if (!entries.isEmpty()) empty = false;
+        }
+        if (empty && now - lastSendTime < KEEPALIVE_INTERVAL_MS) return;
+        lastSendTime = now;
+        int tickSeq = seq++;
+        try {
+            if (empty) {
+                send(current, PositionDatagram.encode(clientId, "", tickSeq, now, Collections.emptyList()));
+                return;
+            }
+            for (Map.Entry<String, List<PositionDatagram.Entry>> location : entriesByLocation.entrySet()) {
+                if (location.getValue().isEmpty()) continue;
+                send(current, PositionDatagram.encode(clientId, location.getKey(), tickSeq, now, location.getValue()));
+            }
+        } catch (IOException e) {
+            // lost like any other datagram, the next tick will send fresher positions
+        }
+    }
+
+    private static void send(DatagramSocket socket, List<byte[]> datagrams) throws IOException {
+        for (byte[] datagram : datagrams) {
+            socket.send(new DatagramPacket(datagram, datagram.length));
+        }
+    }
+
+    private void receiveLoop(DatagramSocket socket) {
+        byte[] buffer = new byte[PositionDatagram.MAX_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                receive(packet.getData(), packet.getOffset(), packet.getLength());
+            } catch (IOException e) {
+                // socket closed on disconnect
+            }
+        }
+    }
+
+    /**
+     * Keeps the newest position per fleet, called from the udp thread and from the tcp read thread
+     */
+    public synchronized void receive(byte[] data, int offset, int length) {
+        try {
+            PositionDatagram datagram = PositionDatagram.decode(data, offset, length);
+            long receivedAt = System.currentTimeMillis();
+            for (PositionDatagram.Entry entry : datagram.entries) {
+                Integer previous = lastSeq.get(entry.fleetId);
+                boolean sameSender = datagram.senderId.equals(lastSender.get(entry.fleetId));
+                if (previous != null && sameSender && datagram.seq - previous < 0) continue; // late datagram
+                lastSeq.put(entry.fleetId, datagram.seq);
+                lastSender.put(entry.fleetId, datagram.senderId);
+                pending.put(entry.fleetId, new Received(entry, datagram.sentAt, receivedAt));
+            }
+        } catch (IOException e) {
+            MultiplayerLog.log().warn("Malformed position datagram : " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the positions received since the last call, at most one per fleet
+     */
+    public List<Received> drain() {
+        List<Received> entries = new ArrayList<>(pending.size());
+        for (String fleetId : pending.keySet()) {
+            Received entry = pending.remove(fleetId);
+            if (entry != null) entries.add(entry);
+        }
+        return entries;
+    }
+
+    public void close() {
+        ready = false;
+        DatagramSocket current = socket;
+        socket = null;
+        if (current != null) current.close();
+    }
+}
@@ -0,0 +1,92 @@
+package matlabmaster.multiplayer.client;
+
+import matlabmaster.multiplayer.utils.SettingsHelper;
+
+/**
+ * Decides how often a sync loop (own fleet, npc fleets) sends its updates.
+ * The rate backs off quickly when the link struggles (round trip time or outbound queue growing)
+ * and slowly when nothing changes, it speeds up again while things move fast.
+ * The rate always stays between multiplayer_minSendRate and multiplayer_maxSendRate.
+ * Executed in the main game thread.
+ */
+public class SendRateController {
+    private static final String MIN_RATE_SETTING = "multiplayer_minSendRate";
+    private static final String MAX_RATE_SETTING = "multiplayer_maxSendRate";
+    private static final float DEFAULT_MIN_RATE = 5f;
+    private static final float DEFAULT_MAX_RATE = 30f;
+    /** the rate used while things change at a normal pace, the old fixed 0.05s interval */
+    private static final float NOMINAL_RATE = 20f;
+
+    /** frames waiting in the client outbound queue before we consider the link saturated */
+    private static final int QUEUE_BACKOFF_DEPTH = 4;
+    /** round trip above which we back off, and the rise over the best one seen */
+    private static final float RTT_BACKOFF_MS = 300f;
+    private static final float RTT_RISE_FACTOR = 2f;
+    /** fleet speed above which the updates are sent faster than the nominal rate */
+    private static final float FAST_SPEED = 150f;
+
+    private static final float BACKOFF_FACTOR = 0.7f;
+    private static final float IDLE_DECAY = 0.95f;
+    private static final float SPEEDUP_STEP = 1f;
+
+    private final float minRate;
+    private final float maxRate;
+    private float rate = NOMINAL_RATE;
+    private float timer = 0f;
+    private float minRttMs = Float.MAX_VALUE;
+
+    public SendRateController() {
+        minRate = SettingsHelper.getFloat(MIN_RATE_SETTING, DEFAULT_MIN_RATE);
+        maxRate = Math.max(minRate, SettingsHelper.getFloat(MAX_RATE_SETTING, DEFAULT_MAX_RATE));
+    }
+
+    /**
+     * @return true when the next update is due
+     */
+    public boolean advance(float amount) {
+        timer += amount;
+        float interval = 1f / rate;
+        if (timer < interval) return false;
+        // don't try to catch up missed sends after a long frame
+        timer = Math.min(timer - interval, interval);
+        return true;
+    }
+
+    /**
+     * Adjusts the rate after a send
+     * @param changed something was different from the previous send
+     * @param speed speed of the fastest synced fleet, 0 if unknown
+     * @param rttMs last measured round trip to the server, negative if none yet
+     * @param queueDepth frames still waiting to be written to the server
+     */
+    public void update(boolean changed, float speed, float rttMs, int queueDepth) {
+        if (rttMs >= 0) minRttMs = Math.min(minRttMs, rttMs);
+
+        boolean congested = queueDepth > QUEUE_BACKOFF_DEPTH
+                || rttMs > RTT_BACKOFF_MS
+                || (rttMs >= 0 && rttMs > minRttMs * RTT_RISE_FACTOR && rttMs - minRttMs > 50f);
+        if (congested) {
+            rate *= BACKOFF_FACTOR;
+        } else if (!changed) {
+            rate *= IDLE_DECAY;
+        } else if (speed > FAST_SPEED) {
+            rate += SPEEDUP_STEP;
+        } else if (rate < NOMINAL_RATE) {
+            rate = Math.min(NOMINAL_RATE, rate + SPEEDUP_STEP);
+        } else {
+            rate = Math.max(NOMINAL_RATE, rate - SPEEDUP_STEP);
+        }
+        rate = Math.max(minRate, Math.min(maxRate, rate));
+    }
+
+    /** back to the nominal rate, called on disconnect */
+    public void reset() {
+        rate = NOMINAL_RATE;
+        timer = 0f;
+        minRttMs = Float.MAX_VALUE;
+    }
+
+    public float getRate() {
+        return rate;
+    }
+}
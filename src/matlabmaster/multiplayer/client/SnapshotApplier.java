@@ -0,0 +1,135 @@
+package matlabmaster.multiplayer.client;
+
+import com.fs.starfarer.api.Global;
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import com.fs.starfarer.campaign.Faction;
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.MultiplayerModPlugin;
+import matlabmaster.multiplayer.ui.UI;
+import matlabmaster.multiplayer.utils.EntityIndex;
+import matlabmaster.multiplayer.utils.FleetSerializer;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import matlabmaster.multiplayer.utils.Quantization;
+import matlabmaster.multiplayer.utils.SettingsHelper;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Spawns the fleets of a handleAllFleetsSnapshot over several frames instead of freezing the game on join.
+ * Each frame spawns fleets until the time budget is spent, the ones in the player's location first.
+ * Updates received for a fleet that isn't spawned yet are applied to its pending json so nothing is lost.
+ * Executed in the main game thread.
+ */
+public class SnapshotApplier {
+    private static final String BUDGET_SETTING = "multiplayer_snapshotFrameBudgetMs";
+    private static final float DEFAULT_BUDGET_MS = 4f;
+
+    private final long budgetNanos = (long) (SettingsHelper.getFloat(BUDGET_SETTING, DEFAULT_BUDGET_MS) * 1_000_000);
+    /** pending fleets by id, in spawn order */
+    private final LinkedHashMap<String, JSONObject> pending = new LinkedHashMap<>();
+    private int total = 0;
+    private int applied = 0;
+
+    /**
+     * Queues the fleets of a snapshot, replacing what was left of a previous one
+     */
+    public synchronized void start(JSONArray fleets) throws JSONException {
+        pending.clear();
+        String playerLocation = Global.getSector().getPlayerFleet().getContainingLocation().getId();
+        List<JSONObject> elsewhere = new ArrayList<>();
+        for (int i = 0; i < fleets.length(); i++) {
+            JSONObject fleet = fleets.getJSONObject(i);
+            if (playerLocation.equals(fleet.optString("location"))) {
+                pending.put(fleet.getString("id"), fleet);
+            } else {
+                elsewhere.add(fleet);
+            }
+        }
+        for (JSONObject fleet : elsewhere) {
+            pending.put(fleet.getString("id"), fleet);
+        }
+        total = pending.size();
+        applied = 0;
+        MultiplayerLog.log().info("applying snapshot of " + total + " fleets");
+        reportProgress();
+    }
+
+    /**
+     * Spawns pending fleets until the frame budget is spent, at least one per call
+     */
+    public synchronized void advance() {
+        if (pending.isEmpty()) return;
+        long start = System.nanoTime();
+        Iterator<Map.Entry<String, JSONObject>> it = pending.entrySet().iterator();
+        do {
+            Map.Entry<String, JSONObject> entry = it.next();
+            it.remove();
+            spawn(entry.getKey(), entry.getValue());
+            applied++;
+        } while (it.hasNext() && System.nanoTime() - start < budgetNanos);
+
+        if (pending.isEmpty()) {
+            MultiplayerLog.log().info("added " + applied + " fleets");
+        }
+        reportProgress();
+    }
+
+    private void spawn(String fleetId, JSONObject fleet) {
+        try {
+            CampaignFleetAPI existing = EntityIndex.getFleet(fleetId);
+            if (existing != null) {
+                existing.despawn();
+                EntityIndex.removeFleet(fleetId);
+            }
+            FleetSerializer.unSerializeFleet(fleet, Global.getFactory().createEmptyFleet(Faction.NO_FACTION, true));
+        } catch (Exception e) {
+            MultiplayerLog.log().error("Failed to spawn snapshot fleet " + fleetId + " : " + e.getMessage(), e);
+        }
+    }
+
+    public synchronized boolean isPending(String fleetId) {
+        return pending.containsKey(fleetId);
+    }
+
+    /**
+     * Applies an update received before the fleet was spawned
+     * @param delta a fleet diff, or an add / remove instruction from a globalFleetsUpdate
+     */
+    public synchronized void update(String fleetId, Object delta) throws JSONException {
+        JSONObject fleet = pending.get(fleetId);
+        if (fleet == null) return;
+        if (!JsonDiffUtility.isInstruction(delta)) {
+            JsonDiffUtility.applyDifferences(fleet, (JSONObject) delta);
+        } else if (JsonDiffUtility.REMOVE.equals(JsonDiffUtility.opOf(delta))) {
+            pending.remove(fleetId);
+            applied++;
+            reportProgress();
+        } else {
+            pending.put(fleetId, (JSONObject) JsonDiffUtility.valueOf(delta));
+        }
+    }
+
+    public synchronized void updatePosition(String fleetId, float x, float y, float destX, float destY) throws JSONException {
+        JSONObject fleet = pending.get(fleetId);
+        if (fleet == null) return;
+        fleet.put("locationX", Quantization.position(x));
+        fleet.put("locationY", Quantization.position(y));
+        fleet.put("moveDestinationX", Quantization.position(destX));
+        fleet.put("moveDestinationY", Quantization.position(destY));
+    }
+
+    public synchronized void clear() {
+        pending.clear();
+        total = 0;
+        applied = 0;
+        reportProgress();
+    }
+
+    private void reportProgress() {
+        UI ui = MultiplayerModPlugin.getUI();
+        if (ui != null) ui.setSnapshotProgress(applied, pending.isEmpty() ? 0 : total);
+    }
+}
@@ -0,0 +1,92 @@
+package matlabmaster.multiplayer.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size histogram with logarithmic buckets, cheap enough to record on every message.
+ * Each power of two is split in {@link #SUB_BUCKETS} buckets so the percentiles stay within ~10% of the real value.
+ * Thread safe, the recording threads (network, game) and the readers (ui, logs) don't coordinate.
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 8;
+    /** powers of two covered above the unit, values above land in the last bucket */
+    private static final int OCTAVES = 24;
+
+    /** value of one unit, e.g. 0.01 to record milliseconds with a 10 microseconds resolution */
+    private final double unit;
+    private final long[] buckets = new long[OCTAVES * SUB_BUCKETS + 1];
+    private long count;
+    private double sum;
+    private double min = Double.MAX_VALUE;
+    private double max = 0;
+
+    public Histogram(double unit) {
+        this.unit = unit;
+    }
+
+    public synchronized void record(double value) {
+        if (value < 0) value = 0;
+        buckets[bucketOf(value / unit)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    private static int bucketOf(double units) {
+        if (units < 1) return 0;
+        int octave = 63 - Long.numberOfLeadingZeros((long) units);
+        if (octave >= OCTAVES) return OCTAVES * SUB_BUCKETS;
+        double base = 1L << octave;
+        int sub = (int) ((units - base) / base * SUB_BUCKETS);
+        return 1 + octave * SUB_BUCKETS + Math.min(sub, SUB_BUCKETS - 1);
+    }
+
+    /** upper bound of a bucket, in units */
+    private static double upperBoundOf(int bucket) {
+        if (bucket == 0) return 1;
+        int octave = (bucket - 1) / SUB_BUCKETS;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        double base = 1L << octave;
+        return base + base * (sub + 1) / SUB_BUCKETS;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public synchronized double getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(rank, 1)) return Math.min(upperBoundOf(i) * unit, max);
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public synchronized double getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized double getMax() {
+        return max;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        sum = 0;
+        min = Double.MAX_VALUE;
+        max = 0;
+    }
+}
@@ -0,0 +1,66 @@
+package matlabmaster.multiplayer.metrics;
+
+/**
+ * Round trip statistics of one connection, fed by the ping / pong heartbeat.
+ * The histograms keep the whole connection history (min, mean, p99), the smoothed value follows the current
+ * link quality and is the one the other subsystems (authority election, send rate) should read.
+ * Jitter is the difference between two consecutive round trips.
+ */
+public class RttStats {
+    /** weight of a new sample in the smoothed rtt, same as the tcp srtt */
+    private static final double SMOOTHING = 0.125;
+
+    private final Histogram rtt = new Histogram(0.01);
+    private final Histogram jitter = new Histogram(0.01);
+    private volatile double smoothed = -1;
+    private volatile double last = -1;
+
+    public void record(double rttMillis) {
+        double previous = last;
+        if (previous >= 0) jitter.record(Math.abs(rttMillis - previous));
+        rtt.record(rttMillis);
+        last = rttMillis;
+        smoothed = smoothed < 0 ? rttMillis : smoothed + SMOOTHING * (rttMillis - smoothed);
+    }
+
+    /** @return the smoothed round trip in milliseconds, -1 before the first pong */
+    public double getSmoothed() {
+        return smoothed;
+    }
+
+    /** @return the last round trip in milliseconds, -1 before the first pong */
+    public double getLast() {
+        return last;
+    }
+
+    public double getMin() {
+        return rtt.getMin();
+    }
+
+    public double getMean() {
+        return rtt.getMean();
+    }
+
+    public double getP99() {
+        return rtt.getPercentile(99);
+    }
+
+    public Histogram getRttHistogram() {
+        return rtt;
+    }
+
+    public Histogram getJitterHistogram() {
+        return jitter;
+    }
+
+    public boolean hasSamples() {
+        return last >= 0;
+    }
+
+    @Override
+    public String toString() {
+        if (!hasSamples()) return "rtt n/a";
+        return String.format("rtt %.1f ms (min %.1f, mean %.1f, p99 %.1f), jitter mean %.1f p99 %.1f, %d samples",
+                smoothed, getMin(), getMean(), getP99(), jitter.getMean(), jitter.getPercentile(99), rtt.getCount());
+    }
+}
@@ -0,0 +1,114 @@
+package matlabmaster.multiplayer.metrics;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Timers and counters around the sync pipeline (serialize, diff, send, apply), to see where the frame time goes.
+ * Recording costs two {@link System#nanoTime()} and a histogram update, nothing is allocated once a name is known.
+ * A summary of the last window is logged every {@link #SUMMARY_INTERVAL_MS} and pushed to the UI, then the window restarts.
+ * <pre>
+ * long start = SyncMetrics.start();
+ * ...
+ * SyncMetrics.stop("serializeFleet", start);
+ * </pre>
+ */
+public final class SyncMetrics {
+    private static final long SUMMARY_INTERVAL_MS = 30_000;
+
+    /** durations in milliseconds, 1 microsecond resolution */
+    private static final ConcurrentHashMap<String, Histogram> timers = new ConcurrentHashMap<>();
+    /** sizes and depths */
+    private static final ConcurrentHashMap<String, Histogram> samples = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled = true;
+    private static volatile Consumer<String> summarySink;
+    private static long windowStart = System.currentTimeMillis();
+
+    private SyncMetrics() {}
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Registers the UI metrics panel, it receives every summary
+     */
+    public static void setSummarySink(Consumer<String> sink) {
+        summarySink = sink;
+    }
+
+    /**
+     * @return the start time to give to {@link #stop}, 0 when the metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(String name, long start) {
+        if (start == 0) return;
+        timers.computeIfAbsent(name, k -> new Histogram(0.001)).record((System.nanoTime() - start) / 1_000_000d);
+    }
+
+    public static void count(String name, long delta) {
+        if (!enabled) return;
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Records a size or a depth, the summary shows its mean, p99 and max
+     */
+    public static void sample(String name, double value) {
+        if (!enabled) return;
+        samples.computeIfAbsent(name, k -> new Histogram(1)).record(value);
+    }
+
+    /**
+     * Logs and publishes the summary once the window is over, called every frame from the game thread
+     */
+    public static synchronized void logIfDue() {
+        if (!enabled) return;
+        long now = System.currentTimeMillis();
+        if (now - windowStart < SUMMARY_INTERVAL_MS) return;
+        String summary = summary(now - windowStart);
+        windowStart = now;
+        reset();
+
+        MultiplayerLog.log().info("Sync metrics\n" + summary);
+        Consumer<String> sink = summarySink;
+        if (sink != null) sink.accept(summary);
+    }
+
+    private static String summary(long windowMillis) {
+        StringBuilder builder = new StringBuilder(1024);
+        builder.append(String.format("last %d s%n", windowMillis / 1000));
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(timers).entrySet()) {
+            Histogram h = entry.getValue();
+            builder.append(String.format("%-36s n=%-7d mean %8.3f ms  p99 %8.3f ms  max %8.3f ms  total %9.1f ms%n",
+                    entry.getKey(), h.getCount(), h.getMean(), h.getPercentile(99), h.getMax(), h.getMean() * h.getCount()));
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(samples).entrySet()) {
+            Histogram h = entry.getValue();
+            builder.append(String.format("%-36s n=%-7d mean %8.1f     p99 %8.1f     max %8.1f%n",
+                    entry.getKey(), h.getCount(), h.getMean(), h.getPercentile(99), h.getMax()));
+        }
+        double seconds = Math.max(windowMillis / 1000d, 1);
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            long total = entry.getValue().sum();
+            builder.append(String.format("%-36s %-9d (%.1f /s)%n", entry.getKey(), total, total / seconds));
+        }
+        return builder.toString();
+    }
+
+    private static void reset() {
+        for (Histogram h : timers.values()) h.reset();
+        for (Histogram h : samples.values()) h.reset();
+        for (LongAdder counter : counters.values()) counter.reset();
+    }
+}
@@ -0,0 +1,170 @@
+package matlabmaster.multiplayer.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One message on the wire.
+ * Layout : [int length][byte type][payload], length counts the type byte and the payload.
+ * The length header lets readers allocate the exact payload size and skip or forward a frame without decoding it.
+ */
+public final class Frame {
+    public static final int HEADER_SIZE = 5;
+    /** Upper bound for a single frame, protects against corrupted length headers */
+    public static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+    /** UTF-8 encoded json message (the historical protocol) */
+    public static final byte TYPE_JSON = 1;
+    /** json message preceded by a {@link RoutingHeader} */
+    public static final byte TYPE_ROUTED = 2;
+    /** {@link PositionDatagram} relayed over tcp to the clients without a working udp path */
+    public static final byte TYPE_POSITIONS = 3;
+    /** heartbeat, the payload is the sender's {@link System#nanoTime()}, answered at once with a {@link #TYPE_PONG} */
+    public static final byte TYPE_PING = 4;
+    /** echo of a ping payload, the pinging side measures the round trip from it */
+    public static final byte TYPE_PONG = 5;
+    /** set on the type when the json is compressed with {@link WireCompression}, a routing header always stays readable */
+    public static final byte FLAG_COMPRESSED = 0x40;
+
+    public final byte type;
+    public final byte[] payload;
+
+    public Frame(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public static Frame json(String message) {
+        return new Frame(TYPE_JSON, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Frame ping(long timestamp) {
+        return new Frame(TYPE_PING, ByteBuffer.allocate(8).putLong(timestamp).array());
+    }
+
+    /**
+     * @return the answer to this ping, same payload
+     */
+    public Frame pong() {
+        return new Frame(TYPE_PONG, payload);
+    }
+
+    /**
+     * @return the timestamp carried by a ping or a pong
+     */
+    public long timestamp() {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    /**
+     * @return the type without the flags
+     */
+    public byte baseType() {
+        return (byte) (type & ~FLAG_COMPRESSED);
+    }
+
+    public boolean isCompressed() {
+        return (type & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * @return the json message carried by a {@link #TYPE_JSON} or {@link #TYPE_ROUTED} frame
+     */
+    public String text() throws IOException {
+        int offset = baseType() == TYPE_ROUTED ? RoutingHeader.read(payload).bodyOffset : 0;
+        if (isCompressed()) {
+            return new String(WireCompression.decompress(payload, offset, payload.length - offset), StandardCharsets.UTF_8);
+        }
+        return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return this frame with its json compressed, or this frame if it is too small to bother
+     */
+    public Frame compressed() throws IOException {
+        if (isCompressed() || (baseType() != TYPE_JSON && baseType() != TYPE_ROUTED)) return this;
+        int offset = baseType() == TYPE_ROUTED ? RoutingHeader.read(payload).bodyOffset : 0;
+        if (payload.length - offset < WireCompression.THRESHOLD) return this;
+
+        byte[] body = WireCompression.compress(payload, offset, payload.length - offset);
+        byte[] result = new byte[offset + body.length];
+        System.arraycopy(payload, 0, result, 0, offset);
+        System.arraycopy(body, 0, result, offset, body.length);
+        return new Frame((byte) (type | FLAG_COMPRESSED), result);
+    }
+
+    /**
+     * @return this frame with its json in clear, for peers that didn't negotiate compression
+     */
+    public Frame uncompressed() throws IOException {
+        if (!isCompressed()) return this;
+        int offset = baseType() == TYPE_ROUTED ? RoutingHeader.read(payload).bodyOffset : 0;
+        byte[] body = WireCompression.decompress(payload, offset, payload.length - offset);
+        byte[] result = new byte[offset + body.length];
+        System.arraycopy(payload, 0, result, 0, offset);
+        System.arraycopy(body, 0, result, offset, body.length);
+        return new Frame(baseType(), result);
+    }
+
+    /**
+     * @return the whole frame, header included, ready to be written to a channel
+     */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length + 1);
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the frame once into a direct buffer that can be shared between several writers.
+     * Each writer must use its own {@link ByteBuffer#duplicate()} since writing moves the position.
+     */
+    public ByteBuffer encodeShared() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length + 1);
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the frame in a single write call, callers sharing the stream must synchronize
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        ByteBuffer encoded = encode();
+        out.write(encoded.array(), 0, encoded.limit());
+        out.flush();
+    }
+
+    /**
+     * Blocking read of the next frame
+     * @return the frame or null if the stream ended cleanly between two frames
+     */
+    public static Frame readFrom(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte type = in.readByte();
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 1 || length - 1 > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package matlabmaster.multiplayer.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Incremental frame parser for non blocking reads.
+ * Bytes are fed as they arrive, complete frames are handed to the consumer.
+ * The payload array is allocated once with the size announced in the header.
+ */
+public final class FrameDecoder {
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private ByteBuffer payload;
+    private byte type;
+
+    public void feed(ByteBuffer src, Consumer<Frame> onFrame) throws IOException {
+        while (src.hasRemaining()) {
+            if (payload == null) {
+                transfer(src, header);
+                if (header.hasRemaining()) return;
+                header.flip();
+                int length = header.getInt();
+                Frame.checkLength(length);
+                type = header.get();
+                header.clear();
+                payload = ByteBuffer.allocate(length - 1);
+            }
+            transfer(src, payload);
+            if (payload.hasRemaining()) return;
+            Frame frame = new Frame(type, payload.array());
+            payload = null;
+            onFrame.accept(frame);
+        }
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int count = Math.min(src.remaining(), dst.remaining());
+        if (count == 0) return;
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + count);
+        dst.put(slice);
+        src.position(src.position() + count);
+    }
+}
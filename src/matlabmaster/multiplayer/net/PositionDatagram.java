@@ -0,0 +1,166 @@
+package matlabmaster.multiplayer.net;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fleet positions sent on the unreliable udp side channel.
+ * Layout : [byte magic][utf senderId][utf location][int seq][long sentAt][short count] then count times
+ * [utf fleetId][float x][float y][float velocityX][float velocityY][float destX][float destY].
+ * The velocity lets the receivers extrapolate the position until the next datagram (dead reckoning, see FleetSync).
+ * Every datagram of a tick carries the same sequence number, receivers keep the newest position per fleet and ignore late ones.
+ * sentAt is the sender's wall clock in milliseconds, receivers time the positions with it (see InterpolationBuffer).
+ * All the entries of a datagram are in its location, the server relays the other locations less often (see InterestFilter).
+ * A datagram without entries is a keepalive, it tells the server where to reach the sender.
+ */
+public final class PositionDatagram {
+    private static final byte MAGIC = 0x53;
+    /** stays under the usual internet MTU so the datagrams are never fragmented */
+    public static final int MAX_SIZE = 1200;
+
+    public final String senderId;
+    /** location of the entries, empty for a keepalive */
+    public final String location;
+    public final int seq;
+    public final long sentAt;
+    public final List<Entry> entries;
+
+    public static final class Entry {
+        public final String fleetId;
+        public final float x;
+        public final float y;
+        /** units per campaign second */
+        public final float velocityX;
+        public final float velocityY;
+        public final float destX;
+        public final float destY;
+
+        public Entry(String fleetId, float x, float y, float velocityX, float velocityY, float destX, float destY) {
+            this.fleetId = fleetId;
+            this.x = x;
+            this.y = y;
+            this.velocityX = velocityX;
+            this.velocityY = velocityY;
+            this.destX = destX;
+            this.destY = destY;
+        }
+
+        /**
+         * @return where the fleet is after moving along its velocity for the given campaign seconds,
+         * it stops at its destination instead of overshooting it
+         */
+        public Entry extrapolate(float seconds) {
+            float speedSquared = velocityX * velocityX + velocityY * velocityY;
+            if (speedSquared > 0) {
+                float toDestination = ((destX - x) * velocityX + (destY - y) * velocityY) / speedSquared;
+                if (toDestination >= 0) seconds = Math.min(seconds, toDestination);
+            }
+            return new Entry(fleetId, x + velocityX * seconds, y + velocityY * seconds, velocityX, velocityY, destX, destY);
+        }
+    }
+
+    private PositionDatagram(String senderId, String location, int seq, long sentAt, List<Entry> entries) {
+        this.senderId = senderId;
+        this.location = location;
+        this.seq = seq;
+        this.sentAt = sentAt;
+        this.entries = entries;
+    }
+
+    /**
+     * @return the datagrams carrying all the entries, split to stay under {@link #MAX_SIZE}
+     */
+    public static List<byte[]> encode(String senderId, String location, int seq, long sentAt, List<Entry> entries) {
+        List<byte[]> datagrams = new ArrayList<>();
+        try {
+            int index = 0;
+            do {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_SIZE);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(MAGIC);
+                out.writeUTF(senderId);
+                out.writeUTF(location);
+                out.writeInt(seq);
+                out.writeLong(sentAt);
+                int headerSize = out.size() + 2;
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream(MAX_SIZE);
+                DataOutputStream bodyOut = new DataOutputStream(body);
+                int count = 0;
+                while (index < entries.size()) {
+                    Entry entry = entries.get(index);
+                    int before = bodyOut.size();
+                    bodyOut.writeUTF(entry.fleetId);
+                    bodyOut.writeFloat(entry.x);
+                    bodyOut.writeFloat(entry.y);
+                    bodyOut.writeFloat(entry.velocityX);
+                    bodyOut.writeFloat(entry.velocityY);
+                    bodyOut.writeFloat(entry.destX);
+                    bodyOut.writeFloat(entry.destY);
+                    if (headerSize + bodyOut.size() > MAX_SIZE && count > 0) {
+                        // doesn't fit anymore, it opens the next datagram
+                        byte[] full = body.toByteArray();
+                        body.reset();
+                        body.write(full, 0, before);
+                        break;
+                    }
+                    count++;
+                    index++;
+                }
+                out.writeShort(count);
+                body.writeTo(out);
+                datagrams.add(bytes.toByteArray());
+            } while (index < entries.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in memory stream, can't happen
+        }
+        return datagrams;
+    }
+
+    public static PositionDatagram decode(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        if (in.readByte() != MAGIC) throw new IOException("Not a position datagram");
+        String senderId = in.readUTF();
+        String location = in.readUTF();
+        int seq = in.readInt();
+        long sentAt = in.readLong();
+        int count = in.readUnsignedShort();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(in.readUTF(), in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+        }
+        return new PositionDatagram(senderId, location, seq, sentAt, entries);
+    }
+
+    /**
+     * What the server reads to relay a datagram as is
+     */
+    public static final class Header {
+        public final String senderId;
+        public final String location;
+        public final int seq;
+        /** 0 for a keepalive */
+        public final int count;
+
+        Header(String senderId, String location, int seq, int count) {
+            this.senderId = senderId;
+            this.location = location;
+            this.seq = seq;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Reads the header without decoding the entries
+     */
+    public static Header readHeader(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        if (in.readByte() != MAGIC) throw new IOException("Not a position datagram");
+        String senderId = in.readUTF();
+        String location = in.readUTF();
+        int seq = in.readInt();
+        in.readLong();
+        return new Header(senderId, location, seq, in.readUnsignedShort());
+    }
+}
@@ -0,0 +1,55 @@
+package matlabmaster.multiplayer.net;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header of a {@link Frame#TYPE_ROUTED} frame.
+ * Payload layout : [utf commandId][utf to][utf from][utf location][json body], the utf fields use the {@link DataOutput#writeUTF} format.
+ * The server routes relay-only commands from the header alone and forwards the frame untouched,
+ * the location lets it filter fleet updates by the recipients' location without parsing them.
+ */
+public final class RoutingHeader {
+    public final String commandId;
+    /** addressee client id, empty for broadcasts */
+    public final String to;
+    /** client id of the original sender, empty when the message doesn't carry it */
+    public final String from;
+    /** id of the location the message is about, empty when it concerns every location */
+    public final String location;
+    /** offset of the json body in the frame payload */
+    public final int bodyOffset;
+
+    private RoutingHeader(String commandId, String to, String from, String location, int bodyOffset) {
+        this.commandId = commandId;
+        this.to = to;
+        this.from = from;
+        this.location = location;
+        this.bodyOffset = bodyOffset;
+    }
+
+    public static RoutingHeader read(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String commandId = in.readUTF();
+        String to = in.readUTF();
+        String from = in.readUTF();
+        String location = in.readUTF();
+        return new RoutingHeader(commandId, to, from, location, payload.length - in.available());
+    }
+
+    public static Frame encode(String commandId, String to, String from, String location, String body) {
+        try {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(bodyBytes.length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(commandId);
+            out.writeUTF(to);
+            out.writeUTF(from);
+            out.writeUTF(location);
+            out.write(bodyBytes);
+            return new Frame(Frame.TYPE_ROUTED, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in memory stream, can't happen
+        }
+    }
+}
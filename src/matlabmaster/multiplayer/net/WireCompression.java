@@ -0,0 +1,126 @@
+package matlabmaster.multiplayer.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with a preset dictionary for the json payloads.
+ * The dictionary is a typical FleetSerializer output (keys, diff instructions and the most common ids)
+ * so even a single ship update compresses well. Both ends must use the same dictionary, it is selected
+ * during the hello handshake through {@link #ALGORITHM}.
+ * Compressed layout : [int uncompressed length][deflate stream]
+ */
+public final class WireCompression {
+    /** name exchanged in the hello handshake, change it whenever the dictionary changes */
+    public static final String ALGORITHM = "deflate-dict-3";
+    /** smaller payloads are sent as is, deflate would barely win anything */
+    public static final int THRESHOLD = 512;
+
+    // the end of the dictionary is the cheapest to reference, the most frequent strings go last
+    private static final byte[] DICTIONARY = String.join("",
+            "\"factionId\":\"hegemony\"\"factionId\":\"tritachyon\"\"factionId\":\"pirates\"\"factionId\":\"luddic_church\"",
+            "\"factionId\":\"luddic_path\"\"factionId\":\"persean\"\"factionId\":\"sindrian_diktat\"\"factionId\":\"independent\"",
+            "\"factionId\":\"remnant\"\"factionId\":\"derelict\"\"factionId\":\"player\"\"location\":\"hyperspace\"",
+            "\"transponder\"\"go_dark\"\"sensor_burst\"\"emergency_burn\"\"sustained_burn\"\"interdiction_pulse\"",
+            "\"scavenge\"\"distress_call\"\"fracture_jump\"\"generate_slipsurge\"\"direct_jump\"\"graviton_scan\"",
+            "\"supplies\"\"fuel\"\"crew\"\"marines\"\"heavy_machinery\"\"metals\"\"rare_metals\"\"food\"\"domestic_goods\"",
+            "\"luxury_goods\"\"organics\"\"volatiles\"\"ore\"\"rare_ore\"\"hand_weapons\"\"drugs\"\"organs\"\"lobster\"",
+            "\"helmsmanship\":1.0\"combat_endurance\":1.0\"impact_mitigation\":1.0\"damage_control\":1.0\"field_modulation\":1.0",
+            "\"point_defense\":1.0\"target_analysis\":1.0\"ballistic_mastery\":1.0\"systems_expertise\":1.0",
+            "\"missile_specialization\":1.0\"gunnery_implants\":1.0\"energy_weapon_mastery\":1.0\"ordnance_expert\":1.0",
+            "\"polarized_armor\":1.0\"navigation\":1.0\"sensors\":1.0\"officer_training\":1.0\"fighter_uplink\":1.0",
+            "\"augmentedengines\":true\"heavyarmor\":true\"hardenedshieldemitter\":true\"fluxdistributor\":true",
+            "\"reinforcedhull\":true\"targetingunit\":true\"dedicated_targeting_core\":true\"integrated_targeting_unit\":true",
+            "\"autorepair\":true\"solar_shielding\":true\"insulatedengine\":true\"militarized_subsystems\":true",
+            "\"converted_hangar\":true\"fluxcoil\":true\"stabilizedshieldemitter\":true\"extendedshieldemitter\":true",
+            "\"frontshield\":true\"unstable_injector\":true\"eccm\":true\"ecm\":true\"nav_relay\":true\"operations_center\":true",
+            "\"safetyoverrides\":true\"expanded_deck_crew\":true\"hiressensors\":true\"surveying_equipment\":true",
+            "\"efficiency_overhaul\":true\"auxiliarythrusters\":true\"armoredweapons\":true\"turretgyros\":true",
+            "\"magazines\":true\"missleracks\":true\"ballistic_rangefinder\":true\"advancedoptics\":true\"fluxbreakers\":true",
+            "\"comp_armor\":true\"comp_hull\":true\"comp_structure\":true\"degraded_engines\":true\"faulty_grid\":true",
+            "\"glitched_sensors\":true\"fragile_subsystems\":true\"increased_maintenance\":true\"damaged_deck\":true",
+            "\"defective_manufactory\":true\"erratic_injector\":true\"destroyed_mounts\":true\"civgrade\":true",
+            "\"personalityId\":\"steady\"\"personalityId\":\"aggressive\"\"personalityId\":\"cautious\"",
+            "\"personalityId\":\"timid\"\"personalityId\":\"reckless\"\"rank\":\"spaceCommander\"\"rank\":\"spaceCaptain\"",
+            "\"rank\":\"spaceLieutenant\"\"post\":\"fleetCommander\"\"post\":\"officer\"\"post\":\"patrolCommander\"",
+            "\"sprite\":\"graphics/portraits/portrait_\"\"gender\":\"FEMALE\"\"gender\":\"MALE\"\"aiCoreId\":\"alpha_core\"",
+            "\"aiCoreId\":\"beta_core\"\"aiCoreId\":\"gamma_core\"\"type\":\"RESOURCES\"\"type\":\"WEAPONS\"\"type\":\"FIGHTER_CHIP\"",
+            "\"type\":\"SPECIAL\"\"commodityId\":\"\"weaponId\":\"\"fighterId\":\"\"specialId\":\"\"specialData\":\"",
+            "\"quantity\":\"type\":\"ALTERNATING\",\"autofire\":true,\"slots\":[\"WS 001\",\"WS 002\"]",
+            "\"commandId\":\"handleAllFleetsSnapshot\",\"fleets\":[\"commandId\":\"handleFleetSnapshotRequest\"",
+            "\"commandId\":\"fleetSnapshot\",\"fleet\":\"commandId\":\"playerFleetUpdate\",\"fleetId\":\"",
+            "\"commandId\":\"globalFleetsUpdate\",\"updates\":{\"from\":\"User-\"to\":\"User-\"changes\":{",
+            "{\"id\":\"\",\"locationX\":\"locationY\":\"location\":\"\",\"factionId\":\"\",\"moveDestinationX\":",
+            "\"moveDestinationY\":\"isPlayerFleet\":false,\"isTransponderOn\":true,\"aiMode\":true,\"name\":\"",
+            "\"abilities\":{\"active\":false},\"cargo\":{},\"ships\":{",
+            "{\"id\":\"\",\"hull\":\"\",\"combatReadiness\":70,\"name\":\"ISS \",\"isMothballed\":false,\"fluxVents\":0,",
+            "\"fluxCapacitors\":0,\"isFlagShip\":false,\"hullMods\":{},\"sHullMods\":{},\"fittedWings\":{\"0\":\"",
+            "\"fittedGuns\":{},\"weaponGroups\":[{\"type\":\"LINKED\",\"autofire\":false,\"slots\":[\"WS0001\"]}],",
+            "\"captain\":{\"personId\":\"\",\"personalityId\":\"steady\",\"firstName\":\"\",\"lastName\":\"\",",
+            "\"gender\":\"MALE\",\"rank\":\"spaceCaptain\",\"post\":\"officer\",\"sprite\":\"graphics/portraits/\",",
+            "\"level\":1,\"isAiCore\":false,\"aiCoreId\":null,\"skills\":{}}}",
+            "\":[\"r\"],\":[\"a\",{\"id\":\"\":[\"a\",true],\":[\"x\",\":[\"s\",\"\":[\"s\","
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private WireCompression() {}
+
+    public static byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        ByteBuffer out = ByteBuffer.allocate(4 + length / 2 + 64);
+        out.putInt(length);
+        while (!deflater.finished()) {
+            if (!out.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            int written = deflater.deflate(out.array(), out.position(), out.remaining());
+            out.position(out.position() + written);
+        }
+        byte[] result = new byte[out.position()];
+        System.arraycopy(out.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    public static byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(data, offset, 4);
+        int rawLength = header.getInt();
+        if (rawLength < 0 || rawLength > Frame.MAX_PAYLOAD) {
+            throw new IOException("Invalid compressed length " + rawLength);
+        }
+        byte[] result = new byte[rawLength];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset + 4, length - 4);
+        try {
+            int read = 0;
+            while (read < rawLength) {
+                int count = inflater.inflate(result, read, rawLength - read);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Truncated compressed payload");
+                    }
+                }
+                read += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed payload", e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.utils.Quantization;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the relay server without the game, for a small always-on box.
+ * The classpath only needs the mod jar, json.jar and the log4j jar shipped with the game :
+ * java -cp multiplayer.jar:json.jar:log4j-1.2.9.jar matlabmaster.multiplayer.server.DedicatedServer --port=20603 --core=NIO --relay=TICK --positionSteps=8
+ * Every player joins it with "JOIN MODE", the first one to connect becomes the authority.
+ */
+public class DedicatedServer {
+    private static final int DEFAULT_PORT = 20603;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+            BasicConfigurator.configure(); // console output, the game usually configures log4j for us
+        }
+
+        int port = DEFAULT_PORT;
+        Server.Mode mode = Server.Mode.NIO;
+        Server.RelayMode relayMode = Server.RelayMode.IMMEDIATE;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--core=")) {
+                mode = Server.Mode.valueOf(arg.substring("--core=".length()).toUpperCase());
+            } else if (arg.startsWith("--relay=")) {
+                relayMode = Server.RelayMode.valueOf(arg.substring("--relay=".length()).toUpperCase());
+            } else if (arg.startsWith("--positionSteps=")) {
+                Quantization.setHostResolution(Integer.parseInt(arg.substring("--positionSteps=".length())), 0);
+            } else if (arg.startsWith("--crSteps=")) {
+                Quantization.setHostResolution(0, Integer.parseInt(arg.substring("--crSteps=".length())));
+            } else {
+                System.err.println("Usage: DedicatedServer [--port=" + DEFAULT_PORT + "] [--core=NIO|BLOCKING] [--relay=IMMEDIATE|TICK]"
+                        + " [--positionSteps=" + Quantization.DEFAULT_POSITION_STEPS + "] [--crSteps=" + Quantization.DEFAULT_CR_STEPS + "]");
+                System.exit(1);
+            }
+        }
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Server server = new Server(port);
+        server.setMode(mode);
+        server.setRelayMode(relayMode);
+        server.setListener(stopped::countDown);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "Server-Shutdown"));
+
+        server.start();
+        MultiplayerLog.log().info("Dedicated server running on port " + port + " (" + mode + " core, " + relayMode + " relay)");
+        stopped.await();
+    }
+}
@@ -0,0 +1,317 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.net.Frame;
+import matlabmaster.multiplayer.net.PositionDatagram;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import matlabmaster.multiplayer.utils.Quantization;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialized state of every fleet of the sector, rebuilt on the server from the updates it relays
+ * (fleetSnapshot, playerFleetUpdate, globalFleetsUpdate and the udp positions).
+ * Snapshot requests are answered from it instead of asking the authority or reading the game objects.
+ * Everything runs on a single applier thread so the network threads only enqueue the frames they already relay,
+ * the requests are queued on the same thread and always see the updates received before them.
+ * The udp relay only forwards the positions of a client's location, the latest positions of the other locations are
+ * sent from here every {@link InterestFilter#OUT_OF_INTEREST_INTERVAL_MS}, and all of a location's when a client enters it.
+ */
+class FleetStateCache implements Runnable {
+    private final Server server;
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Map<String, CachedFleet> fleets = new HashMap<>();
+    /** newest position tick received per sender, the positions sent from here are labelled with it */
+    private final Map<String, SenderTick> lastTicks = new HashMap<>();
+    /** the npc fleets are only known once the authority sent its first globalFleetsUpdate */
+    private boolean npcFleetsKnown = false;
+    private long lastPositionsRound = 0;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    private static final class CachedFleet {
+        final JSONObject state;
+        /** incremented on every applied update */
+        long version;
+        /** last udp position, with its sender and when it arrived */
+        PositionDatagram.Entry position;
+        String positionSender;
+        long positionReceivedAt;
+
+        CachedFleet(JSONObject state) {
+            this.state = state;
+        }
+    }
+
+    private static final class SenderTick {
+        final int seq;
+        final long sentAt;
+
+        SenderTick(int seq, long sentAt) {
+            this.seq = seq;
+            this.sentAt = sentAt;
+        }
+    }
+
+    FleetStateCache(Server server) {
+        this.server = server;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "Server-FleetCache");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+        tasks.clear();
+    }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setContextClassLoader(Server.class.getClassLoader());
+        try {
+            while (running) {
+                long wait = lastPositionsRound + InterestFilter.OUT_OF_INTEREST_INTERVAL_MS - System.currentTimeMillis();
+                Runnable task = wait > 0 ? tasks.poll(wait, TimeUnit.MILLISECONDS) : null;
+                try {
+                    if (task != null) {
+                        task.run();
+                    } else {
+                        sendOtherLocationsPositions();
+                    }
+                } catch (Exception e) {
+                    MultiplayerLog.log().error("Fleet cache : " + e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // server stopped
+        }
+    }
+
+    // --- updates, called from the network threads ---
+
+    /**
+     * Queues a relayed fleetSnapshot / playerFleetUpdate / globalFleetsUpdate, it is decoded on the applier thread
+     */
+    void submit(Frame frame) {
+        if (running) tasks.add(() -> apply(frame));
+    }
+
+    void submitPositions(byte[] datagram) {
+        if (running) tasks.add(() -> applyPositions(datagram));
+    }
+
+    void removeFleet(String fleetId) {
+        if (running) tasks.add(() -> fleets.remove(fleetId));
+    }
+
+    /**
+     * Sends the latest positions of a location to a client that just entered it, the udp relay held them back
+     * while it was elsewhere and the fleets that stopped won't send them again
+     */
+    void submitLocationEntered(String clientId, String location) {
+        if (running) tasks.add(() -> {
+            Server.ClientHandler handler = server.clients.get(clientId);
+            if (handler == null) return;
+            List<CachedFleet> moved = new ArrayList<>();
+            for (CachedFleet cached : fleets.values()) {
+                if (cached.position != null && !cached.positionSender.equals(clientId) && location.equals(cached.state.optString("location"))) {
+                    moved.add(cached);
+                }
+            }
+            sendPositions(handler, moved);
+        });
+    }
+
+    private void apply(Frame frame) {
+        try {
+            JSONObject json = new JSONObject(frame.text());
+            switch (json.getString("commandId")) {
+                case "fleetSnapshot":
+                    JSONObject fleet = json.getJSONObject("fleet");
+                    put(fleet.getString("id"), fleet);
+                    break;
+                case "playerFleetUpdate":
+                    applyFleetDiff(json.getString("fleetId"), json.getJSONObject("changes"));
+                    break;
+                case "globalFleetsUpdate":
+                    JSONObject updates = json.getJSONObject("updates");
+                    for (Iterator<?> it = updates.keys(); it.hasNext(); ) {
+                        String fleetId = (String) it.next();
+                        Object delta = updates.get(fleetId);
+                        if (!JsonDiffUtility.isInstruction(delta)) {
+                            applyFleetDiff(fleetId, (JSONObject) delta);
+                        } else if (JsonDiffUtility.REMOVE.equals(JsonDiffUtility.opOf(delta))) {
+                            fleets.remove(fleetId);
+                        } else {
+                            put(fleetId, (JSONObject) JsonDiffUtility.valueOf(delta));
+                        }
+                    }
+                    npcFleetsKnown = true;
+                    break;
+            }
+        } catch (Exception e) {
+            MultiplayerLog.log().error("Fleet cache failed to apply update : " + e.getMessage(), e);
+        }
+    }
+
+    private void put(String fleetId, JSONObject state) {
+        CachedFleet previous = fleets.get(fleetId);
+        CachedFleet cached = new CachedFleet(state);
+        cached.version = previous == null ? 1 : previous.version + 1;
+        fleets.put(fleetId, cached);
+    }
+
+    private void applyFleetDiff(String fleetId, JSONObject diff) throws JSONException {
+        CachedFleet cached = fleets.get(fleetId);
+        if (cached == null) {
+            // the first update of a fleet is a diff against nothing, it holds the whole state
+            cached = new CachedFleet(new JSONObject());
+            fleets.put(fleetId, cached);
+        }
+        JsonDiffUtility.applyDifferences(cached.state, diff);
+        cached.version++;
+    }
+
+    private void applyPositions(byte[] data) {
+        try {
+            PositionDatagram datagram = PositionDatagram.decode(data, 0, data.length);
+            SenderTick last = lastTicks.get(datagram.senderId);
+            if (last == null || datagram.seq - last.seq > 0) {
+                lastTicks.put(datagram.senderId, new SenderTick(datagram.seq, datagram.sentAt));
+            }
+            long now = System.currentTimeMillis();
+            for (PositionDatagram.Entry entry : datagram.entries) {
+                CachedFleet cached = fleets.get(entry.fleetId);
+                if (cached == null) continue;
+                cached.position = entry;
+                cached.positionSender = datagram.senderId;
+                cached.positionReceivedAt = now;
+                cached.state.put("locationX", Quantization.position(entry.x));
+                cached.state.put("locationY", Quantization.position(entry.y));
+                cached.state.put("moveDestinationX", Quantization.position(entry.destX));
+                cached.state.put("moveDestinationY", Quantization.position(entry.destY));
+                cached.version++;
+            }
+        } catch (Exception e) {
+            MultiplayerLog.log().warn("Fleet cache failed to apply positions : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends every client the positions that changed since the last round in the locations it isn't in.
+     * The authority and the clients with no known location already get every datagram from the relay
+     */
+    private void sendOtherLocationsPositions() {
+        long since = lastPositionsRound;
+        lastPositionsRound = System.currentTimeMillis();
+        List<CachedFleet> moved = new ArrayList<>();
+        for (CachedFleet cached : fleets.values()) {
+            if (cached.position != null && cached.positionReceivedAt > since) moved.add(cached);
+        }
+        if (moved.isEmpty()) return;
+        for (Server.ClientHandler handler : server.clients.values()) {
+            String location = handler.interest.getLocation();
+            if (handler == server.authority || location == null) continue;
+            List<CachedFleet> elsewhere = new ArrayList<>();
+            for (CachedFleet cached : moved) {
+                if (!cached.positionSender.equals(handler.clientId) && !location.equals(cached.state.optString("location"))) {
+                    elsewhere.add(cached);
+                }
+            }
+            sendPositions(handler, elsewhere);
+        }
+    }
+
+    /**
+     * Encodes the positions per sender and location, labelled with the sender's newest tick so the client's
+     * per fleet sequence check keeps accepting the sender's next datagrams
+     */
+    private void sendPositions(Server.ClientHandler handler, List<CachedFleet> cachedFleets) {
+        UdpRelay relay = server.getUdpRelay();
+        if (relay == null || cachedFleets.isEmpty()) return;
+        Map<String, List<PositionDatagram.Entry>> bySender = new LinkedHashMap<>();
+        Map<String, String[]> keys = new HashMap<>();
+        for (CachedFleet cached : cachedFleets) {
+            String location = cached.state.optString("location");
+            String key = cached.positionSender + "\n" + location;
+            keys.computeIfAbsent(key, k -> new String[]{cached.positionSender, location});
+            bySender.computeIfAbsent(key, k -> new ArrayList<>()).add(cached.position);
+        }
+        for (Map.Entry<String, List<PositionDatagram.Entry>> group : bySender.entrySet()) {
+            String[] senderAndLocation = keys.get(group.getKey());
+            SenderTick tick = lastTicks.get(senderAndLocation[0]);
+            if (tick == null) continue;
+            relay.send(handler, PositionDatagram.encode(senderAndLocation[0], senderAndLocation[1], tick.seq, tick.sentAt, group.getValue()));
+        }
+    }
+
+    /**
+     * A fleet is only complete once its snapshot or its first full diff went through
+     */
+    private static boolean isComplete(CachedFleet cached) {
+        return cached != null && cached.state.has("id") && cached.state.has("location");
+    }
+
+    // --- requests, answered on the applier thread ---
+
+    /**
+     * Answers requestAllFleetsSnapshot with every cached fleet except the requester's own one
+     * @param fallback run instead if the authority didn't send the npc fleets yet
+     */
+    void requestAllFleets(String clientId, Runnable fallback) {
+        tasks.add(() -> {
+            if (!npcFleetsKnown) {
+                fallback.run();
+                return;
+            }
+            try {
+                JSONArray snapshot = new JSONArray();
+                for (Map.Entry<String, CachedFleet> entry : fleets.entrySet()) {
+                    if (!entry.getKey().equals(clientId) && isComplete(entry.getValue())) {
+                        snapshot.put(entry.getValue().state);
+                    }
+                }
+                JSONObject packet = new JSONObject();
+                packet.put("commandId", "handleAllFleetsSnapshot");
+                packet.put("fleets", snapshot);
+                server.sendTo(clientId, packet.toString());
+            } catch (JSONException e) {
+                MultiplayerLog.log().error("Fleet cache failed to build the sector snapshot : " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Answers with a handleFleetSnapshotRequest if the fleet is cached
+     * @param fallback run instead if it isn't, usually relays the request
+     */
+    void requestFleet(String clientId, String fleetId, Runnable fallback) {
+        tasks.add(() -> {
+            CachedFleet cached = fleets.get(fleetId);
+            if (!isComplete(cached)) {
+                fallback.run();
+                return;
+            }
+            try {
+                JSONObject packet = new JSONObject();
+                packet.put("commandId", "handleFleetSnapshotRequest");
+                packet.put("to", clientId);
+                packet.put("version", cached.version);
+                packet.put("fleet", cached.state);
+                server.sendTo(clientId, packet.toString());
+            } catch (JSONException e) {
+                MultiplayerLog.log().error("Fleet cache failed to build snapshot of " + fleetId + " : " + e.getMessage(), e);
+            }
+        });
+    }
+}
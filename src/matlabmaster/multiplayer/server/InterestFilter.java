@@ -0,0 +1,191 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Per client filter of the relayed fleet updates based on the location of the client's player fleet.
+ * Updates about the client's location go through, the others are merged per key and only sent every
+ * {@link #OUT_OF_INTEREST_INTERVAL_MS}. When the client changes location the pending updates of its new location
+ * are sent right away as a catch-up, and the held updates whose key stayed quiet are flushed by {@link #takeDue}.
+ * Updates without a location (fleets appearing, disappearing or changing location) go through right away, the held
+ * updates about the same fleets are sent just before them so the client never applies an older state after a newer one.
+ * The udp positions are only relayed for the client's location, the fleet cache sends the latest positions of the
+ * other locations at the same rate (see {@link FleetStateCache}).
+ */
+class InterestFilter {
+    /** rate of the updates about the other locations, the client only sees them on the map */
+    static final long OUT_OF_INTEREST_INTERVAL_MS = 2000;
+
+    private String location;
+    private final Map<String, Pending> pendingByKey = new HashMap<>();
+    private final Map<String, Long> lastSentByKey = new HashMap<>();
+
+    private static final class Pending {
+        String location;
+        OutboundMessage message;
+        /** parsed form of the merged message, serialized again only when it is sent */
+        JSONObject merged;
+
+        Pending(String location, OutboundMessage message) {
+            this.location = location;
+            this.message = message;
+        }
+
+        OutboundMessage toMessage() {
+            return merged == null ? message : message.withText(merged.toString());
+        }
+    }
+
+    synchronized String getLocation() {
+        return location;
+    }
+
+    /**
+     * @param messageLocation location the update is about, empty if it concerns every location
+     * @param force send it whatever the location, along with what is pending for the same key
+     * @return the messages to send now in order, the last one possibly merged with the pending ones of its key,
+     * empty if it was held back
+     */
+    synchronized List<OutboundMessage> filter(String messageLocation, OutboundMessage message, boolean force) {
+        if (message.kind != OutboundMessage.Kind.LATEST) return Collections.singletonList(message);
+
+        List<OutboundMessage> toSend = new ArrayList<>(1);
+        if (messageLocation.isEmpty()) flushMentioned(message, toSend);
+
+        String key = message.coalesceKey;
+        Pending pending = pendingByKey.get(key);
+        boolean inInterest = force || messageLocation.isEmpty() || location == null || location.equals(messageLocation);
+        if (pending == null && inInterest) {
+            toSend.add(message);
+            return toSend;
+        }
+
+        long now = System.currentTimeMillis();
+        if (pending == null) {
+            pending = new Pending(messageLocation, message);
+            pendingByKey.put(key, pending);
+        } else {
+            JSONObject merged = OutboundQueue.merge(pending.merged, pending.message, message);
+            if (merged == null) {
+                // not mergeable, the held diff goes first and the newer one takes its place, dropping either would lose changes
+                toSend.add(pending.toMessage());
+                lastSentByKey.put(key, now);
+                pending = new Pending(messageLocation, message);
+                pendingByKey.put(key, pending);
+            } else {
+                pending.merged = merged;
+                pending.location = messageLocation;
+            }
+        }
+
+        Long lastSent = lastSentByKey.get(key);
+        if (inInterest || lastSent == null || now - lastSent >= OUT_OF_INTEREST_INTERVAL_MS) {
+            pendingByKey.remove(key);
+            lastSentByKey.put(key, now);
+            toSend.add(pending.toMessage());
+        }
+        return toSend;
+    }
+
+    /**
+     * Takes out the held updates whose key wasn't sent for {@link #OUT_OF_INTEREST_INTERVAL_MS}.
+     * Called periodically, a ship, cargo or CR change may never be followed by another update of its key
+     * @return the messages to send now
+     */
+    synchronized List<OutboundMessage> takeDue(long now) {
+        if (pendingByKey.isEmpty()) return Collections.emptyList();
+        List<OutboundMessage> due = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Pending>> it = pendingByKey.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Pending> entry = it.next();
+            Long lastSent = lastSentByKey.get(entry.getKey());
+            if (lastSent != null && now - lastSent < OUT_OF_INTEREST_INTERVAL_MS) continue;
+            due.add(entry.getValue().toMessage());
+            lastSentByKey.put(entry.getKey(), now);
+            it.remove();
+        }
+        return due;
+    }
+
+    /**
+     * @param positionLocation location of a position datagram's entries, empty for a keepalive
+     * @return true if the datagram is relayed to the client as it arrives
+     */
+    synchronized boolean wantsPositions(String positionLocation) {
+        return positionLocation.isEmpty() || location == null || location.equals(positionLocation);
+    }
+
+    /**
+     * Takes out the pending updates of other keys that mention a fleet of the message
+     */
+    private void flushMentioned(OutboundMessage message, List<OutboundMessage> toSend) {
+        if (pendingByKey.isEmpty()) return;
+        try {
+            JSONObject fleets = new JSONObject(message.text()).optJSONObject(message.diffField);
+            if (fleets == null || fleets.length() == 0) return;
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Pending>> it = pendingByKey.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Pending> entry = it.next();
+                Pending pending = entry.getValue();
+                if (entry.getKey().equals(message.coalesceKey) || !message.diffField.equals(pending.message.diffField)) continue;
+                JSONObject held = pending.merged != null ? pending.merged : new JSONObject(pending.message.text());
+                JSONObject heldFleets = held.optJSONObject(pending.message.diffField);
+                if (heldFleets == null || !mentionsAny(heldFleets, fleets)) continue;
+                toSend.add(pending.toMessage());
+                lastSentByKey.put(entry.getKey(), now);
+                it.remove();
+            }
+        } catch (JSONException e) {
+            MultiplayerLog.log().warn("Failed to read the fleets of " + message.coalesceKey + " : " + e.getMessage());
+        }
+    }
+
+    private static boolean mentionsAny(JSONObject held, JSONObject fleets) {
+        for (Iterator<?> it = fleets.keys(); it.hasNext(); ) {
+            if (held.has((String) it.next())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the client's new location
+     * @return the catch-up messages for the new location, empty if the location didn't change
+     */
+    synchronized List<OutboundMessage> moveTo(String newLocation) {
+        if (newLocation.isEmpty() || newLocation.equals(location)) return Collections.emptyList();
+        location = newLocation;
+
+        List<OutboundMessage> catchUp = new ArrayList<>();
+        for (Iterator<Pending> it = pendingByKey.values().iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            if (newLocation.equals(pending.location)) {
+                catchUp.add(pending.toMessage());
+                it.remove();
+            }
+        }
+        return catchUp;
+    }
+
+    /**
+     * @return every pending message, used when the client stops being filtered (it became the authority)
+     */
+    synchronized List<OutboundMessage> drainAll() {
+        List<OutboundMessage> all = new ArrayList<>(pendingByKey.size());
+        for (Pending pending : pendingByKey.values()) {
+            all.add(pending.toMessage());
+        }
+        pendingByKey.clear();
+        return all;
+    }
+
+    /**
+     * Drops what is pending for a key that won't be updated anymore (a player left)
+     */
+    synchronized void forget(String key) {
+        pendingByKey.remove(key);
+        lastSentByKey.remove(key);
+    }
+}
@@ -0,0 +1,246 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.net.FrameDecoder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non blocking network core for {@link Server}.
+ * One acceptor thread hands the accepted channels round-robin to a small fixed set of selector threads,
+ * each connection keeps its own read buffer and drains its outbound queue when the channel is writable.
+ * Frames are dispatched to {@link Server#processIncomingFrame} on the io thread owning the connection,
+ * exactly like the blocking core does on the client thread.
+ */
+class NioServerCore {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Server server;
+    private final int port;
+    private final IoLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private int nextLoop = 0;
+
+    NioServerCore(Server server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            new Thread(loops[i], "Server-NIO-IO-" + i).start();
+        }
+        new Thread(this::acceptLoop, "Server-NIO-Acceptor").start();
+    }
+
+    private void acceptLoop() {
+        Thread.currentThread().setContextClassLoader(Server.class.getClassLoader());
+        try {
+            while (server.isRunning && acceptSelector.isOpen()) {
+                acceptSelector.select();
+                if (!acceptSelector.isOpen()) break;
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    if (!server.isRunning) {
+                        channel.close();
+                        break;
+                    }
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+
+                    String clientId = "User-" + ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+                    IoLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+
+                    NioClientHandler handler = new NioClientHandler(channel, clientId, server, loop);
+                    server.registerClient(handler);
+                    loop.register(handler);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (server.isRunning) MultiplayerLog.log().error("Accept : " + e.getMessage());
+        }
+    }
+
+    void close() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+            if (acceptSelector != null) acceptSelector.close();
+        } catch (IOException e) {
+            // no need for logs here
+        }
+        for (IoLoop loop : loops) {
+            if (loop != null) loop.close();
+        }
+    }
+
+    /**
+     * Selector thread serving a subset of the connections
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioClientHandler> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(NioClientHandler handler) {
+            pendingRegistrations.add(handler);
+            selector.wakeup();
+        }
+
+        /**
+         * Interest ops are only ever changed from the io thread, other threads go through this queue
+         */
+        void requestWrite(NioClientHandler handler) {
+            pendingWrites.add(handler);
+            selector.wakeup();
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // no need for logs here
+            }
+        }
+
+        @Override
+        public void run() {
+            Thread.currentThread().setContextClassLoader(Server.class.getClassLoader());
+            try {
+                while (server.isRunning && selector.isOpen()) {
+                    selector.select();
+                    if (!selector.isOpen()) break;
+
+                    NioClientHandler handler;
+                    while ((handler = pendingRegistrations.poll()) != null) {
+                        try {
+                            handler.key = handler.channel.register(selector, SelectionKey.OP_READ, handler);
+                        } catch (ClosedChannelException e) {
+                            handler.onDisconnected();
+                        }
+                    }
+                    while ((handler = pendingWrites.poll()) != null) {
+                        handler.writeRequested.set(false);
+                        if (handler.key != null && handler.key.isValid()) {
+                            handler.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientHandler client = (NioClientHandler) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) client.onReadable();
+                            if (key.isValid() && key.isWritable()) client.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            // read error often due to brutal connexion lost
+                            client.onDisconnected();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (server.isRunning) MultiplayerLog.log().error("NIO io loop stopped : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connection state for one client served by an {@link IoLoop}
+     */
+    static final class NioClientHandler extends Server.ClientHandler {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final FrameDecoder decoder = new FrameDecoder();
+        /** frame of the message currently being written, survives partial writes */
+        private ByteBuffer currentWrite;
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+        private volatile boolean closed = false;
+
+        private NioClientHandler(SocketChannel channel, String clientId, Server server, IoLoop loop) {
+            super(clientId, server);
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        private void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                onDisconnected();
+                return;
+            }
+            readBuffer.flip();
+            decoder.feed(readBuffer, frame -> server.processIncomingFrame(clientId, frame));
+            readBuffer.clear();
+        }
+
+        private void onWritable() throws IOException {
+            while (true) {
+                if (currentWrite == null) {
+                    OutboundMessage message = outbound.poll();
+                    if (message == null) break;
+                    currentWrite = message.frame(compressionEnabled);
+                }
+                channel.write(currentWrite);
+                if (currentWrite.hasRemaining()) return; // socket buffer full, wait for the next OP_WRITE
+                currentWrite = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // a message may have been queued between the last poll and the interest change
+            if (!outbound.isEmpty()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        protected void onMessageQueued() {
+            if (!closed && writeRequested.compareAndSet(false, true)) loop.requestWrite(this);
+        }
+
+        @Override
+        protected InetAddress getRemoteAddress() {
+            return channel.socket().getInetAddress();
+        }
+
+        @Override
+        protected void onDisconnected() {
+            if (closed) return;
+            super.onDisconnected();
+        }
+
+        @Override
+        protected void closeTransport() {
+            closed = true;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Déjà fermé
+            }
+        }
+    }
+}
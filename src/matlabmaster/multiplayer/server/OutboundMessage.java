@@ -0,0 +1,105 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.net.Frame;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message waiting in a client's {@link OutboundQueue}.
+ * The same instance is shared by every recipient of a broadcast, it must stay immutable
+ * apart from the encoded frame and the decoded text which are computed once, when first needed.
+ */
+public final class OutboundMessage {
+    public enum Kind {
+        /** never dropped (authority changes, player join / leave and the joining fleet's snapshot, replies to a request) */
+        RELIABLE,
+        /** only the latest state matters, a queued message with the same key is merged with the new one */
+        LATEST,
+        /** may be dropped when the client can't keep up */
+        DROPPABLE
+    }
+
+    public final Kind kind;
+    /** identifies the messages that can be merged together, only set for {@link Kind#LATEST} */
+    public final String coalesceKey;
+    /** json field holding the diff to merge, only set for {@link Kind#LATEST} */
+    public final String diffField;
+    /** frame received from a client and forwarded as is, null for messages built from text */
+    private final Frame forwarded;
+    private volatile String text;
+    private volatile ByteBuffer encoded;
+    private volatile ByteBuffer encodedCompressed;
+
+    private OutboundMessage(Kind kind, String text, Frame forwarded, String coalesceKey, String diffField) {
+        this.kind = kind;
+        this.text = text;
+        this.forwarded = forwarded;
+        this.coalesceKey = coalesceKey;
+        this.diffField = diffField;
+    }
+
+    public static OutboundMessage reliable(String text) {
+        return new OutboundMessage(Kind.RELIABLE, text, null, null, null);
+    }
+
+    public static OutboundMessage droppable(String text) {
+        return new OutboundMessage(Kind.DROPPABLE, text, null, null, null);
+    }
+
+    public static OutboundMessage latest(String text, String coalesceKey, String diffField) {
+        return new OutboundMessage(Kind.LATEST, text, null, coalesceKey, diffField);
+    }
+
+    /**
+     * Relays a frame without decoding it, the recipients get the original bytes
+     */
+    public static OutboundMessage forward(Kind kind, Frame frame, String coalesceKey, String diffField) {
+        return new OutboundMessage(kind, null, frame, coalesceKey, diffField);
+    }
+
+    /**
+     * @return the json message, decoded from the forwarded frame on first use (only needed to merge it)
+     */
+    public String text() {
+        String result = text;
+        if (result == null) {
+            try {
+                result = forwarded.text();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            text = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param compressed whether the recipient negotiated compression
+     * @return a private view of the frame, encoded once per variant and shared by every recipient
+     */
+    public ByteBuffer frame(boolean compressed) {
+        ByteBuffer frame = compressed ? encodedCompressed : encoded;
+        if (frame == null) {
+            synchronized (this) {
+                frame = compressed ? encodedCompressed : encoded;
+                if (frame == null) {
+                    try {
+                        Frame source = forwarded != null ? forwarded : Frame.json(text);
+                        frame = (compressed ? source.compressed() : source.uncompressed()).encodeShared();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (compressed) encodedCompressed = frame;
+                    else encoded = frame;
+                }
+            }
+        }
+        return frame.duplicate();
+    }
+
+    OutboundMessage withText(String mergedText) {
+        return new OutboundMessage(kind, mergedText, null, coalesceKey, diffField);
+    }
+}
@@ -0,0 +1,138 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Bounded per client send queue drained by the client's writer.
+ * A slow client only delays itself : its pending fleet updates are merged into one message per fleet
+ * and droppable messages are discarded once the queue is full. Reliable messages are always kept.
+ */
+public class OutboundQueue {
+    private final int capacity;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Map<String, Entry> pendingByKey = new HashMap<>();
+    private long droppedCount = 0;
+    private long coalescedCount = 0;
+    private boolean closed = false;
+
+    private static final class Entry {
+        OutboundMessage message;
+        /** parsed form of a merged message, serialized again only when the writer takes it */
+        JSONObject merged;
+
+        Entry(OutboundMessage message) {
+            this.message = message;
+        }
+    }
+
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return false if the message was dropped or merged into an already queued one
+     */
+    public synchronized boolean offer(OutboundMessage message) {
+        if (closed) return false;
+        boolean unmergeable = false;
+        if (message.kind == OutboundMessage.Kind.LATEST) {
+            Entry pending = pendingByKey.get(message.coalesceKey);
+            if (pending != null) {
+                JSONObject merged = merge(pending.merged, pending.message, message);
+                if (merged != null) {
+                    pending.merged = merged;
+                    coalescedCount++;
+                    return false;
+                }
+                unmergeable = true; // queued on its own behind the older one, dropping it would lose the diff
+            }
+        }
+        if (!unmergeable && message.kind != OutboundMessage.Kind.RELIABLE && queue.size() >= capacity) {
+            droppedCount++;
+            return false;
+        }
+        Entry entry = new Entry(message);
+        queue.add(entry);
+        if (message.kind == OutboundMessage.Kind.LATEST) {
+            pendingByKey.put(message.coalesceKey, entry);
+        }
+        notifyAll();
+        return true;
+    }
+
+    public synchronized OutboundMessage poll() {
+        Entry entry = queue.poll();
+        if (entry == null) return null;
+        if (entry.message.kind == OutboundMessage.Kind.LATEST) {
+            pendingByKey.remove(entry.message.coalesceKey, entry);
+        }
+        if (entry.merged != null) {
+            return entry.message.withText(entry.merged.toString());
+        }
+        return entry.message;
+    }
+
+    /**
+     * Blocks until a message is available
+     * @return the next message or null once the queue is closed
+     */
+    public synchronized OutboundMessage take() throws InterruptedException {
+        while (queue.isEmpty() && !closed) {
+            wait();
+        }
+        return poll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        pendingByKey.clear();
+        notifyAll();
+    }
+
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Merges the diff of a {@link OutboundMessage.Kind#LATEST} message into an older one with the same key
+     * @param merged parsed form of the older message from a previous merge, null on the first one. Left untouched,
+     * the merge goes into a copy so a failure halfway can't leave part of the newer diff in it
+     * @return the parsed merged message, null if the messages can't be merged (the caller keeps both)
+     */
+    static JSONObject merge(JSONObject merged, OutboundMessage older, OutboundMessage newer) {
+        try {
+            merged = merged == null ? new JSONObject(older.text()) : JsonDiffUtility.copy(merged);
+            JSONObject newerJson = new JSONObject(newer.text());
+            JsonDiffUtility.mergeDifferences(merged.getJSONObject(newer.diffField), newerJson.getJSONObject(newer.diffField));
+            // the other fields (location, tick...) describe the newest message
+            for (Iterator<?> it = newerJson.keys(); it.hasNext(); ) {
+                String key = (String) it.next();
+                if (!key.equals(newer.diffField)) merged.put(key, newerJson.get(key));
+            }
+        } catch (Exception e) {
+            MultiplayerLog.log().error("Failed to merge queued " + newer.coalesceKey + " : " + e.getMessage());
+            return null;
+        }
+        return merged;
+    }
+}
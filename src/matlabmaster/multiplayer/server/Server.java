@@ -2,21 +2,58 @@ package matlabmaster.multiplayer.server;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 
-import com.fs.starfarer.api.Global;
 import matlabmaster.multiplayer.MultiplayerLog;
-import matlabmaster.multiplayer.UserError;
-import matlabmaster.multiplayer.utils.FleetHelper;
-import org.json.JSONArray;
+import matlabmaster.multiplayer.metrics.RttStats;
+import matlabmaster.multiplayer.net.Frame;
+import matlabmaster.multiplayer.net.RoutingHeader;
+import matlabmaster.multiplayer.net.WireCompression;
+import matlabmaster.multiplayer.utils.Quantization;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 public class Server {
+    /**
+     * Network core used to serve the clients.
+     * BLOCKING : one thread per client (original implementation)
+     * NIO : a small fixed set of selector threads shared by every client
+     */
+    public enum Mode { BLOCKING, NIO }
+
+    /**
+     * How the fleet updates are relayed.
+     * IMMEDIATE : each update is relayed as soon as it arrives
+     * TICK : updates are merged per fleet and sent once per server tick in a worldUpdate
+     */
+    public enum RelayMode { IMMEDIATE, TICK }
+
+    /** server ticks per second in {@link RelayMode#TICK}, same rate as the clients' updates */
+    public static final int TICK_RATE = 20;
+
+    private static final int NIO_IO_THREADS = 2;
+    /** pending messages per client before droppable ones are discarded */
+    public static final int OUTBOUND_QUEUE_CAPACITY = 256;
+    /** interval between two pings to every client */
+    private static final long PING_INTERVAL_MS = 1000;
+    /** the rtt of every client is logged once every this many pings */
+    private static final int RTT_LOG_PERIOD = 60;
+
     private int port;
-    private ServerSocket serverSocket;
+    private Mode mode = Mode.BLOCKING;
+    private RelayMode relayMode = RelayMode.IMMEDIATE;
+    private TickAggregator tickAggregator;
+    private ServerSocketChannel serverSocket;
+    private NioServerCore nioCore;
+    private volatile UdpRelay udpRelay;
+    private ScheduledExecutorService heartbeat;
+    private long heartbeats = 0;
+    /** replaced on every start, stays readable (and ignores the updates) once the server stopped */
+    private volatile FleetStateCache fleetCache = new FleetStateCache(this);
     public volatile boolean isRunning = false; // volatile to ensure visibility between threads
     public final ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
     private ExecutorService threadPool;
@@ -31,6 +68,22 @@ public class Server {
         this.port = port;
     }
 
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setRelayMode(RelayMode relayMode) {
+        this.relayMode = relayMode;
+    }
+
+    public RelayMode getRelayMode() {
+        return relayMode;
+    }
+
     public interface ServerListener{
         void onServerStopped();
     }
@@ -40,36 +93,42 @@ public class Server {
     }
 
     public void start() {
-        if(Objects.equals(Global.getCurrentState().toString(), "TITLE")){
-            throw new UserError("You cannot host a server while on the main menu, join any singleplayer game then try hosting");
-        }
         if (isRunning) return;
         isRunning = true;
+        fleetCache = new FleetStateCache(this);
+        fleetCache.start();
+        if (relayMode == RelayMode.TICK) {
+            tickAggregator = new TickAggregator(this, TICK_RATE);
+            tickAggregator.start();
+        }
+        startUdpRelay();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Server-Heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeat, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (mode == Mode.NIO) {
+            startNio();
+            return;
+        }
         threadPool = Executors.newCachedThreadPool();
 
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(port);
-                MultiplayerLog.log().info("Server started on port " + port);
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(port));
+                MultiplayerLog.log().info("Server started on port " + port + " (" + relayMode + " relay)");
 
                 while (isRunning) {
                     try {
-                        Socket socket = serverSocket.accept();
+                        SocketChannel socket = serverSocket.accept();
                         if (!isRunning) break; // safety if stop() is called on accept
 
-                        String clientId = "User-" + socket.getPort();
-                        ClientHandler handler = new ClientHandler(socket, clientId, this);
-                        clients.put(clientId, handler);
-                        JSONObject packet;
-
-                        MultiplayerLog.log().info("[JOINED] " + clientId + " is connected");
-                        try {
-                            packet = new JSONObject();
-                            packet.put("commandId","playerJoined");
-                            packet.put("id",clientId);
-                        }catch (Exception e){
-                            MultiplayerLog.log().error("failed to broadcast player joined");
-                        }
+                        socket.socket().setTcpNoDelay(true); // each frame is flushed on its own, don't let nagle hold them back
+                        String clientId = "User-" + socket.socket().getPort();
+                        SocketClientHandler handler = new SocketClientHandler(socket, clientId, this);
+                        registerClient(handler);
                         threadPool.execute(handler);
 
                     } catch (IOException e) {
@@ -84,6 +143,102 @@ public class Server {
         }, "Server-Main-Thread").start();
     }
 
+    private void startNio() {
+        try {
+            nioCore = new NioServerCore(this, port, NIO_IO_THREADS);
+            nioCore.start();
+            MultiplayerLog.log().info("Server started on port " + port + " (NIO, " + NIO_IO_THREADS + " io threads, " + relayMode + " relay)");
+        } catch (IOException e) {
+            MultiplayerLog.log().error("Port " + port + " unavailable.");
+            isRunning = false;
+            internalStop();
+        }
+    }
+
+    /**
+     * The udp side channel is optional, without it the clients keep sending their positions over tcp
+     */
+    private void startUdpRelay() {
+        try {
+            udpRelay = new UdpRelay(this, port);
+            new Thread(udpRelay, "Server-UDP-Relay").start();
+            MultiplayerLog.log().info("UDP position relay started on port " + udpRelay.getPort());
+        } catch (SocketException e) {
+            udpRelay = null;
+            MultiplayerLog.log().warn("UDP port " + port + " unavailable, positions stay on tcp : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pings every client, the pongs feed their {@link ClientHandler#getRtt()}.
+     * The same frame is shared by every client since it only carries the send time
+     */
+    private void sendHeartbeat() {
+        OutboundMessage ping = OutboundMessage.forward(OutboundMessage.Kind.RELIABLE, Frame.ping(System.nanoTime()), null, null);
+        for (ClientHandler handler : clients.values()) {
+            handler.send(ping);
+        }
+        if (tickAggregator == null) sendDueUpdates();
+        if (++heartbeats % RTT_LOG_PERIOD == 0) {
+            for (ClientHandler handler : clients.values()) {
+                MultiplayerLog.log().info(handler.clientId + " " + handler.getRtt());
+            }
+        }
+    }
+
+    /**
+     * Sends the updates the {@link InterestFilter}s held back for their interval, a quiet key never releases them itself.
+     * In {@link RelayMode#TICK} the {@link TickAggregator} does it at the end of its ticks
+     */
+    private void sendDueUpdates() {
+        long now = System.currentTimeMillis();
+        for (ClientHandler handler : clients.values()) {
+            if (handler == authority) continue;
+            // under the filter's lock so an update relayed meanwhile can't overtake the held one
+            synchronized (handler.interest) {
+                for (OutboundMessage message : handler.interest.takeDue(now)) {
+                    handler.send(message);
+                }
+            }
+        }
+    }
+
+    FleetStateCache getFleetCache() {
+        return fleetCache;
+    }
+
+    /**
+     * @return the udp relay, null if it couldn't be started
+     */
+    UdpRelay getUdpRelay() {
+        return udpRelay;
+    }
+
+    /**
+     * Called by the network cores once a connection is accepted, before any message is read from it
+     */
+    void registerClient(ClientHandler handler) {
+        clients.put(handler.clientId, handler);
+        JSONObject packet;
+
+        MultiplayerLog.log().info("[JOINED] " + handler.clientId + " is connected");
+        // the first client (or the first one after everybody left) becomes the authority
+        if (authority == null || !clients.containsValue(authority)) {
+            try {
+                authorityManager(this);
+            } catch (JSONException e) {
+                MultiplayerLog.log().error("Failed to assign authority to " + handler.clientId + " : " + e.getMessage(), e);
+            }
+        }
+        try {
+            packet = new JSONObject();
+            packet.put("commandId","playerJoined");
+            packet.put("id",handler.clientId);
+        }catch (Exception e){
+            MultiplayerLog.log().error("failed to broadcast player joined");
+        }
+    }
+
     public synchronized void stop() {
         if (!isRunning) return;
         isRunning = false;
@@ -93,10 +248,15 @@ public class Server {
 
     private synchronized void internalStop() {
         // do nothing because server is already stopped
-        if (serverSocket == null || serverSocket.isClosed()) return;
+        if ((serverSocket == null || !serverSocket.isOpen()) && nioCore == null) return;
 
         try {
-            serverSocket.close();
+            if (serverSocket != null) serverSocket.close();
+            if (nioCore != null) nioCore.close();
+            if (udpRelay != null) udpRelay.close();
+            if (fleetCache != null) fleetCache.stop();
+            if (tickAggregator != null) tickAggregator.stop();
+            if (heartbeat != null) heartbeat.shutdownNow();
             for (ClientHandler handler : clients.values()) {
                 handler.closeConnection();
             }
@@ -112,7 +272,120 @@ public class Server {
             // no need for logs here
         } finally {
             serverSocket = null; // Important avoids double logging
+            nioCore = null;
+            udpRelay = null;
+            tickAggregator = null;
+            heartbeat = null;
+        }
+    }
+
+    /**
+     * Entry point of the network cores for every frame read from a client
+     */
+    public void processIncomingFrame(String clientId, Frame frame) {
+        try {
+            switch (frame.baseType()) {
+                case Frame.TYPE_JSON:
+                    processIncomingMessage(clientId, frame.text());
+                    break;
+                case Frame.TYPE_ROUTED:
+                    RoutingHeader header = RoutingHeader.read(frame.payload);
+                    if (!routeFromHeader(clientId, header, frame)) {
+                        processIncomingMessage(clientId, frame.text());
+                    }
+                    break;
+                case Frame.TYPE_PING:
+                    ClientHandler pinging = clients.get(clientId);
+                    if (pinging != null) pinging.send(OutboundMessage.forward(OutboundMessage.Kind.RELIABLE, frame.pong(), null, null));
+                    break;
+                case Frame.TYPE_PONG:
+                    ClientHandler ponging = clients.get(clientId);
+                    if (ponging != null) ponging.rtt.record((System.nanoTime() - frame.timestamp()) / 1_000_000d);
+                    break;
+                default:
+                    MultiplayerLog.log().warn("Unknown frame type " + frame.type + " from " + clientId + ", skipped " + frame.payload.length + " bytes");
+                    break;
+            }
+        } catch (IOException e) {
+            MultiplayerLog.log().error("Malformed frame from " + clientId + " : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fast path for the relay-only commands : the json body is never parsed, the original frame is forwarded.
+     * @return false if the command needs the full {@link #processIncomingMessage} handling
+     */
+    private boolean routeFromHeader(String clientId, RoutingHeader header, Frame frame) {
+        switch (header.commandId) {
+            case "playerFleetUpdate":
+                fleetCache.submit(frame);
+                // a client only ever updates its own fleet, its id is the client id
+                relayFleetUpdate(clientId, header.location, true, OutboundMessage.forward(OutboundMessage.Kind.LATEST, frame, "playerFleetUpdate:" + clientId, "changes"));
+                return true;
+            case "fleetSnapshot":
+                fleetCache.submit(frame);
+                moveClient(clientId, header.location);
+                // sent once per join, a dropped snapshot would leave the fleet unknown until it changes
+                broadcastExcept(clientId, OutboundMessage.forward(OutboundMessage.Kind.RELIABLE, frame, null, null));
+                return true;
+            case "globalFleetsUpdate":
+                fleetCache.submit(frame);
+                relayFleetUpdate(clientId, header.location, false, OutboundMessage.forward(OutboundMessage.Kind.LATEST, frame, "globalFleetsUpdate:" + header.location, "updates"));
+                return true;
+            case "handleAllFleetsSnapshot":
+            case "handleFleetSnapshotRequest":
+            case "handleOrbitSnapshotForLocation":
+            case "handleServerTime":
+                sendTo(header.to, OutboundMessage.forward(OutboundMessage.Kind.RELIABLE, frame, null, null));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Relays a fleet update to the other clients through their {@link InterestFilter}.
+     * The authority is never filtered since it simulates the npc fleets around every player.
+     * @param senderLocation the location is the one of the sender's own fleet, a change is sent to everyone
+     */
+    private void relayFleetUpdate(String senderId, String location, boolean senderLocation, OutboundMessage message) {
+        boolean moved = senderLocation && moveClient(senderId, location);
+        TickAggregator aggregator = tickAggregator;
+        if (aggregator != null) {
+            aggregator.submit(senderId, location, moved, message);
+            return;
+        }
+        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
+            if (entry.getKey().equals(senderId)) continue;
+            for (OutboundMessage filtered : filterFor(entry.getValue(), location, message, moved)) {
+                entry.getValue().send(filtered);
+            }
+        }
+    }
+
+    /**
+     * @return the updates to send to this recipient now in order, empty if its {@link InterestFilter} holds it back
+     */
+    List<OutboundMessage> filterFor(ClientHandler recipient, String location, OutboundMessage message, boolean force) {
+        if (recipient == authority) return Collections.singletonList(message);
+        return recipient.interest.filter(location, message, force);
+    }
+
+    /**
+     * Tracks the location of a client's player fleet and sends it the catch-up for its new location
+     * @return true if the client changed location
+     */
+    private boolean moveClient(String clientId, String location) {
+        ClientHandler handler = clients.get(clientId);
+        if (handler == null || location.isEmpty()) return false;
+        String previous = handler.interest.getLocation();
+        List<OutboundMessage> catchUp = handler.interest.moveTo(location);
+        for (OutboundMessage message : catchUp) {
+            handler.send(message);
         }
+        boolean moved = previous != null && !previous.equals(location);
+        if (moved && handler != authority) fleetCache.submitLocationEntered(clientId, location);
+        return moved;
     }
 
     public void processIncomingMessage(String clientId, String message) {
@@ -127,33 +400,44 @@ public class Server {
             JSONObject packet = new JSONObject();
             // 3. Dispatcher
             switch (commandId) {
+                case "hello":
+                    ClientHandler handler = clients.get(clientId);
+                    if (handler == null) break;
+                    handler.compressionEnabled = WireCompression.ALGORITHM.equals(json.optString("compression"));
+                    packet.put("commandId", "helloAck");
+                    if (handler.compressionEnabled) packet.put("compression", WireCompression.ALGORITHM);
+                    packet.put("positionSteps", Quantization.getHostPositionSteps());
+                    packet.put("crSteps", Quantization.getHostCrSteps());
+                    UdpRelay relay = udpRelay;
+                    if (relay != null && json.optBoolean("udp")) packet.put("udpPort", relay.getPort());
+                    handler.sendMessage(packet.toString());
+                    break;
                 case "playerFleetUpdate":
-                    broadcastExcept(clientId, message);
+                    fleetCache.submit(Frame.json(message));
+                    relayFleetUpdate(clientId, json.optString("location"), true, OutboundMessage.latest(message, "playerFleetUpdate:" + json.getString("fleetId"), "changes"));
                     break;
                 case "requestAllFleetsSnapshot":
-                    JSONArray fleetsSnapshot = FleetHelper.getFleetsSnapshot();
-
-                    packet.put("commandId", "handleAllFleetsSnapshot");
-                    packet.put("fleets",fleetsSnapshot);
-                    sendTo(clientId, String.valueOf(packet));
+                    fleetCache.requestAllFleets(clientId, () -> relayFleetsSnapshotRequest(clientId));
                     break;
                 case "fleetSnapshot":
-                    //noinspection DuplicateBranchesInSwitch
-                    broadcastExcept(clientId, message);
+                    fleetCache.submit(Frame.json(message));
+                    moveClient(clientId, json.optString("location"));
+                    broadcastExcept(clientId, OutboundMessage.reliable(message));
                     break;
                 case "globalFleetsUpdate":
-                    //noinspection DuplicateBranchesInSwitch
-                    broadcastExcept(clientId, message);
+                    fleetCache.submit(Frame.json(message));
+                    relayFleetUpdate(clientId, json.optString("location"), false, OutboundMessage.latest(message, "globalFleetsUpdate:" + json.optString("location"), "updates"));
                     break;
                 case "requestFleetSnapshot":
                     packet.put("commandId","requestFleetSnapshot");
                     packet.put("from",clientId);
                     packet.put("fleetId",json.getString("fleetId"));
-                    authority.sendMessage(packet.toString());
-                    //relay request to authority client
-                    //send back reply to original asker
+                    //answered from the cache, otherwise relay request to authority client
+                    //which sends back the reply to original asker
+                    fleetCache.requestFleet(clientId, json.getString("fleetId"), () -> relayFleetSnapshotRequest(clientId, packet));
                     break;
                 case "handleFleetSnapshotRequest":
+                case "handleAllFleetsSnapshot":
                     sendTo(json.getString("to"),json.toString());
                     break;
                 case "paused":
@@ -168,8 +452,9 @@ public class Server {
                     MultiplayerLog.log().info("client " + clientId + " has unpaused");
                     break;
                 case "requestPlayerFleetSnapshot":
-                    //relay the information to concerned client
-                    clients.get(json.getString("to")).sendMessage(json.toString());
+                    //a player fleet id is its client id, answered from the cache or relayed to the concerned client
+                    String owner = json.getString("to");
+                    fleetCache.requestFleet(clientId, owner, () -> sendTo(owner, json.toString()));
                     break;
                 case "requestOrbitSnapshotForLocation":
                     authority.sendMessage(json.toString());
@@ -193,6 +478,38 @@ public class Server {
         }
     }
 
+    /**
+     * Fallback of requestAllFleetsSnapshot until the authority sent the npc fleets to the cache,
+     * the authority serializes its sector and answers with a handleAllFleetsSnapshot addressed to the client
+     */
+    private void relayFleetsSnapshotRequest(String clientId) {
+        try {
+            ClientHandler currentAuthority = authority;
+            if (currentAuthority == null || !clients.containsValue(currentAuthority)) {
+                MultiplayerLog.log().warn("No authority to answer the fleets snapshot request of " + clientId);
+                return;
+            }
+            JSONObject packet = new JSONObject();
+            packet.put("commandId", "requestAllFleetsSnapshot");
+            packet.put("from", clientId);
+            currentAuthority.sendMessage(packet.toString());
+        } catch (JSONException e) {
+            MultiplayerLog.log().error("Failed to relay fleets snapshot request of " + clientId + " : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Called on the cache thread when the fleet isn't cached, the authority may have left in the meantime
+     */
+    private void relayFleetSnapshotRequest(String clientId, JSONObject packet) {
+        ClientHandler currentAuthority = authority;
+        if (currentAuthority == null || !clients.containsValue(currentAuthority)) {
+            MultiplayerLog.log().warn("No authority to answer the fleet snapshot request of " + clientId);
+            return;
+        }
+        currentAuthority.sendMessage(packet.toString());
+    }
+
     private void authorityManager(Server server) throws JSONException {
         //if this method was called this means that the authority paused / left
         //to ensure smooth gameplay across clients a new authority must be set so that updates keep flowing
@@ -209,9 +526,9 @@ public class Server {
         
         for (ClientHandler client : server.clients.values()){
             lastClient = client;
-            if(!client.isPaused){
+            // among the unpaused clients the one with the best link relays the npc fleets with the least delay
+            if(!client.isPaused && (newAuthority == null || client.rttForElection() < newAuthority.rttForElection())){
                 newAuthority = client;
-                break; // Found an unpaused client, use them as authority
             }
         }
         
@@ -222,7 +539,7 @@ public class Server {
                 return;
             } else {
                 // Authority was removed, set to last client (or null if no clients)
-                // If no clients remain, authority will be null (handled by ServerScripts)
+                // If no clients remain, authority will be null until the next client registers
                 authority = lastClient;
             }
         } else {
@@ -238,71 +555,189 @@ public class Server {
             JSONObject packet = new JSONObject();
             packet.put("commandId","youAreAuthority");
             authority.sendMessage(packet.toString());
+            // the authority isn't filtered anymore, it needs what was held back
+            for (OutboundMessage message : authority.interest.drainAll()) {
+                authority.send(message);
+            }
         }
     }
 
     // --- INNER CLASS : GESTIONNAIRE DE CLIENT ---
 
-    public class ClientHandler implements Runnable {
-        private final Socket socket;
-        private final String clientId;
-        private PrintWriter out;
-        private final Server server;
+    /**
+     * Server side view of a connected client, independent of the network core serving it.
+     */
+    public abstract static class ClientHandler {
+        protected final String clientId;
+        protected final Server server;
+        protected final OutboundQueue outbound = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY);
         public boolean isPaused;
-
-        public ClientHandler(Socket socket, String clientId, Server server) {
-            this.socket = socket;
+        /** set by the hello handshake once the client announced it can read compressed frames */
+        protected volatile boolean compressionEnabled = false;
+        /** holds back the fleet updates about other locations than the client's one */
+        final InterestFilter interest = new InterestFilter();
+        /** where the client receives position datagrams, null until the {@link UdpRelay} got one from it */
+        volatile InetSocketAddress udpAddress;
+        /** fed by the server heartbeat */
+        final RttStats rtt = new RttStats();
+
+        protected ClientHandler(String clientId, Server server) {
             this.clientId = clientId;
             this.server = server;
         }
 
-        @Override
-        public void run() {
-            Thread.currentThread().setContextClassLoader(Server.class.getClassLoader());
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
-                this.out = new PrintWriter(socket.getOutputStream(), true);
-
-                String input;
-                // La boucle s'arrête si le client coupe (input == null) OU si le serveur s'arrête
-                while (server.isRunning && (input = in.readLine()) != null) {
-                    server.processIncomingMessage(clientId, input);
-                }
-            } catch (IOException e) {
-                // read error often due to brutal connexion lost
-            } finally {
-                closeConnection();
-                JSONObject packet = new JSONObject();
-                try {
-                    packet.put("commandId","playerLeft");
-                    packet.put("id",clientId);
-                    broadcast(String.valueOf(packet));
-                }catch (Exception e){
-                    MultiplayerLog.log().error("Failed to broadcast playerLeft of leaving player", e);
-                }
-            }
+        public String getClientId() {
+            return clientId;
         }
 
         public void sendMessage(String msg) {
-            if (out != null && !socket.isClosed()) {
-                out.println(msg);
+            send(OutboundMessage.reliable(msg));
+        }
+
+        /**
+         * Queues the message for this client's writer, never blocks on the network
+         */
+        public void send(OutboundMessage message) {
+            if (outbound.offer(message)) {
+                onMessageQueued();
             }
         }
 
+        /**
+         * Called after a message was added to the outbound queue, lets the core wake its writer
+         */
+        protected abstract void onMessageQueued();
+
+        public int getQueueDepth() {
+            return outbound.getDepth();
+        }
+
+        public long getDroppedCount() {
+            return outbound.getDroppedCount();
+        }
+
+        public long getCoalescedCount() {
+            return outbound.getCoalescedCount();
+        }
+
+        public RttStats getRtt() {
+            return rtt;
+        }
+
+        /** a client not measured yet comes after the measured ones */
+        private double rttForElection() {
+            return rtt.hasSamples() ? rtt.getSmoothed() : Double.MAX_VALUE;
+        }
+
+        /**
+         * @return the ip of the tcp connection, udp datagrams claiming this client must come from it
+         */
+        protected abstract InetAddress getRemoteAddress();
+
+        /**
+         * Closes the underlying socket / channel, must be safe to call several times
+         */
+        protected abstract void closeTransport();
+
         public void closeConnection() {
             boolean wasAuthority = (this == server.authority);
-            clients.remove(clientId);
+            server.clients.remove(clientId);
+            outbound.close();
             
             // If the authority disconnected, reassign authority
             if (wasAuthority) {
                 try {
-                    authorityManager(server);
+                    server.authorityManager(server);
                 } catch (JSONException e) {
                     MultiplayerLog.log().error("Failed to reassign authority after disconnect: " + e.getMessage(), e);
                 }
             }
-            
+
+            closeTransport();
+        }
+
+        /**
+         * Called by the network core once the connection is lost
+         */
+        protected void onDisconnected() {
+            closeConnection();
+            server.fleetCache.removeFleet(clientId);
+            for (ClientHandler handler : server.clients.values()) {
+                handler.interest.forget("playerFleetUpdate:" + clientId);
+            }
+            JSONObject packet = new JSONObject();
+            try {
+                packet.put("commandId","playerLeft");
+                packet.put("id",clientId);
+                server.broadcast(String.valueOf(packet));
+            }catch (Exception e){
+                MultiplayerLog.log().error("Failed to broadcast playerLeft of leaving player", e);
+            }
+        }
+    }
+
+    /**
+     * Thread per client handler, used by {@link Mode#BLOCKING}.
+     * Reads on the handler thread and writes on a dedicated writer thread draining the outbound queue,
+     * the channel stays in blocking mode so the shared broadcast frames can be written without copying them.
+     */
+    public static class SocketClientHandler extends ClientHandler implements Runnable {
+        private final SocketChannel socket;
+        private Thread writer;
+
+        public SocketClientHandler(SocketChannel socket, String clientId, Server server) {
+            super(clientId, server);
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            Thread.currentThread().setContextClassLoader(Server.class.getClassLoader());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.socket().getInputStream()))) {
+                writer = new Thread(this::writeLoop, "Server-Writer-" + clientId);
+                writer.setDaemon(true);
+                writer.start();
+
+                Frame input;
+                // La boucle s'arrête si le client coupe (input == null) OU si le serveur s'arrête
+                while (server.isRunning && (input = Frame.readFrom(in)) != null) {
+                    server.processIncomingFrame(clientId, input);
+                }
+            } catch (IOException e) {
+                // read error often due to brutal connexion lost
+            } finally {
+                onDisconnected();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                OutboundMessage message;
+                while ((message = outbound.take()) != null) {
+                    ByteBuffer frame = message.frame(compressionEnabled);
+                    while (frame.hasRemaining()) {
+                        socket.write(frame);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the reading thread will notice the connection loss
+            }
+        }
+
+        @Override
+        protected void onMessageQueued() {
+            // the writer thread is waiting on the queue
+        }
+
+        @Override
+        protected InetAddress getRemoteAddress() {
+            return socket.socket().getInetAddress();
+        }
+
+        @Override
+        protected void closeTransport() {
             try {
-                if (socket != null && !socket.isClosed()) {
+                if (socket != null && socket.isOpen()) {
                     socket.close();
                 }
             } catch (IOException e) {
@@ -311,24 +746,36 @@ public class Server {
         }
     }
 
+    /**
+     * Broadcasts share a single {@link OutboundMessage}, its frame is encoded once for every recipient
+     */
     public void broadcast(String message) {
+        OutboundMessage outboundMessage = OutboundMessage.reliable(message);
         for (ClientHandler handler : clients.values()) {
-            handler.sendMessage(message);
+            handler.send(outboundMessage);
         }
     }
 
     public void broadcastExcept(String senderId, String message) {
+        broadcastExcept(senderId, OutboundMessage.reliable(message));
+    }
+
+    public void broadcastExcept(String senderId, OutboundMessage message) {
         for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
             if (!entry.getKey().equals(senderId)) {
-                entry.getValue().sendMessage(message);
+                entry.getValue().send(message);
             }
         }
     }
 
     public void sendTo(String clientId, String message) {
+        sendTo(clientId, OutboundMessage.reliable(message));
+    }
+
+    public void sendTo(String clientId, OutboundMessage message) {
         ClientHandler handler = clients.get(clientId);
         if (handler != null) {
-            handler.sendMessage(message);
+            handler.send(message);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Fixed rate relay used by {@link Server.RelayMode#TICK}.
+ * The fleet updates received during a tick are merged per fleet (per coalesce key), at the end of the tick
+ * every client gets a single worldUpdate carrying the tick number and the updates it is interested in.
+ * A client whose previous frames are still queued keeps its updates for the next tick, merged with the new ones,
+ * so a slow client never has more than one worldUpdate waiting.
+ */
+class TickAggregator implements Runnable {
+    private final Server server;
+    private final long tickMillis;
+    private volatile boolean running = false;
+    private Thread thread;
+    private long tick = 0;
+
+    /** updates received during the current tick, by coalesce key */
+    private LinkedHashMap<String, Entry> incoming = new LinkedHashMap<>();
+    /** updates not sent yet per client, only touched by the tick thread */
+    private final Map<String, LinkedHashMap<String, Entry>> carried = new HashMap<>();
+
+    private static final class Entry {
+        final String senderId;
+        final String location;
+        boolean force;
+        OutboundMessage message;
+        /** parsed form of the merged message, serialized again when the tick ends */
+        JSONObject merged;
+        /** older updates of the key that couldn't be merged, sent before this one */
+        List<OutboundMessage> earlier;
+
+        Entry(String senderId, String location, boolean force, OutboundMessage message) {
+            this.senderId = senderId;
+            this.location = location;
+            this.force = force;
+            this.message = message;
+        }
+
+        void merge(OutboundMessage newer, boolean newerForce) {
+            JSONObject result = OutboundQueue.merge(merged, message, newer);
+            if (result == null) {
+                // not mergeable, the older diff is kept ahead of the newer one, dropping either would lose changes
+                if (earlier == null) earlier = new ArrayList<>(1);
+                earlier.add(toMessage());
+                message = newer;
+                merged = null;
+            } else {
+                merged = result;
+            }
+            force |= newerForce;
+        }
+
+        OutboundMessage toMessage() {
+            return merged == null ? message : message.withText(merged.toString());
+        }
+
+        /**
+         * @return the messages of the key in order, usually only {@link #toMessage}
+         */
+        List<OutboundMessage> toMessages() {
+            if (earlier == null) return Collections.singletonList(toMessage());
+            List<OutboundMessage> messages = new ArrayList<>(earlier);
+            messages.add(toMessage());
+            return messages;
+        }
+    }
+
+    TickAggregator(Server server, int ticksPerSecond) {
+        this.server = server;
+        this.tickMillis = 1000L / ticksPerSecond;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "Server-Tick");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * Collects a fleet update until the end of the tick, called from the network threads
+     * @param force sent whatever the recipient's location (see {@link InterestFilter#filter})
+     */
+    synchronized void submit(String senderId, String location, boolean force, OutboundMessage message) {
+        Entry entry = incoming.get(message.coalesceKey);
+        if (entry == null) {
+            incoming.put(message.coalesceKey, new Entry(senderId, location, force, message));
+        } else {
+            entry.merge(message, force);
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setContextClassLoader(Server.class.getClassLoader());
+        long next = System.currentTimeMillis() + tickMillis;
+        while (running) {
+            try {
+                long wait = next - System.currentTimeMillis();
+                if (wait > 0) Thread.sleep(wait);
+                next += tickMillis;
+                endTick();
+            } catch (InterruptedException e) {
+                return; // server stopped
+            } catch (Exception e) {
+                MultiplayerLog.log().error("Server tick failed : " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void endTick() {
+        LinkedHashMap<String, Entry> updates;
+        synchronized (this) {
+            updates = incoming;
+            incoming = new LinkedHashMap<>();
+        }
+        tick++;
+        carried.keySet().retainAll(server.clients.keySet());
+
+        // serialize the merged updates once, they are shared by every recipient
+        List<Entry> resolved = new ArrayList<>(updates.size());
+        for (Entry update : updates.values()) {
+            for (OutboundMessage message : update.toMessages()) {
+                resolved.add(new Entry(update.senderId, update.location, update.force, message));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Server.ClientHandler recipient : server.clients.values()) {
+            LinkedHashMap<String, Entry> pending = carried.computeIfAbsent(recipient.clientId, k -> new LinkedHashMap<>());
+            // held by the filter for its interval, a quiet key never releases them itself
+            for (OutboundMessage message : recipient.interest.takeDue(now)) {
+                carry(pending, "", "", false, message);
+            }
+            for (Entry update : resolved) {
+                if (update.senderId.equals(recipient.clientId)) continue;
+                for (OutboundMessage message : server.filterFor(recipient, update.location, update.message, update.force)) {
+                    carry(pending, update.senderId, update.location, update.force, message);
+                }
+            }
+            if (pending.isEmpty() || recipient.getQueueDepth() > 0) continue;
+
+            recipient.send(OutboundMessage.reliable(worldUpdate(pending.values())));
+            pending.clear();
+        }
+    }
+
+    private static void carry(LinkedHashMap<String, Entry> pending, String senderId, String location, boolean force, OutboundMessage message) {
+        Entry previous = pending.get(message.coalesceKey);
+        if (previous == null) {
+            pending.put(message.coalesceKey, new Entry(senderId, location, force, message));
+        } else {
+            previous.merge(message, force);
+        }
+    }
+
+    /**
+     * The updates are embedded as they are, the client dispatches each of them like a standalone message
+     */
+    private String worldUpdate(Collection<Entry> entries) {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("{\"commandId\":\"worldUpdate\",\"tick\":").append(tick).append(",\"updates\":[");
+        boolean first = true;
+        for (Entry entry : entries) {
+            for (OutboundMessage message : entry.toMessages()) {
+                if (!first) builder.append(',');
+                builder.append(message.text());
+                first = false;
+            }
+        }
+        return builder.append("]}").toString();
+    }
+}
@@ -0,0 +1,120 @@
+package matlabmaster.multiplayer.server;
+
+import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.net.Frame;
+import matlabmaster.multiplayer.net.PositionDatagram;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Relays the {@link PositionDatagram}s of the udp side channel, bound on the same port number as the tcp server.
+ * A client's udp address is learned from its datagrams (keepalives included) and only accepted from the ip of its tcp connection.
+ * Clients the relay can't reach over udp get the same bytes in a {@link Frame#TYPE_POSITIONS} frame on their tcp connection.
+ * A datagram is only relayed to the clients in its location (and the authority), the {@link FleetStateCache} sends the
+ * other locations every {@link InterestFilter#OUT_OF_INTEREST_INTERVAL_MS}.
+ */
+class UdpRelay implements Runnable {
+    private final Server server;
+    private final DatagramSocket socket;
+
+    UdpRelay(Server server, int port) throws SocketException {
+        this.server = server;
+        this.socket = new DatagramSocket(port);
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[PositionDatagram.MAX_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (server.isRunning && !socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                relay(packet);
+            } catch (IOException e) {
+                if (server.isRunning && !socket.isClosed()) MultiplayerLog.log().warn("UDP relay : " + e.getMessage());
+            }
+        }
+    }
+
+    private void relay(DatagramPacket packet) throws IOException {
+        byte[] data = packet.getData();
+        int length = packet.getLength();
+        PositionDatagram.Header header;
+        try {
+            header = PositionDatagram.readHeader(data, packet.getOffset(), length);
+        } catch (IOException e) {
+            return; // not ours
+        }
+        String senderId = header.senderId;
+        Server.ClientHandler sender = server.clients.get(senderId);
+        InetSocketAddress source = (InetSocketAddress) packet.getSocketAddress();
+        if (sender == null || !source.getAddress().equals(sender.getRemoteAddress())) return;
+
+        if (!source.equals(sender.udpAddress)) {
+            boolean first = sender.udpAddress == null;
+            sender.udpAddress = source;
+            if (first) {
+                try {
+                    JSONObject ready = new JSONObject();
+                    ready.put("commandId", "udpReady");
+                    sender.sendMessage(ready.toString());
+                } catch (Exception e) {
+                    MultiplayerLog.log().error("Failed to confirm udp channel to " + senderId, e);
+                }
+            }
+        }
+        if (header.count == 0) return;
+
+        byte[] datagram = Arrays.copyOfRange(data, packet.getOffset(), packet.getOffset() + length);
+        server.getFleetCache().submitPositions(datagram);
+        OutboundMessage overTcp = null;
+        for (Server.ClientHandler handler : server.clients.values()) {
+            if (handler == sender) continue;
+            if (handler != server.authority && !handler.interest.wantsPositions(header.location)) continue;
+            InetSocketAddress target = handler.udpAddress;
+            if (target == null && overTcp == null) {
+                overTcp = OutboundMessage.forward(OutboundMessage.Kind.DROPPABLE, new Frame(Frame.TYPE_POSITIONS, datagram), null, null);
+            }
+            send(handler, target, datagram, overTcp);
+        }
+    }
+
+    /**
+     * Sends datagrams built by the server (see {@link FleetStateCache}), over tcp for the clients without udp
+     */
+    void send(Server.ClientHandler handler, List<byte[]> datagrams) {
+        InetSocketAddress target = handler.udpAddress;
+        for (byte[] datagram : datagrams) {
+            OutboundMessage overTcp = target != null ? null : OutboundMessage.forward(OutboundMessage.Kind.DROPPABLE, new Frame(Frame.TYPE_POSITIONS, datagram), null, null);
+            send(handler, target, datagram, overTcp);
+        }
+    }
+
+    private void send(Server.ClientHandler handler, InetSocketAddress target, byte[] datagram, OutboundMessage overTcp) {
+        if (target != null) {
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, target));
+            } catch (IOException e) {
+                // unreliable channel, the next tick carries fresher positions
+            }
+        } else {
+            handler.send(overTcp);
+        }
+    }
+
+    void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,69 @@
+package matlabmaster.multiplayer.state;
+
+import com.fs.starfarer.api.campaign.CargoStackAPI;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One cargo stack, same fields as {@link matlabmaster.multiplayer.utils.CargoSerializer#serializeCargoToMap}.
+ * Only the id matching the type is set, the others are null.
+ */
+public final class CargoStackState {
+    public final double quantity;
+    public final String type;
+    public final String commodityId;
+    public final String weaponId;
+    public final String specialId;
+    public final String specialData;
+    public final String fighterId;
+
+    private CargoStackState(CargoStackAPI cargo) {
+        quantity = cargo.getSize();
+        type = cargo.getType().toString();
+        commodityId = cargo.isCommodityStack() ? cargo.getCommodityId() : null;
+        weaponId = !cargo.isCommodityStack() && cargo.isWeaponStack() ? cargo.getWeaponSpecIfWeapon().getWeaponId() : null;
+        boolean special = commodityId == null && weaponId == null && cargo.isSpecialStack();
+        specialId = special ? cargo.getSpecialDataIfSpecial().getId() : null;
+        specialData = special ? cargo.getSpecialDataIfSpecial().getData() : null;
+        fighterId = commodityId == null && weaponId == null && !special && cargo.isFighterWingStack() ? cargo.getFighterWingSpecIfWing().getId() : null;
+    }
+
+    /**
+     * @return the stacks keyed like the serializer keys them
+     */
+    static Map<String, CargoStackState> captureAll(List<CargoStackAPI> stacks) {
+        Map<String, CargoStackState> cargo = new LinkedHashMap<>();
+        for (CargoStackAPI stack : stacks) {
+            CargoStackState state = new CargoStackState(stack);
+            String key = state.key();
+            if (key.isEmpty()) key = "unknown_" + stack.hashCode();
+            cargo.put(key, state);
+        }
+        return Collections.unmodifiableMap(cargo);
+    }
+
+    private String key() {
+        if (commodityId != null) return commodityId;
+        if (weaponId != null) return weaponId;
+        if (specialId != null) return specialId + "_" + specialData;
+        if (fighterId != null) return fighterId;
+        return "";
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject cargoObject = new JSONObject();
+        cargoObject.put("quantity", quantity);
+        cargoObject.put("type", type);
+        cargoObject.put("commodityId", commodityId);
+        cargoObject.put("weaponId", weaponId);
+        cargoObject.put("specialId", specialId);
+        cargoObject.put("specialData", specialData);
+        cargoObject.put("fighterId", fighterId);
+        return cargoObject;
+    }
+}
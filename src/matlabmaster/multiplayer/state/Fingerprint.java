@@ -0,0 +1,101 @@
+package matlabmaster.multiplayer.state;
+
+import com.fs.starfarer.api.campaign.CargoStackAPI;
+import com.fs.starfarer.api.characters.AbilityPlugin;
+import com.fs.starfarer.api.characters.MutableCharacterStatsAPI;
+import com.fs.starfarer.api.characters.PersonAPI;
+import com.fs.starfarer.api.combat.ShipVariantAPI;
+import com.fs.starfarer.api.loading.WeaponGroupSpec;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashes of what the game returns for a section of a fleet, computing one reads the same values as the capture but allocates nothing.
+ * When the hash of a section didn't move the previous state of the section is reused as is.
+ */
+final class Fingerprint {
+    // FNV-1a like mixing on 64 bits
+    private static final long SEED = 0xcbf29ce484222325L;
+
+    private Fingerprint() {}
+
+    static long abilities(Map<String, AbilityPlugin> abilities) {
+        long hash = SEED;
+        for (AbilityPlugin ability : abilities.values()) {
+            if (ability == null) continue;
+            hash = mix(hash, ability.getId());
+            hash = mix(hash, ability.isActiveOrInProgress() ? 1 : 2);
+        }
+        return hash;
+    }
+
+    static long cargo(List<CargoStackAPI> stacks) {
+        long hash = SEED;
+        for (CargoStackAPI stack : stacks) {
+            hash = mix(hash, stack.getType().ordinal());
+            hash = mix(hash, Float.floatToIntBits(stack.getSize()));
+            if (stack.isCommodityStack()) {
+                hash = mix(hash, stack.getCommodityId());
+            } else if (stack.isWeaponStack()) {
+                hash = mix(hash, stack.getWeaponSpecIfWeapon().getWeaponId());
+            } else if (stack.isSpecialStack()) {
+                hash = mix(hash, stack.getSpecialDataIfSpecial().getId());
+                hash = mix(hash, stack.getSpecialDataIfSpecial().getData());
+            } else if (stack.isFighterWingStack()) {
+                hash = mix(hash, stack.getFighterWingSpecIfWing().getId());
+            }
+        }
+        return hash;
+    }
+
+    static long variant(ShipVariantAPI variant) {
+        long hash = SEED;
+        for (String modId : variant.getHullMods()) hash = mix(hash, modId);
+        hash = mix(hash, -1);
+        for (String modId : variant.getSMods()) hash = mix(hash, modId);
+        hash = mix(hash, -1);
+        for (String wingId : variant.getFittedWings()) hash = mix(hash, wingId);
+        hash = mix(hash, -1);
+        for (String slotId : variant.getFittedWeaponSlots()) {
+            hash = mix(hash, slotId);
+            hash = mix(hash, variant.getWeaponId(slotId));
+        }
+        hash = mix(hash, -1);
+        for (WeaponGroupSpec group : variant.getWeaponGroups()) {
+            hash = mix(hash, group.getType().ordinal());
+            hash = mix(hash, group.isAutofireOnByDefault() ? 1 : 2);
+            for (String slotId : group.getSlots()) hash = mix(hash, slotId);
+            hash = mix(hash, -1);
+        }
+        return hash;
+    }
+
+    static long person(PersonAPI person) {
+        long hash = SEED;
+        hash = mix(hash, person.getId());
+        hash = mix(hash, person.getPersonalityAPI().getId());
+        hash = mix(hash, person.getName().getFirst());
+        hash = mix(hash, person.getName().getLast());
+        hash = mix(hash, person.getName().getGender());
+        hash = mix(hash, person.getRank());
+        hash = mix(hash, person.getPostId());
+        hash = mix(hash, person.getPortraitSprite());
+        hash = mix(hash, person.getStats().getLevel());
+        hash = mix(hash, person.isAICore() ? 1 : 2);
+        hash = mix(hash, person.getAICoreId());
+        for (MutableCharacterStatsAPI.SkillLevelAPI skill : person.getStats().getSkillsCopy()) {
+            hash = mix(hash, skill.getSkill().getId());
+            hash = mix(hash, Float.floatToIntBits(skill.getLevel()));
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    private static long mix(long hash, Object value) {
+        return mix(hash, value == null ? 0x9e3779b9L : value.hashCode());
+    }
+}
@@ -0,0 +1,157 @@
+package matlabmaster.multiplayer.state;
+
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import com.fs.starfarer.api.campaign.CargoStackAPI;
+import com.fs.starfarer.api.characters.AbilityPlugin;
+import com.fs.starfarer.api.fleet.FleetMemberAPI;
+import matlabmaster.multiplayer.utils.Quantization;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Typed snapshot of a fleet, the baseline {@link matlabmaster.multiplayer.updates.FleetSync} diffs the next tick against.
+ * Same content as {@link matlabmaster.multiplayer.utils.FleetSerializer#serializeFleet} but with primitive fields,
+ * json is only built by {@link #toJson} and by the {@link FleetStateDiffer} for what goes on the wire.
+ * States are immutable : a capture reuses the sections of the previous state whose {@link Fingerprint} didn't move,
+ * so the differ skips them on identity.
+ */
+public final class FleetState {
+    /** every this many captures of a fleet the sections are captured again, in case a change slipped through a hash collision */
+    private static final int FULL_REFRESH_TICKS = 200;
+
+    public final String id;
+    /** fixed point, see {@link matlabmaster.multiplayer.utils.Quantization} */
+    public final int locationX;
+    public final int locationY;
+    public final String location;
+    public final String factionId;
+    public final int moveDestinationX;
+    public final int moveDestinationY;
+    /** only sent on the udp channel for the dead reckoning, not part of the json */
+    public final float velocityX;
+    public final float velocityY;
+    public final boolean isPlayerFleet;
+    public final boolean isTransponderOn;
+    public final boolean aiMode;
+    public final String name;
+    /** ability id to active */
+    public final Map<String, Boolean> abilities;
+    public final Map<String, CargoStackState> cargo;
+    /** ship id to ship, in fleet order */
+    public final Map<String, ShipState> ships;
+
+    private final long abilitiesPrint;
+    private final long cargoPrint;
+    private final int age;
+
+    private FleetState(CampaignFleetAPI fleet, FleetState previous) {
+        boolean refresh = previous == null || previous.age + 1 >= FULL_REFRESH_TICKS;
+        FleetState reusable = refresh ? null : previous;
+        age = refresh ? 0 : previous.age + 1;
+
+        id = fleet.getId();
+        locationX = Quantization.position(fleet.getLocation().getX());
+        locationY = Quantization.position(fleet.getLocation().getY());
+        location = fleet.getContainingLocation().getId();
+        factionId = fleet.getFaction().getId();
+        moveDestinationX = Quantization.position(fleet.getMoveDestination().getX());
+        moveDestinationY = Quantization.position(fleet.getMoveDestination().getY());
+        velocityX = fleet.getVelocity().getX();
+        velocityY = fleet.getVelocity().getY();
+        isPlayerFleet = fleet.isPlayerFleet();
+        isTransponderOn = fleet.isTransponderOn();
+        aiMode = fleet.isAIMode();
+        name = fleet.getName();
+
+        abilitiesPrint = Fingerprint.abilities(fleet.getAbilities());
+        if (reusable != null && reusable.abilitiesPrint == abilitiesPrint) {
+            abilities = reusable.abilities;
+        } else {
+            Map<String, Boolean> captured = new LinkedHashMap<>();
+            for (AbilityPlugin ability : fleet.getAbilities().values()) {
+                if (ability != null) captured.put(ability.getId(), ability.isActiveOrInProgress());
+            }
+            abilities = Collections.unmodifiableMap(captured);
+        }
+
+        List<CargoStackAPI> stacks = fleet.getCargo().getStacksCopy();
+        cargoPrint = Fingerprint.cargo(stacks);
+        cargo = reusable != null && reusable.cargoPrint == cargoPrint ? reusable.cargo : CargoStackState.captureAll(stacks);
+
+        ships = captureShips(fleet.getFleetData().getMembersListCopy(), reusable);
+    }
+
+    /**
+     * @param previous state of the same fleet at the previous tick, null on the first one
+     */
+    public static FleetState capture(CampaignFleetAPI fleet, FleetState previous) {
+        return new FleetState(fleet, previous);
+    }
+
+    private static Map<String, ShipState> captureShips(List<FleetMemberAPI> members, FleetState previous) {
+        boolean changed = previous == null || members.size() != previous.ships.size();
+        Map<String, ShipState> captured = new LinkedHashMap<>(members.size() * 2);
+        for (FleetMemberAPI member : members) {
+            ShipState before = previous == null ? null : previous.ships.get(member.getId());
+            ShipState ship = ShipState.capture(member, before);
+            if (ship != before) changed = true;
+            captured.put(member.getId(), ship);
+        }
+        return changed ? Collections.unmodifiableMap(captured) : previous.ships;
+    }
+
+    public JSONObject abilitiesJson() throws JSONException {
+        JSONObject serializedMap = new JSONObject();
+        for (Map.Entry<String, Boolean> ability : abilities.entrySet()) {
+            serializedMap.put(ability.getKey(), abilityJson(ability.getKey(), ability.getValue()));
+        }
+        return serializedMap;
+    }
+
+    static JSONObject abilityJson(String abilityId, boolean active) throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("id", abilityId);
+        data.put("active", active);
+        return data;
+    }
+
+    public JSONObject cargoJson() throws JSONException {
+        JSONObject cargoMap = new JSONObject();
+        for (Map.Entry<String, CargoStackState> stack : cargo.entrySet()) {
+            cargoMap.put(stack.getKey(), stack.getValue().toJson());
+        }
+        return cargoMap;
+    }
+
+    public JSONObject shipsJson() throws JSONException {
+        JSONObject shipsMap = new JSONObject();
+        for (ShipState ship : ships.values()) {
+            shipsMap.put(ship.id, ship.toJson());
+        }
+        return shipsMap;
+    }
+
+    /**
+     * Same json as {@link matlabmaster.multiplayer.utils.FleetSerializer#serializeFleet}, for the add instructions and the snapshots
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject serializedFleet = new JSONObject();
+        serializedFleet.put("id", id);
+        serializedFleet.put("locationX", locationX);
+        serializedFleet.put("locationY", locationY);
+        serializedFleet.put("location", location);
+        serializedFleet.put("factionId", factionId);
+        serializedFleet.put("moveDestinationX", moveDestinationX);
+        serializedFleet.put("moveDestinationY", moveDestinationY);
+        serializedFleet.put("isPlayerFleet", isPlayerFleet);
+        serializedFleet.put("isTransponderOn", isTransponderOn);
+        serializedFleet.put("aiMode", aiMode);
+        serializedFleet.put("name", name);
+        serializedFleet.put("abilities", abilitiesJson());
+        serializedFleet.put("cargo", cargoJson());
+        serializedFleet.put("ships", shipsJson());
+        return serializedFleet;
+    }
+}
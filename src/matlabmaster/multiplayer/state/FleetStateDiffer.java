@@ -0,0 +1,233 @@
+package matlabmaster.multiplayer.state;
+
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.utils.JsonDiffUtility;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Diffs two {@link FleetState}s field by field, the result is the same json {@link JsonDiffUtility#getDifferences}
+ * gives for the serialized fleets (weapon groups as a {@link JsonDiffUtility#diffArrays} splice), so the receivers don't change.
+ * Sections shared by the two states are skipped on identity.
+ */
+public final class FleetStateDiffer {
+    private FleetStateDiffer() {}
+
+    /**
+     * @param old the previous tick, null on the first one (every key is then added, like a diff against an empty fleet)
+     */
+    public static JSONObject diffFleet(FleetState old, FleetState now) throws JSONException {
+        long start = SyncMetrics.start();
+        JSONObject diffs;
+        if (old == null) {
+            diffs = JsonDiffUtility.getDifferences(new JSONObject(), now.toJson());
+        } else {
+            diffs = new JSONObject();
+            putFleetDiff(old, now, diffs);
+        }
+        SyncMetrics.stop("diffFleetState", start);
+        return diffs;
+    }
+
+    /**
+     * Diff of two fleet maps keyed by fleet id, the fleets appearing are added with their full state and the missing ones removed
+     */
+    public static JSONObject diffFleets(Map<String, FleetState> old, Map<String, FleetState> now) throws JSONException {
+        long start = SyncMetrics.start();
+        JSONObject diffs = new JSONObject();
+        for (Map.Entry<String, FleetState> entry : old.entrySet()) {
+            FleetState current = now.get(entry.getKey());
+            if (current == null) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.REMOVE, null));
+            } else if (current != entry.getValue()) {
+                JSONObject fleetDiff = new JSONObject();
+                putFleetDiff(entry.getValue(), current, fleetDiff);
+                if (fleetDiff.length() > 0) diffs.put(entry.getKey(), fleetDiff);
+            }
+        }
+        for (Map.Entry<String, FleetState> entry : now.entrySet()) {
+            if (!old.containsKey(entry.getKey())) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, entry.getValue().toJson()));
+            }
+        }
+        SyncMetrics.stop("diffFleetStates", start);
+        return diffs;
+    }
+
+    private static void putFleetDiff(FleetState old, FleetState now, JSONObject diffs) throws JSONException {
+        value(diffs, "id", old.id, now.id);
+        value(diffs, "locationX", old.locationX, now.locationX);
+        value(diffs, "locationY", old.locationY, now.locationY);
+        value(diffs, "location", old.location, now.location);
+        value(diffs, "factionId", old.factionId, now.factionId);
+        value(diffs, "moveDestinationX", old.moveDestinationX, now.moveDestinationX);
+        value(diffs, "moveDestinationY", old.moveDestinationY, now.moveDestinationY);
+        value(diffs, "isPlayerFleet", old.isPlayerFleet, now.isPlayerFleet);
+        value(diffs, "isTransponderOn", old.isTransponderOn, now.isTransponderOn);
+        value(diffs, "aiMode", old.aiMode, now.aiMode);
+        value(diffs, "name", old.name, now.name);
+        if (old.abilities != now.abilities) nested(diffs, "abilities", diffAbilities(old.abilities, now.abilities));
+        if (old.cargo != now.cargo) nested(diffs, "cargo", diffCargo(old.cargo, now.cargo));
+        if (old.ships != now.ships) nested(diffs, "ships", diffShips(old.ships, now.ships));
+    }
+
+    private static JSONObject diffAbilities(Map<String, Boolean> old, Map<String, Boolean> now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        for (Map.Entry<String, Boolean> entry : old.entrySet()) {
+            Boolean active = now.get(entry.getKey());
+            if (active == null) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.REMOVE, null));
+            } else if (!active.equals(entry.getValue())) {
+                JSONObject abilityDiff = new JSONObject();
+                value(abilityDiff, "active", entry.getValue(), active);
+                diffs.put(entry.getKey(), abilityDiff);
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : now.entrySet()) {
+            if (!old.containsKey(entry.getKey())) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, FleetState.abilityJson(entry.getKey(), entry.getValue())));
+            }
+        }
+        return diffs;
+    }
+
+    private static JSONObject diffCargo(Map<String, CargoStackState> old, Map<String, CargoStackState> now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        for (Map.Entry<String, CargoStackState> entry : old.entrySet()) {
+            CargoStackState before = entry.getValue();
+            CargoStackState after = now.get(entry.getKey());
+            if (after == null) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.REMOVE, null));
+                continue;
+            }
+            JSONObject stackDiff = new JSONObject();
+            number(stackDiff, "quantity", before.quantity, after.quantity);
+            value(stackDiff, "type", before.type, after.type);
+            value(stackDiff, "commodityId", before.commodityId, after.commodityId);
+            value(stackDiff, "weaponId", before.weaponId, after.weaponId);
+            value(stackDiff, "specialId", before.specialId, after.specialId);
+            value(stackDiff, "specialData", before.specialData, after.specialData);
+            value(stackDiff, "fighterId", before.fighterId, after.fighterId);
+            nested(diffs, entry.getKey(), stackDiff);
+        }
+        for (Map.Entry<String, CargoStackState> entry : now.entrySet()) {
+            if (!old.containsKey(entry.getKey())) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, entry.getValue().toJson()));
+            }
+        }
+        return diffs;
+    }
+
+    private static JSONObject diffShips(Map<String, ShipState> old, Map<String, ShipState> now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        for (Map.Entry<String, ShipState> entry : old.entrySet()) {
+            ShipState after = now.get(entry.getKey());
+            if (after == null) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.REMOVE, null));
+            } else if (after != entry.getValue()) {
+                nested(diffs, entry.getKey(), diffShip(entry.getValue(), after));
+            }
+        }
+        for (Map.Entry<String, ShipState> entry : now.entrySet()) {
+            if (!old.containsKey(entry.getKey())) {
+                diffs.put(entry.getKey(), JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, entry.getValue().toJson()));
+            }
+        }
+        return diffs;
+    }
+
+    private static JSONObject diffShip(ShipState old, ShipState now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        value(diffs, "id", old.id, now.id);
+        value(diffs, "hull", old.hull, now.hull);
+        value(diffs, "combatReadiness", old.combatReadiness, now.combatReadiness);
+        value(diffs, "name", old.name, now.name);
+        value(diffs, "isMothballed", old.isMothballed, now.isMothballed);
+        value(diffs, "fluxVents", old.fluxVents, now.fluxVents);
+        value(diffs, "fluxCapacitors", old.fluxCapacitors, now.fluxCapacitors);
+        value(diffs, "isFlagShip", old.isFlagShip, now.isFlagShip);
+
+        VariantState before = old.variant;
+        VariantState after = now.variant;
+        if (before != after) {
+            nested(diffs, "hullMods", diffSet(before.hullMods, after.hullMods));
+            nested(diffs, "sHullMods", diffSet(before.sHullMods, after.sHullMods));
+            nested(diffs, "fittedWings", diffMap(before.fittedWings, after.fittedWings));
+            nested(diffs, "fittedGuns", diffMap(before.fittedGuns, after.fittedGuns));
+            if (!before.weaponGroups.equals(after.weaponGroups)) {
+                // only the groups inserted, removed or moved, see JsonDiffUtility.diffArrays
+                JSONArray splice = JsonDiffUtility.diffArrays(before.weaponGroupsJson(), after.weaponGroupsJson());
+                if (splice != null) diffs.put("weaponGroups", splice);
+            }
+        }
+        if (old.captain != now.captain) nested(diffs, "captain", diffPerson(old.captain, now.captain));
+        return diffs;
+    }
+
+    private static JSONObject diffPerson(PersonState old, PersonState now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        value(diffs, "personId", old.personId, now.personId);
+        value(diffs, "personalityId", old.personalityId, now.personalityId);
+        value(diffs, "firstName", old.firstName, now.firstName);
+        value(diffs, "lastName", old.lastName, now.lastName);
+        value(diffs, "gender", old.gender, now.gender);
+        value(diffs, "rank", old.rank, now.rank);
+        value(diffs, "post", old.post, now.post);
+        value(diffs, "sprite", old.sprite, now.sprite);
+        value(diffs, "level", old.level, now.level);
+        value(diffs, "isAiCore", old.isAiCore, now.isAiCore);
+        value(diffs, "aiCoreId", old.aiCoreId, now.aiCoreId);
+        nested(diffs, "skills", diffMap(old.skills, now.skills));
+        return diffs;
+    }
+
+    /** sets are serialized as maps of id to true (hull mods) */
+    private static JSONObject diffSet(Set<String> old, Set<String> now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        for (String id : old) {
+            if (!now.contains(id)) diffs.put(id, JsonDiffUtility.createInstruction(JsonDiffUtility.REMOVE, null));
+        }
+        for (String id : now) {
+            if (!old.contains(id)) diffs.put(id, JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, true));
+        }
+        return diffs;
+    }
+
+    private static JSONObject diffMap(Map<String, ?> old, Map<String, ?> now) throws JSONException {
+        JSONObject diffs = new JSONObject();
+        for (Map.Entry<String, ?> entry : old.entrySet()) {
+            value(diffs, entry.getKey(), entry.getValue(), now.get(entry.getKey()));
+        }
+        for (Map.Entry<String, ?> entry : now.entrySet()) {
+            if (!old.containsKey(entry.getKey())) value(diffs, entry.getKey(), null, entry.getValue());
+        }
+        return diffs;
+    }
+
+    private static void nested(JSONObject diffs, String key, JSONObject subDiff) throws JSONException {
+        if (subDiff.length() > 0) diffs.put(key, subDiff);
+    }
+
+    private static void number(JSONObject diffs, String key, double old, double now) throws JSONException {
+        if (Double.compare(old, now) != 0) diffs.put(key, JsonDiffUtility.createInstruction(JsonDiffUtility.SET, now));
+    }
+
+    /**
+     * A null value is a key the serializer leaves out, hence an add / remove rather than a set to null
+     */
+    private static void value(JSONObject diffs, String key, Object old, Object now) throws JSONException {
+        if (Objects.equals(old, now)) return;
+        if (old == null) {
+            diffs.put(key, JsonDiffUtility.createInstruction(JsonDiffUtility.ADD, now));
+        } else if (now == null) {
+            diffs.put(key, JsonDiffUtility.createInstruction(JsonDiffUtility.REMOVE, null));
+        } else {
+            diffs.put(key, JsonDiffUtility.createInstruction(JsonDiffUtility.SET, now));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package matlabmaster.multiplayer.state;
+
+import com.fs.starfarer.api.characters.MutableCharacterStatsAPI;
+import com.fs.starfarer.api.characters.PersonAPI;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Captain of a ship, same fields as {@link matlabmaster.multiplayer.utils.PersonsSerializer#serializePerson}
+ */
+public final class PersonState {
+    final long print;
+    public final String personId;
+    public final String personalityId;
+    public final String firstName;
+    public final String lastName;
+    public final String gender;
+    public final String rank;
+    public final String post;
+    public final String sprite;
+    public final int level;
+    public final boolean isAiCore;
+    public final String aiCoreId;
+    /** skill id to level, only the skills above 0 */
+    public final Map<String, Double> skills;
+
+    private PersonState(PersonAPI person, long print) {
+        this.print = print;
+        personId = person.getId();
+        personalityId = person.getPersonalityAPI().getId();
+        firstName = person.getName().getFirst();
+        lastName = person.getName().getLast();
+        gender = person.getName().getGender() == null ? null : person.getName().getGender().name();
+        rank = person.getRank();
+        post = person.getPostId();
+        sprite = person.getPortraitSprite();
+        level = person.getStats().getLevel();
+        isAiCore = person.isAICore();
+        aiCoreId = person.getAICoreId();
+        Map<String, Double> skillLevels = new LinkedHashMap<>();
+        for (MutableCharacterStatsAPI.SkillLevelAPI skill : person.getStats().getSkillsCopy()) {
+            if (skill.getLevel() > 0) skillLevels.put(skill.getSkill().getId(), (double) skill.getLevel());
+        }
+        skills = Collections.unmodifiableMap(skillLevels);
+    }
+
+    /**
+     * @return previous when the captain didn't change
+     */
+    static PersonState capture(PersonAPI person, PersonState previous) {
+        long print = Fingerprint.person(person);
+        if (previous != null && previous.print == print) return previous;
+        return new PersonState(person, print);
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject serializedPerson = new JSONObject();
+        serializedPerson.put("personId", personId);
+        serializedPerson.put("personalityId", personalityId);
+        serializedPerson.put("firstName", firstName);
+        serializedPerson.put("lastName", lastName);
+        serializedPerson.put("gender", gender);
+        serializedPerson.put("rank", rank);
+        serializedPerson.put("post", post);
+        serializedPerson.put("sprite", sprite);
+        serializedPerson.put("level", level);
+        serializedPerson.put("isAiCore", isAiCore);
+        serializedPerson.put("aiCoreId", aiCoreId);
+        JSONObject skillsMap = new JSONObject();
+        for (Map.Entry<String, Double> skill : skills.entrySet()) {
+            skillsMap.put(skill.getKey(), skill.getValue());
+        }
+        serializedPerson.put("skills", skillsMap);
+        return serializedPerson;
+    }
+}
@@ -0,0 +1,84 @@
+package matlabmaster.multiplayer.state;
+
+import com.fs.starfarer.api.fleet.FleetMemberAPI;
+import matlabmaster.multiplayer.utils.Quantization;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Objects;
+
+/**
+ * One fleet member, same fields as {@link matlabmaster.multiplayer.utils.FleetSerializer#serializeFleetMember}
+ */
+public final class ShipState {
+    public final String id;
+    public final String hull;
+    /** fixed point like the serializer, see {@link Quantization} */
+    public final int combatReadiness;
+    public final String name;
+    public final boolean isMothballed;
+    public final int fluxVents;
+    public final int fluxCapacitors;
+    public final boolean isFlagShip;
+    public final VariantState variant;
+    public final PersonState captain;
+
+    private ShipState(FleetMemberAPI ship, VariantState variant, PersonState captain) {
+        id = ship.getId();
+        hull = hullId(ship);
+        combatReadiness = Quantization.cr(ship.getRepairTracker().getCR());
+        name = ship.getShipName();
+        isMothballed = ship.isMothballed();
+        fluxVents = ship.getVariant().getNumFluxVents();
+        fluxCapacitors = ship.getVariant().getNumFluxCapacitors();
+        isFlagShip = ship.isFlagship();
+        this.variant = variant;
+        this.captain = captain;
+    }
+
+    /**
+     * @param previous state of the same ship at the previous tick, null to capture everything again
+     * @return previous when nothing changed
+     */
+    static ShipState capture(FleetMemberAPI ship, ShipState previous) {
+        VariantState variant = VariantState.capture(ship.getVariant(), previous == null ? null : previous.variant);
+        PersonState captain = PersonState.capture(ship.getCaptain(), previous == null ? null : previous.captain);
+        if (previous != null && previous.variant == variant && previous.captain == captain && previous.sameProperties(ship)) {
+            return previous;
+        }
+        return new ShipState(ship, variant, captain);
+    }
+
+    private boolean sameProperties(FleetMemberAPI ship) {
+        return combatReadiness == Quantization.cr(ship.getRepairTracker().getCR())
+                && isMothballed == ship.isMothballed()
+                && isFlagShip == ship.isFlagship()
+                && fluxVents == ship.getVariant().getNumFluxVents()
+                && fluxCapacitors == ship.getVariant().getNumFluxCapacitors()
+                && Objects.equals(name, ship.getShipName())
+                && hull.equals(hullId(ship));
+    }
+
+    private static String hullId(FleetMemberAPI ship) {
+        String hullId = ship.getHullSpec().getHullId();
+        if (hullId.contains("_default_")) {
+            hullId = hullId.substring(0, hullId.indexOf("_default_"));
+        }
+        return hullId;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject shipSerialized = new JSONObject();
+        shipSerialized.put("id", id);
+        shipSerialized.put("hull", hull);
+        shipSerialized.put("combatReadiness", combatReadiness);
+        shipSerialized.put("name", name);
+        shipSerialized.put("isMothballed", isMothballed);
+        shipSerialized.put("fluxVents", fluxVents);
+        shipSerialized.put("fluxCapacitors", fluxCapacitors);
+        shipSerialized.put("isFlagShip", isFlagShip);
+        variant.putInto(shipSerialized);
+        shipSerialized.put("captain", captain.toJson());
+        return shipSerialized;
+    }
+}
@@ -0,0 +1,122 @@
+package matlabmaster.multiplayer.state;
+
+import com.fs.starfarer.api.combat.ShipVariantAPI;
+import com.fs.starfarer.api.loading.WeaponGroupSpec;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Hull mods, wings, guns and weapon groups of a ship, same fields as FleetSerializer.putVariant
+ */
+public final class VariantState {
+    public static final class WeaponGroup {
+        public final String type;
+        public final boolean autofire;
+        public final List<String> slots;
+
+        WeaponGroup(WeaponGroupSpec group) {
+            type = group.getType().name();
+            autofire = group.isAutofireOnByDefault();
+            slots = Collections.unmodifiableList(new ArrayList<>(group.getSlots()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WeaponGroup other && autofire == other.autofire && type.equals(other.type) && slots.equals(other.slots);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, autofire, slots);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject groupObj = new JSONObject();
+            groupObj.put("type", type);
+            groupObj.put("autofire", autofire);
+            groupObj.put("slots", new JSONArray(slots));
+            return groupObj;
+        }
+    }
+
+    final long print;
+    public final Set<String> hullMods;
+    public final Set<String> sHullMods;
+    /** wing index ("0", "1"...) to wing id, empty bays are left out */
+    public final Map<String, String> fittedWings;
+    /** slot id to weapon id */
+    public final Map<String, String> fittedGuns;
+    public final List<WeaponGroup> weaponGroups;
+
+    private VariantState(ShipVariantAPI variant, long print) {
+        this.print = print;
+        hullMods = Collections.unmodifiableSet(new LinkedHashSet<>(variant.getHullMods()));
+        sHullMods = Collections.unmodifiableSet(new LinkedHashSet<>(variant.getSMods()));
+
+        Map<String, String> wings = new LinkedHashMap<>();
+        List<String> fitted = variant.getFittedWings();
+        for (int i = 0; i < fitted.size(); i++) {
+            if (fitted.get(i) != null) wings.put(String.valueOf(i), fitted.get(i));
+        }
+        fittedWings = Collections.unmodifiableMap(wings);
+
+        Map<String, String> guns = new LinkedHashMap<>();
+        for (String slotId : variant.getFittedWeaponSlots()) {
+            String weaponId = variant.getWeaponId(slotId);
+            if (weaponId != null) guns.put(slotId, weaponId);
+        }
+        fittedGuns = Collections.unmodifiableMap(guns);
+
+        List<WeaponGroup> groups = new ArrayList<>();
+        for (WeaponGroupSpec group : variant.getWeaponGroups()) {
+            groups.add(new WeaponGroup(group));
+        }
+        weaponGroups = Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * @return previous when the variant didn't change
+     */
+    static VariantState capture(ShipVariantAPI variant, VariantState previous) {
+        long print = Fingerprint.variant(variant);
+        if (previous != null && previous.print == print) return previous;
+        return new VariantState(variant, print);
+    }
+
+    private static JSONObject hullModsJson(Set<String> mods) throws JSONException {
+        JSONObject modsMap = new JSONObject();
+        for (String modId : mods) modsMap.put(modId, true);
+        return modsMap;
+    }
+
+    private static JSONObject mapJson(Map<String, String> map) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) json.put(entry.getKey(), entry.getValue());
+        return json;
+    }
+
+    /**
+     * Weapon groups in order, diffed as a list by FleetStateDiffer
+     */
+    public JSONArray weaponGroupsJson() throws JSONException {
+        JSONArray groupsList = new JSONArray();
+        for (WeaponGroup group : weaponGroups) {
+            groupsList.put(group.toJson());
+        }
+        return groupsList;
+    }
+
+    /**
+     * Writes the variant keys into a serialized ship
+     */
+    void putInto(JSONObject shipSerialized) throws JSONException {
+        shipSerialized.put("hullMods", hullModsJson(hullMods));
+        shipSerialized.put("sHullMods", hullModsJson(sHullMods));
+        shipSerialized.put("fittedWings", mapJson(fittedWings));
+        shipSerialized.put("fittedGuns", mapJson(fittedGuns));
+        shipSerialized.put("weaponGroups", weaponGroupsJson());
+    }
+}
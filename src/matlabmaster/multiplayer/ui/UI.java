@@ -3,15 +3,19 @@ package matlabmaster.multiplayer.ui;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
+import java.util.Objects;
 
 import com.fs.starfarer.api.Global;
 import matlabmaster.multiplayer.MultiplayerLog;
 import matlabmaster.multiplayer.UserError;
 import matlabmaster.multiplayer.server.Server;
 import matlabmaster.multiplayer.client.Client;
+import matlabmaster.multiplayer.metrics.RttStats;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
 
 public class UI extends JFrame {
     private JTextArea logArea;
+    private JTextArea metricsArea;
     private JButton actionButton; // Utilisé pour Join
     private JButton hostDedicatedButton;
     private JButton hostCurrentButton;
@@ -19,7 +23,12 @@ public class UI extends JFrame {
     private JTextField ipField;
     private JTextField portField;
     private JComboBox<String> modeSelector;
+    private JComboBox<Server.Mode> serverCoreSelector;
+    private JComboBox<Server.RelayMode> relaySelector;
     private JLabel serverTimeLabel;
+    private JProgressBar snapshotProgress;
+    private JLabel sendRateLabel;
+    private JLabel latencyLabel;
 
     private final Server server;
     private final Client client;
@@ -44,7 +53,7 @@ public class UI extends JFrame {
                 }
             }
             @Override
-            public void onMessageReceived(String msg) {}
+            public void onMessageReceived(String msg, int frameBytes) {}
         });
 
         // ADD THIS: Server listener
@@ -71,12 +80,18 @@ public class UI extends JFrame {
         ipField = new JTextField("127.0.0.1", 10);
         ipField.setEnabled(false);
         portField = new JTextField("20603", 6);
+        serverCoreSelector = new JComboBox<>(Server.Mode.values());
+        serverCoreSelector.setSelectedItem(server.getMode());
+        relaySelector = new JComboBox<>(Server.RelayMode.values());
+        relaySelector.setSelectedItem(server.getRelayMode());
 
         modeSelector.addActionListener(e -> toggleMode());
 
         configPanel.add(new JLabel("Mode: ")); configPanel.add(modeSelector);
         configPanel.add(new JLabel(" IP: ")); configPanel.add(ipField);
         configPanel.add(new JLabel(" Port: ")); configPanel.add(portField);
+        configPanel.add(new JLabel(" Core: ")); configPanel.add(serverCoreSelector);
+        configPanel.add(new JLabel(" Relay: ")); configPanel.add(relaySelector);
         
         // --- SERVER TIME CLOCK ---
         serverTimeLabel = new JLabel("Server Time: c--- -- --");
@@ -85,6 +100,20 @@ public class UI extends JFrame {
         configPanel.add(new JLabel(" | "));
         configPanel.add(serverTimeLabel);
 
+        // --- SEND RATE ---
+        sendRateLabel = new JLabel("Send rate: --");
+        configPanel.add(new JLabel(" | "));
+        configPanel.add(sendRateLabel);
+        latencyLabel = new JLabel("Ping: --");
+        configPanel.add(new JLabel(" | "));
+        configPanel.add(latencyLabel);
+
+        // --- JOIN SNAPSHOT PROGRESS ---
+        snapshotProgress = new JProgressBar();
+        snapshotProgress.setStringPainted(true);
+        snapshotProgress.setVisible(false);
+        configPanel.add(snapshotProgress);
+
         // --- CONSOLE ---
         logArea = new JTextArea();
         logArea.setEditable(false);
@@ -92,6 +121,16 @@ public class UI extends JFrame {
         logArea.setForeground(new Color(139, 233, 253));
         JScrollPane scroll = new JScrollPane(logArea);
 
+        // --- SYNC METRICS ---
+        metricsArea = new JTextArea("No sync metrics yet, a summary is published every 30 seconds while connected");
+        metricsArea.setEditable(false);
+        metricsArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        metricsArea.setBackground(new Color(20, 20, 25));
+        metricsArea.setForeground(new Color(139, 233, 253));
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Log", scroll);
+        tabs.addTab("Sync metrics", new JScrollPane(metricsArea));
+
         // --- ZONE DES BOUTONS (SUD) ---
         JPanel buttonPanel = new JPanel(new GridLayout(1, 0, 10, 0));
         buttonPanel.setOpaque(false);
@@ -112,17 +151,20 @@ public class UI extends JFrame {
         buttonPanel.add(actionButton);
 
         mainPanel.add(configPanel, BorderLayout.NORTH);
-        mainPanel.add(scroll, BorderLayout.CENTER);
+        mainPanel.add(tabs, BorderLayout.CENTER);
         mainPanel.add(buttonPanel, BorderLayout.SOUTH);
 
         add(mainPanel);
         updateButtonStyle();
         MultiplayerLog.setUILogSink(this::updateLogArea);
+        SyncMetrics.setSummarySink(this::setMetricsSummary);
     }
 
     private void toggleMode() {
         boolean isJoin = modeSelector.getSelectedItem().equals("JOIN MODE");
         ipField.setEnabled(isJoin);
+        serverCoreSelector.setEnabled(!isJoin);
+        relaySelector.setEnabled(!isJoin);
         hostDedicatedButton.setVisible(!isJoin);
         hostCurrentButton.setVisible(!isJoin);
         actionButton.setVisible(isJoin);
@@ -131,13 +173,18 @@ public class UI extends JFrame {
     private void startHost(boolean asCurrentGame) {
         try{
             if (!isRunning) {
+                if(Objects.equals(Global.getCurrentState().toString(), "TITLE")){
+                    throw new UserError("You cannot host a server while on the main menu, join any singleplayer game then try hosting");
+                }
                 int port = parsePort();
                 if (port <= 0) return;
                 server.setPort(port);
+                server.setMode((Server.Mode) serverCoreSelector.getSelectedItem());
+                server.setRelayMode((Server.RelayMode) relaySelector.getSelectedItem());
                 server.start();
                 isRunning = true;
                 final int connectPort = port;
-                MultiplayerLog.log().info("SERVER STARTED AS " + (asCurrentGame ? "HOSTED GAME" : "DEDICATED"));
+                MultiplayerLog.log().info("SERVER STARTED AS " + (asCurrentGame ? "HOSTED GAME" : "DEDICATED") + " (" + server.getMode() + " core, " + server.getRelayMode() + " relay)");
                 if (asCurrentGame) {
                     // On lance la connexion client dans un thread séparé avec un petit délai
                     new Thread(() -> {
@@ -211,6 +258,8 @@ public class UI extends JFrame {
                 actionButton.setBackground(new Color(80, 250, 123));
                 modeSelector.setEnabled(true);
                 portField.setEnabled(true);
+                serverCoreSelector.setEnabled(!"JOIN MODE".equals(modeSelector.getSelectedItem()));
+                relaySelector.setEnabled(!"JOIN MODE".equals(modeSelector.getSelectedItem()));
                 isRunning = false;
             } else {
                 // Quelque chose tourne
@@ -222,6 +271,8 @@ public class UI extends JFrame {
                 actionButton.setBackground(new Color(255, 85, 85));
                 modeSelector.setEnabled(false);
                 portField.setEnabled(false);
+                serverCoreSelector.setEnabled(false);
+                relaySelector.setEnabled(false);
                 isRunning = true;
             }
         });
@@ -251,6 +302,50 @@ public class UI extends JFrame {
 
     public void showUI() { SwingUtilities.invokeLater(() -> setVisible(true)); }
 
+    /**
+     * Shows how many fleets of the join snapshot are spawned, hidden when total is 0
+     */
+    public void setSnapshotProgress(int applied, int total) {
+        SwingUtilities.invokeLater(() -> {
+            snapshotProgress.setVisible(total > 0);
+            snapshotProgress.setMaximum(Math.max(total, 1));
+            snapshotProgress.setValue(applied);
+            snapshotProgress.setString("Fleets " + applied + "/" + total);
+        });
+    }
+
+    /**
+     * Shows the current send rates of the client
+     * @param globalFleets rate of the npc fleets sync, 0 when we aren't the authority
+     */
+    public void setSendRate(float ownFleet, float globalFleets) {
+        SwingUtilities.invokeLater(() -> {
+            String text = String.format("Send rate: %.0f Hz", ownFleet);
+            if (globalFleets > 0) text += String.format(" / npc %.0f Hz", globalFleets);
+            sendRateLabel.setText(text);
+        });
+    }
+
+    /**
+     * Shows the round trip to the server, the tooltip holds the full statistics
+     */
+    public void setLatency(RttStats rtt) {
+        if (!rtt.hasSamples()) return;
+        String text = String.format("Ping: %.0f ms (p99 %.0f)", rtt.getSmoothed(), rtt.getP99());
+        String details = rtt.toString();
+        SwingUtilities.invokeLater(() -> {
+            latencyLabel.setText(text);
+            latencyLabel.setToolTipText(details);
+        });
+    }
+
+    /**
+     * Replaces the metrics panel with the latest {@link SyncMetrics} summary
+     */
+    public void setMetricsSummary(String summary) {
+        SwingUtilities.invokeLater(() -> metricsArea.setText(summary));
+    }
+
     /**
      * Sets the server time clock display.
      * Format: cYYY MM DD (e.g., c207 12 18)
@@ -0,0 +1,120 @@
+package matlabmaster.multiplayer.updates;
+
+import com.fs.starfarer.api.Global;
+import com.fs.starfarer.api.campaign.CampaignClockAPI;
+import matlabmaster.multiplayer.net.PositionDatagram;
+import matlabmaster.multiplayer.utils.SettingsHelper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dead reckoning of the fleet positions sent on the udp channel.
+ * Receivers extrapolate the last position they got along its velocity. The sender runs the same extrapolation and only
+ * sends a fleet again when the real position drifts from it by more than multiplayer_deadReckoningError or when the
+ * destination changes, a fleet cruising in a straight line is then only refreshed every {@link #REFRESH_SECONDS}.
+ * The refreshes also cover the loss of a correction, the datagrams being unreliable.
+ * Times are campaign seconds from the sector clock, so nothing drifts while the game is paused.
+ * One instance per side : the sender keeps what it sent, the receiver what it received.
+ */
+final class DeadReckoning {
+    private static final String ENABLED_SETTING = "multiplayer_deadReckoning";
+    private static final String ERROR_SETTING = "multiplayer_deadReckoningError";
+    private static final float DEFAULT_ERROR = 10f;
+    /** campaign seconds between two sends of a moving fleet whose extrapolation is still good */
+    private static final float REFRESH_SECONDS = 1f;
+    /** refreshes still sent once a fleet stopped, the stop would otherwise hang on a single datagram */
+    private static final int SETTLE_REFRESHES = 2;
+    /** a receiver that missed this many refreshes stops extrapolating, the sender is probably gone */
+    private static final float MAX_EXTRAPOLATION_SECONDS = 3 * REFRESH_SECONDS;
+    /** below this speed a fleet is considered stopped */
+    private static final float MIN_SPEED = 0.5f;
+
+    private static final class Sample {
+        final PositionDatagram.Entry entry;
+        final long timestamp;
+        final int settleRefreshes;
+
+        Sample(PositionDatagram.Entry entry, long timestamp, int settleRefreshes) {
+            this.entry = entry;
+            this.timestamp = timestamp;
+            this.settleRefreshes = settleRefreshes;
+        }
+
+        boolean isMoving() {
+            return Math.abs(entry.velocityX) >= MIN_SPEED || Math.abs(entry.velocityY) >= MIN_SPEED;
+        }
+    }
+
+    private final Map<String, Sample> samples = new HashMap<>();
+    private final boolean enabled;
+    private final float maxError;
+
+    DeadReckoning() {
+        enabled = SettingsHelper.getBoolean(ENABLED_SETTING, true);
+        maxError = SettingsHelper.getFloat(ERROR_SETTING, DEFAULT_ERROR);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sender side, records the position when it has to go out
+     * @return true if the receivers' extrapolation of the last sent position is off, or due for a refresh
+     */
+    boolean shouldSend(PositionDatagram.Entry current) {
+        CampaignClockAPI clock = Global.getSector().getClock();
+        Sample last = samples.get(current.fleetId);
+        Sample now = new Sample(current, clock.getTimestamp(), SETTLE_REFRESHES);
+        if (last == null) {
+            samples.put(current.fleetId, now);
+            return true;
+        }
+
+        float elapsed = elapsedSeconds(clock, last.timestamp);
+        PositionDatagram.Entry predicted = last.entry.extrapolate(elapsed);
+        float errorX = predicted.x - current.x;
+        float errorY = predicted.y - current.y;
+        boolean correction = errorX * errorX + errorY * errorY > maxError * maxError
+                || last.entry.destX != current.destX || last.entry.destY != current.destY;
+        boolean refresh = elapsed >= REFRESH_SECONDS && (now.isMoving() || last.settleRefreshes > 0);
+        if (!correction && !refresh) return false;
+
+        if (!correction && !now.isMoving()) {
+            now = new Sample(current, now.timestamp, last.settleRefreshes - 1);
+        }
+        samples.put(current.fleetId, now);
+        return true;
+    }
+
+    /**
+     * Receiver side, the new starting point of the extrapolation
+     */
+    void receive(PositionDatagram.Entry entry) {
+        samples.put(entry.fleetId, new Sample(entry, Global.getSector().getClock().getTimestamp(), 0));
+    }
+
+    /**
+     * Receiver side
+     * @return where the fleet should be now, null if it isn't moving (nothing to extrapolate)
+     */
+    PositionDatagram.Entry extrapolate(String fleetId) {
+        Sample sample = samples.get(fleetId);
+        if (sample == null || !sample.isMoving()) return null;
+        float elapsed = elapsedSeconds(Global.getSector().getClock(), sample.timestamp);
+        return sample.entry.extrapolate(Math.min(elapsed, MAX_EXTRAPOLATION_SECONDS));
+    }
+
+    /**
+     * @return the tracked fleets, removing one forgets it
+     */
+    Set<String> fleetIds() {
+        return samples.keySet();
+    }
+
+    private static float elapsedSeconds(CampaignClockAPI clock, long timestamp) {
+        return clock.convertToSeconds(clock.getElapsedDaysSince(timestamp));
+    }
+}
@@ -2,76 +2,253 @@ package matlabmaster.multiplayer.updates;
 
 import com.fs.starfarer.api.Global;
 import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import matlabmaster.multiplayer.MultiplayerLog;
 import matlabmaster.multiplayer.client.Client;
+import matlabmaster.multiplayer.client.InterpolationBuffer;
+import matlabmaster.multiplayer.client.PositionChannel;
+import matlabmaster.multiplayer.client.SnapshotApplier;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
+import matlabmaster.multiplayer.net.PositionDatagram;
+import matlabmaster.multiplayer.state.FleetState;
+import matlabmaster.multiplayer.state.FleetStateDiffer;
+import matlabmaster.multiplayer.utils.EntityIndex;
 import matlabmaster.multiplayer.utils.FleetHelper;
 import matlabmaster.multiplayer.utils.FleetSerializer;
 import matlabmaster.multiplayer.utils.JsonDiffUtility;
-import org.json.JSONArray;
+import matlabmaster.multiplayer.utils.Quantization;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Iterator;
+import java.util.*;
 
 public class FleetSync
 {
-    private JSONObject lastTickFleet = new JSONObject();
-    private JSONObject lastTickGlobalFleet = new JSONObject();
+    /** ticks a fleet keeps being sent on the udp channel after it stopped, covers the loss of its last datagrams */
+    private static final int POSITION_SETTLE_TICKS = 20;
 
-    public void sendOwnFleetUpdate(Client client) throws JSONException {
-        JSONObject newFleet = FleetSerializer.serializeFleet(Global.getSector().getPlayerFleet());
-        JSONObject diffs = JsonDiffUtility.getDifferences(lastTickFleet, newFleet);
-        FleetSerializer.replaceWeaponGroupsDiffsWithFullState(diffs, newFleet);
+    /** typed baselines of the previous tick, json is only built for the diffs that go on the wire */
+    private FleetState lastTickFleet = null;
+    private Map<String, FleetState> lastTickGlobalFleet = new LinkedHashMap<>();
+    /** remaining settle ticks per fleet sent on the udp channel */
+    private final Map<String, Integer> settlingPositions = new HashMap<>();
+    /** what the receivers extrapolate from the positions we sent, and from the ones we received */
+    private final DeadReckoning sentPositions = new DeadReckoning();
+    private final DeadReckoning receivedPositions = new DeadReckoning();
+    /** remote fleets shown a little behind real time, see {@link InterpolationBuffer} */
+    private final Map<String, InterpolationBuffer> interpolationBuffers = new HashMap<>();
+    /** settings read once, the udp positions are handled every frame */
+    private final boolean interpolation = InterpolationBuffer.isEnabled();
+    private final float interpolationDelayMs = InterpolationBuffer.getDelaySetting();
+
+    /**
+     * Forgets the baselines and the tracked positions, the next updates are diffed against nothing like on the first tick
+     */
+    public void reset() {
+        lastTickFleet = null;
+        lastTickGlobalFleet = new LinkedHashMap<>();
+        settlingPositions.clear();
+        sentPositions.fleetIds().clear();
+        receivedPositions.fleetIds().clear();
+        interpolationBuffers.clear();
+    }
+
+    /**
+     * @return true if the fleet changed since the last call, read by the {@link matlabmaster.multiplayer.client.SendRateController}
+     */
+    public boolean sendOwnFleetUpdate(Client client) throws JSONException {
+        long start = SyncMetrics.start();
+        FleetState newFleet = FleetState.capture(Global.getSector().getPlayerFleet(), lastTickFleet);
+        JSONObject diffs = FleetStateDiffer.diffFleet(lastTickFleet, newFleet);
+        boolean changed = diffs.length() > 0;
+        SyncMetrics.sample("ownFleetDiffKeys", diffs.length());
         lastTickFleet = newFleet;
+        PositionChannel positions = client.getPositionChannel();
+        if (positions.isReady()) {
+            List<PositionDatagram.Entry> entries = new ArrayList<>(1);
+            collectPosition(newFleet, diffs, entries);
+            positions.send(Collections.singletonMap(newFleet.location, entries));
+        }
         if (diffs.length() > 0) {
             JSONObject packet = new JSONObject();
             packet.put("commandId","playerFleetUpdate");
-            packet.put("fleetId", newFleet.getString("id")); // Root ID
+            packet.put("fleetId", newFleet.id); // Root ID
             packet.put("from",client.clientId);
+            packet.put("location", newFleet.location); // lets the server filter the update by location
             packet.put("changes", diffs);
-            client.send(String.valueOf(packet));
+            client.send(packet);
         }
+        SyncMetrics.stop("sendOwnFleetUpdate", start);
+        return changed;
     }
 
-    public void handleRemoteFleetUpdate(JSONObject fleetDiffs) throws JSONException {
-        FleetSerializer.applyFleetDiff((CampaignFleetAPI) Global.getSector().getEntityById(fleetDiffs.getString("fleetId")),fleetDiffs.getJSONObject("changes"));
+    /**
+     * Strips the position keys from the fleet diff and queues the position for the udp channel.
+     * With the dead reckoning the position is only queued when the receivers' extrapolation drifted too far,
+     * otherwise it is queued while the fleet moves and for a few ticks after it stopped
+     */
+    private void collectPosition(FleetState fleet, JSONObject fleetDiff, List<PositionDatagram.Entry> entries) {
+        String fleetId = fleet.id;
+        boolean moved = false;
+        if (fleetDiff != null) {
+            for (String key : FleetSerializer.POSITION_KEYS) {
+                if (fleetDiff.remove(key) != null) moved = true;
+            }
+        }
+        PositionDatagram.Entry entry = new PositionDatagram.Entry(fleetId,
+                Quantization.decodePosition(fleet.locationX), Quantization.decodePosition(fleet.locationY), fleet.velocityX, fleet.velocityY,
+                Quantization.decodePosition(fleet.moveDestinationX), Quantization.decodePosition(fleet.moveDestinationY));
+        if (sentPositions.isEnabled()) {
+            if (sentPositions.shouldSend(entry)) entries.add(entry);
+            return;
+        }
+        if (moved) {
+            settlingPositions.put(fleetId, POSITION_SETTLE_TICKS);
+        } else {
+            Integer remaining = settlingPositions.get(fleetId);
+            if (remaining == null) return;
+            if (remaining <= 1) settlingPositions.remove(fleetId);
+            else settlingPositions.put(fleetId, remaining - 1);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Applies the positions received on the udp channel, executed in the main game thread every frame.
+     * The fleets are shown through their {@link InterpolationBuffer}, or without it moved on reception
+     * and corrected against their dead reckoning extrapolation in between
+     */
+    public void applyRemotePositions(PositionChannel positions, SnapshotApplier snapshotApplier) {
+        if (positions == null) return;
+        boolean deadReckoning = !interpolation && receivedPositions.isEnabled();
+        Set<String> received = new HashSet<>();
+        for (PositionChannel.Received position : positions.drain()) {
+            PositionDatagram.Entry entry = position.entry;
+            received.add(entry.fleetId);
+            CampaignFleetAPI fleet = EntityIndex.getFleet(entry.fleetId);
+            if (fleet != null) {
+                if (fleet.isPlayerFleet()) continue;
+                if (interpolation) {
+                    interpolationBuffers.computeIfAbsent(entry.fleetId, k -> new InterpolationBuffer(interpolationDelayMs))
+                            .add(entry, position.sentAt, position.receivedAt);
+                    continue;
+                }
+                if (deadReckoning) receivedPositions.receive(entry);
+                FleetSerializer.applyPosition(fleet, entry.x, entry.y, entry.destX, entry.destY);
+            } else {
+                try {
+                    snapshotApplier.updatePosition(entry.fleetId, entry.x, entry.y, entry.destX, entry.destY);
+                } catch (JSONException e) {
+                    MultiplayerLog.log().warn("Failed to update pending fleet " + entry.fleetId + " : " + e.getMessage());
+                }
+            }
+            // unknown fleets are requested by the tcp updates, they come with their position
+        }
+        if (interpolation) {
+            renderInterpolated();
+        } else {
+            interpolationBuffers.clear();
+        }
+        if (!deadReckoning) return;
+        for (Iterator<String> it = receivedPositions.fleetIds().iterator(); it.hasNext(); ) {
+            String fleetId = it.next();
+            if (received.contains(fleetId)) continue;
+            CampaignFleetAPI fleet = EntityIndex.getFleet(fleetId);
+            if (fleet == null) {
+                it.remove(); // despawned
+                continue;
+            }
+            PositionDatagram.Entry predicted = receivedPositions.extrapolate(fleetId);
+            if (predicted != null && !fleet.isPlayerFleet()) {
+                FleetSerializer.applyPosition(fleet, predicted.x, predicted.y, predicted.destX, predicted.destY);
+            }
+        }
+    }
+
+    private void renderInterpolated() {
+        if (Global.getSector().isPaused()) {
+            // the senders are paused too, interpolating over the pause would crawl
+            for (InterpolationBuffer buffer : interpolationBuffers.values()) buffer.clear();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        double maxDelay = 0;
+        for (Iterator<Map.Entry<String, InterpolationBuffer>> it = interpolationBuffers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, InterpolationBuffer> buffer = it.next();
+            CampaignFleetAPI fleet = EntityIndex.getFleet(buffer.getKey());
+            if (fleet == null) {
+                it.remove(); // despawned
+                continue;
+            }
+            PositionDatagram.Entry shown = buffer.getValue().sample(now);
+            if (shown == null) continue;
+            FleetSerializer.placeFleet(fleet, shown.x, shown.y, shown.velocityX, shown.velocityY, shown.destX, shown.destY);
+            maxDelay = Math.max(maxDelay, buffer.getValue().getDelayMs());
+        }
+        if (!interpolationBuffers.isEmpty()) SyncMetrics.sample("interpolationDelayMs", maxDelay);
     }
 
-    public void sendGlobalFleetsUpdate(Client client) throws JSONException {
-        JSONArray snapshot = FleetHelper.getNPCFleetsSnapshot();
-        JSONObject currentGlobalFleets = new JSONObject();
+    public void handleRemoteFleetUpdate(JSONObject fleetDiffs) throws JSONException {
+        FleetSerializer.applyFleetDiff(EntityIndex.getFleet(fleetDiffs.getString("fleetId")),fleetDiffs.getJSONObject("changes"));
+    }
 
-        // 1. Convert the Array snapshot to a Map keyed by Fleet ID
-        // Structure: { "fleet_id_1": { ...data... }, "fleet_id_2": { ...data... } }
-        for (int i = 0; i < snapshot.length(); i++) {
-            JSONObject fleet = snapshot.getJSONObject(i);
-            currentGlobalFleets.put(fleet.getString("id"), fleet);
+    /**
+     * @return true if any npc fleet changed since the last call
+     */
+    public boolean sendGlobalFleetsUpdate(Client client) throws JSONException {
+        long start = SyncMetrics.start();
+        // 1. Capture the npc fleets keyed by fleet id, the sections that didn't change are shared with the last tick
+        Map<String, FleetState> currentGlobalFleets = new LinkedHashMap<>();
+        for (CampaignFleetAPI fleet : FleetHelper.getNPCFleets()) {
+            currentGlobalFleets.put(fleet.getId(), FleetState.capture(fleet, lastTickGlobalFleet.get(fleet.getId())));
         }
 
         // 2. Diff the two Maps
-        // Your JsonDiffUtility will automatically generate:
-        // - "ADDED" actions for new keys (new fleets)
-        // - "REMOVED" actions for missing keys (despawned fleets)
+        // - add instructions for new keys (new fleets)
+        // - remove instructions for missing keys (despawned fleets)
         // - Nested updates for existing fleets
-        JSONObject diffs = JsonDiffUtility.getDifferences(lastTickGlobalFleet, currentGlobalFleets);
-        for (Iterator<?> it = diffs.keys(); it.hasNext(); ) {
-            String fleetId = (String) it.next();
-            if (!currentGlobalFleets.has(fleetId)) continue;
-            JSONObject fleetDiff = diffs.optJSONObject(fleetId);
-            // Only replace weapon groups in nested fleet updates, not in ADDED/REMOVED instructions
-            if (fleetDiff != null && !fleetDiff.has("action")) {
-                FleetSerializer.replaceWeaponGroupsDiffsWithFullState(fleetDiff, currentGlobalFleets.getJSONObject(fleetId));
-            }
-        }
+        JSONObject diffs = FleetStateDiffer.diffFleets(lastTickGlobalFleet, currentGlobalFleets);
+        boolean changed = diffs.length() > 0;
+        SyncMetrics.sample("globalFleetsChanged", diffs.length());
 
         // 3. Update local state
         lastTickGlobalFleet = currentGlobalFleets;
 
-        // 4. Send Packet
-        if (diffs.length() > 0) {
+        // positions of the existing fleets go on the udp channel, new fleets keep theirs in the add instruction
+        PositionChannel positions = client.getPositionChannel();
+        if (positions.isReady()) {
+            Map<String, List<PositionDatagram.Entry>> entries = new HashMap<>();
+            for (FleetState fleet : currentGlobalFleets.values()) {
+                if (JsonDiffUtility.isInstruction(diffs.opt(fleet.id))) continue;
+                JSONObject fleetDiff = diffs.optJSONObject(fleet.id);
+                collectPosition(fleet, fleetDiff, entries.computeIfAbsent(fleet.location, k -> new ArrayList<>()));
+                if (fleetDiff != null && fleetDiff.length() == 0) diffs.remove(fleet.id);
+            }
+            String ownFleetId = lastTickFleet == null ? "" : lastTickFleet.id;
+            settlingPositions.keySet().removeIf(fleetId -> !currentGlobalFleets.containsKey(fleetId) && !fleetId.equals(ownFleetId));
+            sentPositions.fleetIds().removeIf(fleetId -> !currentGlobalFleets.containsKey(fleetId) && !fleetId.equals(ownFleetId));
+            positions.send(entries);
+        }
+
+        // 4. Send one packet per location so the server only relays them to the players in it
+        // fleets appearing, disappearing or changing location concern every location
+        Map<String, JSONObject> updatesByLocation = new HashMap<>();
+        for (Iterator<?> it = diffs.keys(); it.hasNext(); ) {
+            String fleetId = (String) it.next();
+            Object fleetDiff = diffs.get(fleetId);
+            String location = "";
+            if (fleetDiff instanceof JSONObject nested && !nested.has("location")) {
+                location = currentGlobalFleets.get(fleetId).location;
+            }
+            updatesByLocation.computeIfAbsent(location, k -> new JSONObject()).put(fleetId, fleetDiff);
+        }
+        for (Map.Entry<String, JSONObject> entry : updatesByLocation.entrySet()) {
             JSONObject packet = new JSONObject();
             packet.put("commandId", "globalFleetsUpdate");
-            packet.put("updates", diffs);
-            client.send(packet.toString());
+            packet.put("location", entry.getKey());
+            packet.put("updates", entry.getValue());
+            client.send(packet);
         }
+        SyncMetrics.stop("sendGlobalFleetsUpdate", start);
+        return changed;
     }
 }
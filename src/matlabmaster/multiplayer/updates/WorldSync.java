@@ -19,7 +19,7 @@ public class WorldSync {
         JSONObject packet = new JSONObject();
         packet.put("commandId","serverTimeRequest");
         packet.put("from",client.clientId);
-        client.send(String.valueOf(packet));
+        client.send(packet);
     }
 
     public void sendOrbitSnapshotForLocation(LocationAPI location, Client client, String from) throws JSONException {
@@ -44,13 +44,13 @@ public class WorldSync {
         packet.put("commandId","handleOrbitSnapshotForLocation");
         packet.put("to",from);
         packet.put("orbits",orbits);
-        client.send(String.valueOf(packet));
+        client.send(packet);
     }
     public static void requestOrbitSnapshotForLocation(LocationAPI location,Client client) throws JSONException {
         JSONObject packet = new JSONObject();
         packet.put("commandId","requestOrbitSnapshotForLocation");
         packet.put("location",location.getId());
         packet.put("from",client.clientId);
-        client.send(packet.toString());
+        client.send(packet);
     }
 }
@@ -67,25 +67,51 @@ public class CargoSerializer {
             String key = (String) keys.next();
             Object delta = diff.get(key);
 
-            if (delta instanceof JSONObject obj && obj.has("action")) {
-                String action = obj.getString("action");
-
-                // For REMOVED, we just clear the stack
-                if ("REMOVED".equals(action)) {
+            if (JsonDiffUtility.isInstruction(delta)) {
+                // For a remove, we just clear the stack
+                if (JsonDiffUtility.REMOVE.equals(JsonDiffUtility.opOf(delta))) {
                     removeStackByKey(cargo, key);
                     continue;
                 }
 
-                // For ADDED or UPDATE, we need the inner data
-                JSONObject itemData = obj.getJSONObject("value");
+                // For an add or a set, we need the inner data
+                JSONObject itemData = (JSONObject) JsonDiffUtility.valueOf(delta);
                 float targetQty = (float) itemData.getDouble("quantity");
                 String type = itemData.getString("type");
 
                 syncItemStack(cargo, key, itemData, type, targetQty);
+            } else if (delta instanceof JSONObject changes && changes.has("quantity")) {
+                // nested diff of an existing stack : {"quantity": ["s", 120.0]}
+                Object quantity = JsonDiffUtility.valueOf(changes.get("quantity"));
+                if (quantity instanceof Number number) {
+                    setStackQuantity(cargo, key, number.floatValue());
+                }
             }
         }
     }
 
+    /**
+     * The nested diffs don't carry the stack type, the stack is found by its key among the current ones.
+     * A stack the receiver doesn't have is left alone, the next snapshot brings it.
+     */
+    private static void setStackQuantity(CargoAPI cargo, String key, float targetQty) {
+        for (CargoStackAPI stack : cargo.getStacksCopy()) {
+            if (key.equals(stackKey(stack))) {
+                stack.setSize(targetQty);
+                break;
+            }
+        }
+        cargo.removeEmptyStacks();
+    }
+
+    private static String stackKey(CargoStackAPI stack) {
+        if (stack.isCommodityStack()) return stack.getCommodityId();
+        if (stack.isWeaponStack()) return stack.getWeaponSpecIfWeapon().getWeaponId();
+        if (stack.isFighterWingStack()) return stack.getFighterWingSpecIfWing().getId();
+        if (stack.isSpecialStack()) return stack.getSpecialDataIfSpecial().getId() + "_" + stack.getSpecialDataIfSpecial().getData();
+        return "";
+    }
+
     private static void syncItemStack(CargoAPI cargo, String key, JSONObject data, String type, float targetQty) throws JSONException {
         float currentQty = getQuantityByKey(cargo, key, type);
         float diff = targetQty - currentQty;
@@ -119,13 +145,7 @@ public class CargoSerializer {
     private static void removeStackByKey(CargoAPI cargo, String key) {
         // Find the specific stack and set to 0 to trigger removal
         for (CargoStackAPI stack : cargo.getStacksCopy()) {
-            String stackKey = "";
-            if (stack.isCommodityStack()) stackKey = stack.getCommodityId();
-            else if (stack.isWeaponStack()) stackKey = stack.getWeaponSpecIfWeapon().getWeaponId();
-            else if (stack.isFighterWingStack()) stackKey = stack.getFighterWingSpecIfWing().getId();
-            else if (stack.isSpecialStack()) stackKey = stack.getSpecialDataIfSpecial().getId() + "_" + stack.getSpecialDataIfSpecial().getData();
-
-            if (key.equals(stackKey)) {
+            if (key.equals(stackKey(stack))) {
                 stack.setSize(0);
             }
         }
@@ -0,0 +1,136 @@
+package matlabmaster.multiplayer.utils;
+
+import com.fs.starfarer.api.Global;
+import com.fs.starfarer.api.campaign.CampaignFleetAPI;
+import com.fs.starfarer.api.campaign.LocationAPI;
+import com.fs.starfarer.api.campaign.SectorEntityToken;
+import com.fs.starfarer.api.fleet.FleetMemberAPI;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup of the fleets, ships and locations named by the received updates, instead of a sector wide getEntityById
+ * per message and a copy of the members list per ship in a diff.
+ * Kept up to date when we spawn / despawn a fleet or add / remove a ship, but the game spawns and kills fleets on its
+ * own too, so every hit is checked and a miss falls back to the game lookup once before being indexed.
+ * Executed in the main game thread.
+ */
+public final class EntityIndex {
+    private static final Map<String, CampaignFleetAPI> fleets = new HashMap<>();
+    /** fleet id -> ship id -> ship */
+    private static final Map<String, Map<String, FleetMemberAPI>> members = new HashMap<>();
+    private static final Map<String, LocationAPI> locations = new HashMap<>();
+
+    private EntityIndex() {}
+
+    /**
+     * @return the fleet, null if it isn't spawned
+     */
+    public static CampaignFleetAPI getFleet(String fleetId) {
+        CampaignFleetAPI fleet = fleets.get(fleetId);
+        if (fleet != null && isSpawned(fleet, fleetId)) return fleet;
+        if (fleet != null) removeFleet(fleetId);
+
+        SectorEntityToken entity = Global.getSector().getEntityById(fleetId);
+        if (!(entity instanceof CampaignFleetAPI found)) return null;
+        fleets.put(fleetId, found);
+        return found;
+    }
+
+    public static void addFleet(CampaignFleetAPI fleet) {
+        fleets.put(fleet.getId(), fleet);
+        members.remove(fleet.getId()); // indexed again on the first ship lookup
+    }
+
+    /**
+     * Forgets the fleet and its ships, call it when despawning
+     */
+    public static void removeFleet(String fleetId) {
+        fleets.remove(fleetId);
+        members.remove(fleetId);
+    }
+
+    /**
+     * Ship lookup for one diff of the fleet
+     */
+    public static Members membersOf(CampaignFleetAPI fleet) {
+        return new Members(fleet);
+    }
+
+    /**
+     * Rebuilds the fleet's ship index at most once, so a diff naming k unknown ships doesn't copy the members list k times
+     */
+    public static final class Members {
+        private final CampaignFleetAPI fleet;
+        private boolean rebuilt = false;
+
+        private Members(CampaignFleetAPI fleet) {
+            this.fleet = fleet;
+        }
+
+        /**
+         * @return the ship of the fleet, null if it has none with this id
+         */
+        public FleetMemberAPI get(String shipId) {
+            Map<String, FleetMemberAPI> ships = members.get(fleet.getId());
+            if (ships == null) {
+                ships = indexMembers(fleet);
+                rebuilt = true;
+            }
+            FleetMemberAPI member = ships.get(shipId);
+            if (member != null && member.getFleetData() == fleet.getFleetData()) return member;
+            if (rebuilt) return null; // the index is fresh, a miss is a real one
+
+            // unknown or moved, the game may have changed the fleet behind our back
+            rebuilt = true;
+            return indexMembers(fleet).get(shipId);
+        }
+    }
+
+    public static void addMember(CampaignFleetAPI fleet, FleetMemberAPI member) {
+        Map<String, FleetMemberAPI> ships = members.get(fleet.getId());
+        if (ships != null) ships.put(member.getId(), member);
+    }
+
+    public static void removeMember(CampaignFleetAPI fleet, FleetMemberAPI member) {
+        Map<String, FleetMemberAPI> ships = members.get(fleet.getId());
+        if (ships != null) ships.remove(member.getId());
+    }
+
+    /**
+     * @param locationId "hyperspace" or a star system, as put in the serialized fleets
+     * @return the location, null if the sector has none with this id
+     */
+    public static LocationAPI getLocation(String locationId) {
+        if ("hyperspace".equals(locationId)) return Global.getSector().getHyperspace();
+        LocationAPI location = locations.get(locationId);
+        if (location != null) return location;
+
+        location = Global.getSector().getStarSystem(locationId);
+        if (location != null) locations.put(locationId, location);
+        return location;
+    }
+
+    /**
+     * Drops everything, the entities belong to the previous sector once a save is loaded
+     */
+    public static void clear() {
+        fleets.clear();
+        members.clear();
+        locations.clear();
+    }
+
+    private static boolean isSpawned(CampaignFleetAPI fleet, String fleetId) {
+        return fleet.isAlive() && fleet.getContainingLocation() != null && fleetId.equals(fleet.getId());
+    }
+
+    private static Map<String, FleetMemberAPI> indexMembers(CampaignFleetAPI fleet) {
+        Map<String, FleetMemberAPI> ships = new HashMap<>();
+        for (FleetMemberAPI member : fleet.getFleetData().getMembersListCopy()) {
+            ships.put(member.getId(), member);
+        }
+        members.put(fleet.getId(), ships);
+        return ships;
+    }
+}
@@ -35,10 +35,21 @@ public class FleetHelper {
 
     public static JSONArray getNPCFleetsSnapshot() throws JSONException {
         JSONArray fleets = new JSONArray();
+        for (CampaignFleetAPI fleet : getNPCFleets()) {
+            fleets.put(FleetSerializer.serializeFleet(fleet));
+        }
+        return fleets;
+    }
+
+    /**
+     * The fleets the authority syncs : not the players' and not the stations
+     */
+    public static List<CampaignFleetAPI> getNPCFleets() {
+        List<CampaignFleetAPI> fleets = new ArrayList<>();
         for(LocationAPI location : Global.getSector().getAllLocations()){
             for (CampaignFleetAPI fleet : location.getFleets()){
                 if(!fleet.isStationMode() && !fleet.isPlayerFleet() && !fleet.hasTag("playerFleet")){ //sometimes stations are considered fleets
-                    fleets.put(FleetSerializer.serializeFleet(fleet));
+                    fleets.add(fleet);
                 }
             }
         }
@@ -47,7 +58,9 @@ public class FleetHelper {
 
 
     public static void removeFleetById(String id){
-        Global.getSector().getEntityById(id).getContainingLocation().removeEntity(Global.getSector().getEntityById(id));
+        CampaignFleetAPI fleet = EntityIndex.getFleet(id);
+        EntityIndex.removeFleet(id);
+        if (fleet != null) fleet.getContainingLocation().removeEntity(fleet);
     }
 
 }
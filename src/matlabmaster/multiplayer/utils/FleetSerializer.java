@@ -14,6 +14,7 @@ import com.fs.starfarer.campaign.ai.CampaignFleetAI;
 import com.fs.starfarer.campaign.ai.ModularFleetAI;
 import com.fs.starfarer.campaign.fleet.CampaignFleet;
 import com.fs.starfarer.launcher.opengl.GLModPickerV2;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -21,52 +22,54 @@ import org.json.JSONObject;
 import java.util.*;
 
 public class FleetSerializer {
+    /** root keys sent on the udp position channel once it is ready instead of the tcp diffs */
+    public static final String[] POSITION_KEYS = {"locationX", "locationY", "moveDestinationX", "moveDestinationY"};
+    /** below this gap the local fleet ai is left to catch up on its own, above it the fleet is teleported */
+    private static final double POSITION_SNAP_DISTANCE = 50;
 
     /**
      * Applies a JSON Diff to a live CampaignFleetAPI.
      * This iterates through the changes and calls the appropriate game engine methods.
      */
     public static void applyFleetDiff(CampaignFleetAPI fleet, JSONObject diff) throws JSONException {
+        long start = SyncMetrics.start();
         Iterator<?> keys = diff.keys();
         while (keys.hasNext()) {
             String key = (String) keys.next();
             Object delta = diff.get(key);
 
-            // Handle root fleet properties (UPDATE instructions)
-            if (delta instanceof JSONObject && ((JSONObject) delta).has("action")) {
-                applyRootProperty(fleet, key, (JSONObject) delta);
+            // Handle root fleet properties (set instructions)
+            if (JsonDiffUtility.isInstruction(delta)) {
+                applyRootProperty(fleet, key, delta);
             }
             // Handle nested maps (ships, cargo, abilities, persons)
             else if (delta instanceof JSONObject) {
                 applyNestedPatch(fleet, key, (JSONObject) delta);
             }
         }
+        SyncMetrics.stop("applyFleetDiff", start);
     }
 
-    private static void applyRootProperty(CampaignFleetAPI fleet, String key, JSONObject instruction) throws JSONException {
-        String action = instruction.getString("action");
-        if (!"UPDATE".equals(action)) return; //all the root parameters always exist for a fleet
+    private static void applyRootProperty(CampaignFleetAPI fleet, String key, Object instruction) throws JSONException {
+        if (!JsonDiffUtility.SET.equals(JsonDiffUtility.opOf(instruction))) return; //all the root parameters always exist for a fleet
 
-        Object value = instruction.get("value");
+        Object value = JsonDiffUtility.valueOf(instruction);
         switch (key) {
             case "locationX":
-                // Use ((Number) value).doubleValue() to handle both Integer and Double safely
-                if (Math.abs(fleet.getLocation().getX() - ((Number) value).doubleValue()) > 50) {
-                    fleet.setLocation(((Number) value).floatValue(), fleet.getLocation().getY());
+                // positions are fixed point, see Quantization
+                float x = Quantization.decodePosition((Number) value);
+                if (Math.abs(fleet.getLocation().getX() - x) > POSITION_SNAP_DISTANCE) {
+                    fleet.setLocation(x, fleet.getLocation().getY());
                 }
                 break;
             case "locationY":
-                if (Math.abs(fleet.getLocation().getY() - ((Number) value).doubleValue()) > 50) {
-                    fleet.setLocation(fleet.getLocation().getX(), ((Number) value).floatValue());
+                float y = Quantization.decodePosition((Number) value);
+                if (Math.abs(fleet.getLocation().getY() - y) > POSITION_SNAP_DISTANCE) {
+                    fleet.setLocation(fleet.getLocation().getX(), y);
                 }
                 break;
             case "location":
-                LocationAPI area;
-                if(Objects.equals(value, "hyperspace")){
-                    area = Global.getSector().getHyperspace();
-                }else{
-                    area = Global.getSector().getStarSystem((String) value);
-                }
+                LocationAPI area = EntityIndex.getLocation((String) value);
                 SectorEntityToken landingZone = area.createToken(fleet.getLocation().x,fleet.getLocation().y);
                 JumpPointAPI.JumpDestination destination = new JumpPointAPI.JumpDestination(landingZone, "multiplayerJump");
                 Global.getSector().doHyperspaceTransition(fleet,fleet, destination);
@@ -80,10 +83,10 @@ public class FleetSerializer {
                 fleet.setFaction((String) value);
                 break;
             case "moveDestinationX":
-                fleet.setMoveDestination(((Number) value).floatValue(), fleet.getMoveDestination().getY()); //update x and y independently (in case only one of them is updated)
+                fleet.setMoveDestination(Quantization.decodePosition((Number) value), fleet.getMoveDestination().getY()); //update x and y independently (in case only one of them is updated)
                 break;
             case "moveDestinationY":
-                fleet.setMoveDestination(fleet.getMoveDestination().getX(), ((Number) value).floatValue());
+                fleet.setMoveDestination(fleet.getMoveDestination().getX(), Quantization.decodePosition((Number) value));
                 break;
             case "aiMode":
                 fleet.setAIMode((Boolean) value);
@@ -93,6 +96,28 @@ public class FleetSerializer {
         }
     }
 
+    /**
+     * Applies a position received on the udp channel, same rules as the locationX / moveDestinationX diffs
+     */
+    public static void applyPosition(CampaignFleetAPI fleet, float x, float y, float destX, float destY) {
+        float currentX = fleet.getLocation().getX();
+        float currentY = fleet.getLocation().getY();
+        if (Math.abs(currentX - x) > POSITION_SNAP_DISTANCE) currentX = x;
+        if (Math.abs(currentY - y) > POSITION_SNAP_DISTANCE) currentY = y;
+        fleet.setLocation(currentX, currentY);
+        fleet.setMoveDestination(destX, destY);
+    }
+
+    /**
+     * Puts a remote fleet exactly where its interpolation buffer shows it, the velocity keeps the game from
+     * moving it elsewhere until the next frame
+     */
+    public static void placeFleet(CampaignFleetAPI fleet, float x, float y, float velocityX, float velocityY, float destX, float destY) {
+        fleet.setLocation(x, y);
+        fleet.getVelocity().set(velocityX, velocityY);
+        fleet.setMoveDestination(destX, destY);
+    }
+
     private static void applyNestedPatch(CampaignFleetAPI fleet, String rootKey, JSONObject subDiff) throws JSONException {
         switch (rootKey) {
             case "ships":
@@ -110,29 +135,31 @@ public class FleetSerializer {
     }
 
     private static void patchShips(CampaignFleetAPI fleet, JSONObject shipsDiff) throws JSONException {
+        EntityIndex.Members members = EntityIndex.membersOf(fleet);
         Iterator<?> shipIds = shipsDiff.keys();
         while (shipIds.hasNext()) {
             String shipId = (String) shipIds.next();
             Object delta = shipsDiff.get(shipId);
 
-            FleetMemberAPI member = null;
-            for (FleetMemberAPI m : fleet.getFleetData().getMembersListCopy()) {
-                if (m.getId().equals(shipId)) {
-                    member = m;
-                    break;
-                }
-            }
-
-            if (delta instanceof JSONObject obj && obj.has("action")) {
-                String action = obj.getString("action");
-                if ("REMOVED".equals(action) && member != null) {
-                    fleet.getFleetData().removeFleetMember(member);
-                } else if ("ADDED".equals(action)) {
-                    FleetMemberAPI newMember = unSerializeFleetMember(obj.getJSONObject("value"));
+            if (JsonDiffUtility.isInstruction(delta)) {
+                String op = JsonDiffUtility.opOf(delta);
+                if (JsonDiffUtility.REMOVE.equals(op)) {
+                    FleetMemberAPI member = members.get(shipId);
+                    if (member != null) {
+                        fleet.getFleetData().removeFleetMember(member);
+                        EntityIndex.removeMember(fleet, member);
+                    }
+                } else if (JsonDiffUtility.ADD.equals(op)) {
+                    FleetMemberAPI newMember = unSerializeFleetMember((JSONObject) JsonDiffUtility.valueOf(delta));
                     newMember.setId(shipId);
                     fleet.getFleetData().addFleetMember(newMember);
+                    EntityIndex.addMember(fleet, newMember);
                 }
-            } else if (delta instanceof JSONObject changes && member != null) {
+                continue;
+            }
+            // added ships are never indexed yet, only look up the ones being patched
+            FleetMemberAPI member = members.get(shipId);
+            if (delta instanceof JSONObject changes && member != null) {
                 if (changes.has("hullMods")) {
                     patchHullMods(member.getVariant(), changes.getJSONObject("hullMods"), false);
                 }
@@ -141,21 +168,20 @@ public class FleetSerializer {
                     patchHullMods(member.getVariant(), changes.getJSONObject("sHullMods"), true);
                 }
                 if (changes.has("combatReadiness")) {
-                    Object crVal = changes.getJSONObject("combatReadiness").get("value");//todo maybe not needed since the game show be able to track it on its own, keep for now
-                    member.getRepairTracker().setCR(((Number) crVal).floatValue());
+                    Object crVal = JsonDiffUtility.valueOf(changes.get("combatReadiness"));//todo maybe not needed since the game show be able to track it on its own, keep for now
+                    member.getRepairTracker().setCR(Quantization.decodeCr((Number) crVal));
                 }
                 if (changes.has("name")) {
-                    member.setShipName(changes.getJSONObject("name").getString("value"));
+                    member.setShipName((String) JsonDiffUtility.valueOf(changes.get("name")));
                 }
                 if (changes.has("captain")) {
                     Object captainDelta = changes.get("captain");
                     PersonAPI currentCaptain = member.getCaptain();
 
-                    if (captainDelta instanceof JSONObject obj && obj.has("action")) {
+                    if (JsonDiffUtility.isInstruction(captainDelta)) {
                         // CASE A: The entire captain object changed/swapped
-                        String action = obj.getString("action");
-                        if ("UPDATE".equals(action) || "ADDED".equals(action)) {
-                            member.setCaptain(PersonsSerializer.unSerializePerson(obj.getJSONObject("value")));
+                        if (JsonDiffUtility.valueOf(captainDelta) instanceof JSONObject captain) {
+                            member.setCaptain(PersonsSerializer.unSerializePerson(captain));
                         }
                     } else if (captainDelta instanceof JSONObject nestedChanges && currentCaptain != null) {
                         // CASE B: Granular changes to the existing captain (skills, level, etc.)
@@ -168,13 +194,13 @@ public class FleetSerializer {
                     }
                 }
                 if (changes.has("isMothballed")){
-                    member.getRepairTracker().setMothballed(changes.getJSONObject("isMothballed").getBoolean("value"));
+                    member.getRepairTracker().setMothballed((Boolean) JsonDiffUtility.valueOf(changes.get("isMothballed")));
                 }
                 if (changes.has("fluxVents")){
-                    member.getVariant().setNumFluxVents(changes.getJSONObject("fluxVents").getInt("value"));
+                    member.getVariant().setNumFluxVents(((Number) JsonDiffUtility.valueOf(changes.get("fluxVents"))).intValue());
                 }
                 if (changes.has("fluxCapacitors")){
-                    member.getVariant().setNumFluxCapacitors(changes.getJSONObject("fluxCapacitors").getInt("value"));
+                    member.getVariant().setNumFluxCapacitors(((Number) JsonDiffUtility.valueOf(changes.get("fluxCapacitors"))).intValue());
                 }
 
                 if (changes.has("fittedGuns")) {
@@ -188,10 +214,10 @@ public class FleetSerializer {
                 }
 
                 if (changes.has("weaponGroups")) {
-                    patchWeaponGroups(member.getVariant(), changes.getJSONObject("weaponGroups"));
+                    patchWeaponGroups(member.getVariant(), changes.get("weaponGroups"));
                 }
                 if (changes.has("isFlagShip")){
-                    member.setFlagship(changes.getJSONObject("isFlagShip").getBoolean("value"),true);
+                    member.setFlagship((Boolean) JsonDiffUtility.valueOf(changes.get("isFlagShip")),true);
                 }
             }
         }
@@ -204,17 +230,16 @@ public class FleetSerializer {
             Object delta = abilitiesDiff.get(abilityId);
 
             // 1. Structural changes (Added/Removed ability from the NPC fleet)
-            if (delta instanceof JSONObject && ((JSONObject) delta).has("action")) {
-                JSONObject obj = (JSONObject) delta;
-                String action = obj.getString("action");
+            if (JsonDiffUtility.isInstruction(delta)) {
+                String op = JsonDiffUtility.opOf(delta);
 
-                if ("ADDED".equals(action)) {
+                if (JsonDiffUtility.ADD.equals(op)) {
                     fleet.addAbility(abilityId);
-                    syncAbilityState(fleet, abilityId, obj.getJSONObject("value"));
-                } else if ("REMOVED".equals(action)) {
+                    syncAbilityState(fleet, abilityId, (JSONObject) JsonDiffUtility.valueOf(delta));
+                } else if (JsonDiffUtility.REMOVE.equals(op)) {
                     fleet.removeAbility(abilityId);
-                } else if ("UPDATE".equals(action)) {
-                    syncAbilityState(fleet, abilityId, obj.getJSONObject("value"));
+                } else if (JsonDiffUtility.SET.equals(op)) {
+                    syncAbilityState(fleet, abilityId, (JSONObject) JsonDiffUtility.valueOf(delta));
                 }
             }
             // 2. Value changes (The 'active' toggle)
@@ -236,9 +261,9 @@ public class FleetSerializer {
             Object activeObj = changes.get("active");
             boolean shouldBeActive;
 
-            // Extracting from { "active": { "action": "UPDATE", "value": true } }
-            if (activeObj instanceof JSONObject && ((JSONObject) activeObj).has("value")) {
-                shouldBeActive = ((JSONObject) activeObj).getBoolean("value");
+            // Extracting from { "active": ["s", true] }
+            if (JsonDiffUtility.isInstruction(activeObj)) {
+                shouldBeActive = Boolean.TRUE.equals(JsonDiffUtility.valueOf(activeObj));
             }
             // Extracting from { "active": true }
             else {
@@ -254,20 +279,9 @@ public class FleetSerializer {
     }
 
     public static JSONObject serializeFleet(CampaignFleetAPI fleet) throws JSONException {
+        long start = SyncMetrics.start();
         JSONObject serializedFleet = new JSONObject();
-        serializedFleet.put("id", fleet.getId());
-
-        // Coordinates and Location
-        serializedFleet.put("locationX", ((int)(fleet.getLocation().getX() * 10000)) / 10000d);
-        serializedFleet.put("locationY", ((int)(fleet.getLocation().getY() * 10000)) / 10000d);
-        serializedFleet.put("location", fleet.getContainingLocation().getId());
-        serializedFleet.put("factionId", fleet.getFaction().getId());
-        serializedFleet.put("moveDestinationX", ((int)(fleet.getMoveDestination().getX() * 10000)) / 10000d);
-        serializedFleet.put("moveDestinationY", ((int)(fleet.getMoveDestination().getY() * 10000)) / 10000d);
-        serializedFleet.put("isPlayerFleet", fleet.isPlayerFleet());
-        serializedFleet.put("isTransponderOn", fleet.isTransponderOn());
-        serializedFleet.put("aiMode",fleet.isAIMode());
-        serializedFleet.put("name",fleet.getName());
+        putFleetProperties(fleet, serializedFleet);
 
         // MAPS instead of ARRAYS
         serializedFleet.put("abilities", serializeAbilities(fleet.getAbilities()));
@@ -281,31 +295,24 @@ public class FleetSerializer {
         //if(fleet.getCurrentAssignment() != null){
         //    serializedFleet.put("assignment",serializeAssignment(fleet.getCurrentAssignment()));
         //}
+        SyncMetrics.stop("serializeFleet", start);
         return serializedFleet;
     }
 
-    /**
-     * Replaces any weaponGroups diff (ADDED/REMOVED/UPDATE per group) with the full
-     * weapon groups map from the new serialized fleet, so the receiver can clear-and-apply.
-     * Call this on the fleet diff after getDifferences() and before sending.
-     */
-    public static void replaceWeaponGroupsDiffsWithFullState(JSONObject fleetDiff, JSONObject newSerializedFleet) {
-        if (!fleetDiff.has("ships") || !newSerializedFleet.has("ships")) return;
-        try {
-            JSONObject shipsDiff = fleetDiff.getJSONObject("ships");
-            JSONObject newShips = newSerializedFleet.getJSONObject("ships");
-            Iterator<?> shipIds = shipsDiff.keys();
-            while (shipIds.hasNext()) {
-                String shipId = (String) shipIds.next();
-                if (!newShips.has(shipId)) continue;
-                JSONObject shipDiff = shipsDiff.optJSONObject(shipId);
-                if (shipDiff == null || !shipDiff.has("weaponGroups")) continue;
-                JSONObject fullWeaponGroups = newShips.getJSONObject(shipId).optJSONObject("weaponGroups");
-                if (fullWeaponGroups != null) {
-                    shipDiff.put("weaponGroups", fullWeaponGroups);
-                }
-            }
-        } catch (JSONException ignored) { }
+    private static void putFleetProperties(CampaignFleetAPI fleet, JSONObject serializedFleet) throws JSONException {
+        serializedFleet.put("id", fleet.getId());
+
+        // Coordinates and Location, fixed point (see Quantization)
+        serializedFleet.put("locationX", Quantization.position(fleet.getLocation().getX()));
+        serializedFleet.put("locationY", Quantization.position(fleet.getLocation().getY()));
+        serializedFleet.put("location", fleet.getContainingLocation().getId());
+        serializedFleet.put("factionId", fleet.getFaction().getId());
+        serializedFleet.put("moveDestinationX", Quantization.position(fleet.getMoveDestination().getX()));
+        serializedFleet.put("moveDestinationY", Quantization.position(fleet.getMoveDestination().getY()));
+        serializedFleet.put("isPlayerFleet", fleet.isPlayerFleet());
+        serializedFleet.put("isTransponderOn", fleet.isTransponderOn());
+        serializedFleet.put("aiMode",fleet.isAIMode());
+        serializedFleet.put("name",fleet.getName());
     }
 
     public static void unSerializeFleet(JSONObject serializedFleet, CampaignFleetAPI fleet) throws JSONException {
@@ -319,16 +326,13 @@ public class FleetSerializer {
             fleet.addTag("playerFleet");
         }
 
-        if(Objects.equals(serializedFleet.getString("location"), "hyperspace")){
-            fleet.setContainingLocation(Global.getSector().getHyperspace());
-            Global.getSector().getHyperspace().addEntity(fleet); // the previous line doesn't actually spawn it in location
-        }else{
-            fleet.setContainingLocation(Global.getSector().getStarSystem(serializedFleet.getString("location")));
-            Global.getSector().getStarSystem(serializedFleet.getString("location")).addEntity(fleet);
-        }
-        fleet.setLocation((float) serializedFleet.getDouble("locationX"),(float) serializedFleet.getDouble("locationY"));
+        LocationAPI location = EntityIndex.getLocation(serializedFleet.getString("location"));
+        fleet.setContainingLocation(location);
+        location.addEntity(fleet); // the previous line doesn't actually spawn it in location
+        EntityIndex.addFleet(fleet);
+        fleet.setLocation(Quantization.decodePosition((Number) serializedFleet.get("locationX")), Quantization.decodePosition((Number) serializedFleet.get("locationY")));
 
-        fleet.setMoveDestination((float) serializedFleet.getDouble("moveDestinationX"), (float) serializedFleet.getDouble("moveDestinationY"));
+        fleet.setMoveDestination(Quantization.decodePosition((Number) serializedFleet.get("moveDestinationX")), Quantization.decodePosition((Number) serializedFleet.get("moveDestinationY")));
 
         fleet.setTransponderOn(serializedFleet.getBoolean("isTransponderOn"));
 
@@ -404,74 +408,82 @@ public class FleetSerializer {
     public static JSONObject serializeFleetShips(FleetDataAPI fleetData) throws JSONException {
         JSONObject shipsMap = new JSONObject();
         for (FleetMemberAPI ship : fleetData.getMembersListCopy()) {
-            JSONObject shipSerialized = new JSONObject();
-
-            String hullId = ship.getHullSpec().getHullId();
-            if (hullId.contains("_default_")) {
-                hullId = hullId.substring(0, hullId.indexOf("_default_"));
-            }
+            shipsMap.put(ship.getId(), serializeFleetMember(ship));
+        }
+        return shipsMap;
+    }
 
-            shipSerialized.put("id", ship.getId());
-            shipSerialized.put("hull", hullId);
-            shipSerialized.put("combatReadiness", ((int)(ship.getRepairTracker().getCR() * 1000)) / 1000d);
-            shipSerialized.put("name", ship.getShipName());
-            shipSerialized.put("isMothballed", ship.isMothballed());
-            shipSerialized.put("fluxVents", ship.getVariant().getNumFluxVents());
-            shipSerialized.put("fluxCapacitors", ship.getVariant().getNumFluxCapacitors());
-            shipSerialized.put("isFlagShip", ship.isFlagship());
+    public static JSONObject serializeFleetMember(FleetMemberAPI ship) throws JSONException {
+        JSONObject shipSerialized = new JSONObject();
+        putMemberProperties(ship, shipSerialized);
+        putVariant(ship.getVariant(), shipSerialized);
+        shipSerialized.put("captain", PersonsSerializer.serializePerson(ship.getCaptain()));
+        return shipSerialized;
+    }
 
-            ShipVariantAPI shipVariant = ship.getVariant();
+    private static void putMemberProperties(FleetMemberAPI ship, JSONObject shipSerialized) throws JSONException {
+        String hullId = ship.getHullSpec().getHullId();
+        if (hullId.contains("_default_")) {
+            hullId = hullId.substring(0, hullId.indexOf("_default_"));
+        }
 
-            JSONObject hullModsMap = new JSONObject();
-            for (String modId : shipVariant.getHullMods()) {
-                hullModsMap.put(modId, true);
-            }
-            shipSerialized.put("hullMods", hullModsMap);
+        shipSerialized.put("id", ship.getId());
+        shipSerialized.put("hull", hullId);
+        shipSerialized.put("combatReadiness", Quantization.cr(ship.getRepairTracker().getCR()));
+        shipSerialized.put("name", ship.getShipName());
+        shipSerialized.put("isMothballed", ship.isMothballed());
+        shipSerialized.put("fluxVents", ship.getVariant().getNumFluxVents());
+        shipSerialized.put("fluxCapacitors", ship.getVariant().getNumFluxCapacitors());
+        shipSerialized.put("isFlagShip", ship.isFlagship());
+    }
 
-            // S-Mods (Permanent/Story Mods)
-            JSONObject sModsMap = new JSONObject();
-            for (String modId : shipVariant.getSMods()) {
-                sModsMap.put(modId, true);
-            }
-            shipSerialized.put("sHullMods", sModsMap);
+    /**
+     * Hull mods, wings, guns and weapon groups of the ship
+     */
+    private static void putVariant(ShipVariantAPI shipVariant, JSONObject shipSerialized) throws JSONException {
+        JSONObject hullModsMap = new JSONObject();
+        for (String modId : shipVariant.getHullMods()) {
+            hullModsMap.put(modId, true);
+        }
+        shipSerialized.put("hullMods", hullModsMap);
 
-            JSONObject wingsMap = new JSONObject();
-            List<String> wings = shipVariant.getFittedWings();
-            for (int i = 0; i < wings.size(); i++) {
-                if (wings.get(i) != null) wingsMap.put(String.valueOf(i), wings.get(i));
-            }
-            shipSerialized.put("fittedWings", wingsMap);
+        // S-Mods (Permanent/Story Mods)
+        JSONObject sModsMap = new JSONObject();
+        for (String modId : shipVariant.getSMods()) {
+            sModsMap.put(modId, true);
+        }
+        shipSerialized.put("sHullMods", sModsMap);
 
-            // 2. Guns keyed by Slot ID (Already doing this, but confirming)
-            JSONObject gunsMap = new JSONObject();
-            for (String slotId : shipVariant.getFittedWeaponSlots()) {
-                gunsMap.put(slotId, shipVariant.getWeaponId(slotId));
-            }
-            shipSerialized.put("fittedGuns", gunsMap);
-
-            // 3. Weapon Groups keyed by group index
-            JSONObject groupsMap = new JSONObject();
-            List<WeaponGroupSpec> groups = shipVariant.getWeaponGroups();
-            for (int i = 0; i < groups.size(); i++) {
-                WeaponGroupSpec group = groups.get(i);
-                JSONObject groupObj = new JSONObject();
-                groupObj.put("type", group.getType().name());
-                groupObj.put("autofire", group.isAutofireOnByDefault());
-                groupObj.put("slots", new JSONArray(group.getSlots()));
-                groupsMap.put(String.valueOf(i), groupObj);
-            }
-            shipSerialized.put("weaponGroups", groupsMap);
-            shipSerialized.put("captain", PersonsSerializer.serializePerson(ship.getCaptain()));
+        JSONObject wingsMap = new JSONObject();
+        List<String> wings = shipVariant.getFittedWings();
+        for (int i = 0; i < wings.size(); i++) {
+            if (wings.get(i) != null) wingsMap.put(String.valueOf(i), wings.get(i));
+        }
+        shipSerialized.put("fittedWings", wingsMap);
 
-            shipsMap.put(ship.getId(), shipSerialized);
+        // 2. Guns keyed by Slot ID (Already doing this, but confirming)
+        JSONObject gunsMap = new JSONObject();
+        for (String slotId : shipVariant.getFittedWeaponSlots()) {
+            gunsMap.put(slotId, shipVariant.getWeaponId(slotId));
         }
-        return shipsMap;
+        shipSerialized.put("fittedGuns", gunsMap);
+
+        // 3. Weapon Groups in order, diffed as a list (see JsonDiffUtility.diffArrays)
+        JSONArray groupsList = new JSONArray();
+        for (WeaponGroupSpec group : shipVariant.getWeaponGroups()) {
+            JSONObject groupObj = new JSONObject();
+            groupObj.put("type", group.getType().name());
+            groupObj.put("autofire", group.isAutofireOnByDefault());
+            groupObj.put("slots", new JSONArray(group.getSlots()));
+            groupsList.put(groupObj);
+        }
+        shipSerialized.put("weaponGroups", groupsList);
     }
 
     public static FleetMemberAPI unSerializeFleetMember(JSONObject shipObject) throws JSONException {
         FleetMemberAPI ship = Global.getFactory().createFleetMember(FleetMemberType.SHIP, shipObject.getString("hull") + "_Hull");
         ShipVariantAPI variant = ship.getVariant();
-        ship.getRepairTracker().setCR((float) shipObject.getDouble("combatReadiness"));
+        ship.getRepairTracker().setCR(Quantization.decodeCr((Number) shipObject.get("combatReadiness")));
         ship.setShipName(shipObject.optString("name", ""));
         ship.getRepairTracker().setMothballed(shipObject.getBoolean("isMothballed"));
         variant.setNumFluxVents(shipObject.getInt("fluxVents"));
@@ -505,16 +517,11 @@ public class FleetSerializer {
             variant.addWeapon(slotId, fittedGuns.getString(slotId));
         }
 
-        JSONObject groups = shipObject.getJSONObject("weaponGroups");
+        JSONArray groups = shipObject.getJSONArray("weaponGroups");
         ship.getVariant().setMayAutoAssignWeapons(false);
         variant.getWeaponGroups().clear(); // Clear defaults before applying sync
         for (int i = 0; i < groups.length(); i++) {
-            JSONObject g = groups.getJSONObject(String.valueOf(i));
-            WeaponGroupSpec spec = new WeaponGroupSpec(WeaponGroupType.valueOf(g.getString("type")));
-            spec.setAutofireOnByDefault(g.getBoolean("autofire"));
-            JSONArray slots = g.getJSONArray("slots");
-            for (int j = 0; j < slots.length(); j++) spec.addSlot(slots.getString(j));
-            variant.addWeaponGroup(spec);
+            variant.addWeaponGroup(unSerializeWeaponGroup(groups.get(i)));
         }
         ship.setCaptain(PersonsSerializer.unSerializePerson(shipObject.getJSONObject("captain")));
         return ship;
@@ -528,6 +535,7 @@ public class FleetSerializer {
             FleetMemberAPI member = unSerializeFleetMember(shipObject);
             member.setId(shipId);
             fleet.getFleetData().addFleetMember(member);
+            EntityIndex.addMember(fleet, member);
             if(shipObject.getBoolean("isFlagShip")){
                 fleet.setCommander(member.getCaptain());
                 fleet.getFleetData().setFlagship(member);
@@ -538,6 +546,7 @@ public class FleetSerializer {
     public static void clearFleetMembers(CampaignFleetAPI fleet) {
         for (FleetMemberAPI ship : fleet.getFleetData().getMembersListWithFightersCopy()) {
             fleet.getFleetData().removeFleetMember(ship);
+            EntityIndex.removeMember(fleet, ship);
         }
     }
 
@@ -547,16 +556,16 @@ public class FleetSerializer {
             String modId = (String) keys.next();
             Object delta = diff.get(modId);
 
-            if (delta instanceof JSONObject instruction && instruction.has("action")) {
-                String action = instruction.getString("action");
+            if (JsonDiffUtility.isInstruction(delta)) {
+                String op = JsonDiffUtility.opOf(delta);
 
-                if ("ADDED".equals(action)) {
+                if (JsonDiffUtility.ADD.equals(op)) {
                     if (isSMod) {
                         variant.addPermaMod(modId, true); // true = counts as S-Mod
                     } else {
                         variant.addMod(modId);
                     }
-                } else if ("REMOVED".equals(action)) {
+                } else if (JsonDiffUtility.REMOVE.equals(op)) {
                     variant.removeMod(modId);
                     variant.removePermaMod(modId);
                 }
@@ -569,12 +578,11 @@ public class FleetSerializer {
         while (keys.hasNext()) {
             String slotId = (String) keys.next();
             Object delta = diff.get(slotId);
-            if (delta instanceof JSONObject instruction) {
-                String action = instruction.getString("action");
-                if ("REMOVED".equals(action)) {
+            if (JsonDiffUtility.isInstruction(delta)) {
+                if (JsonDiffUtility.REMOVE.equals(JsonDiffUtility.opOf(delta))) {
                     variant.clearSlot(slotId);
                 } else {
-                    variant.addWeapon(slotId, instruction.getString("value"));
+                    variant.addWeapon(slotId, (String) JsonDiffUtility.valueOf(delta));
                 }
             }
         }
@@ -586,45 +594,38 @@ public class FleetSerializer {
             String indexStr = (String) keys.next();
             int index = Integer.parseInt(indexStr);
             Object delta = diff.get(indexStr);
-            if (delta instanceof JSONObject instruction) {
-                String action = instruction.getString("action");
-                variant.setWingId(index, "REMOVED".equals(action) ? null : instruction.getString("value"));
+            if (JsonDiffUtility.isInstruction(delta)) {
+                variant.setWingId(index, (String) JsonDiffUtility.valueOf(delta));
             }
         }
     }
 
     /**
-     * Replaces all weapon groups with the full state from the given map.
-     * Expects the same format as serialization: keys "0", "1", "2", ... and each value
-     * is { "type", "autofire", "slots" }. Clears existing groups then applies in index order.
+     * Applies a weaponGroups delta to the variant groups : a splice of the group list (groups inserted, removed
+     * or moved, see JsonDiffUtility.diffArrays) or the whole list when the ship had none before.
      */
-    private static void patchWeaponGroups(ShipVariantAPI variant, JSONObject fullWeaponGroups) throws JSONException {
+    private static void patchWeaponGroups(ShipVariantAPI variant, Object delta) throws JSONException {
+        if (!JsonDiffUtility.isInstruction(delta)) return;
         List<WeaponGroupSpec> currentGroups = variant.getWeaponGroups();
-        currentGroups.clear();
-
-        List<Integer> indices = new ArrayList<>();
-        Iterator<?> keyIt = fullWeaponGroups.keys();
-        while (keyIt.hasNext()) {
-            String indexStr = (String) keyIt.next();
-            indices.add(Integer.parseInt(indexStr));
+        if (JsonDiffUtility.SPLICE.equals(JsonDiffUtility.opOf(delta))) {
+            JsonDiffUtility.applySplices(currentGroups, (JSONArray) delta, FleetSerializer::unSerializeWeaponGroup);
+        } else if (JsonDiffUtility.valueOf(delta) instanceof JSONArray fullWeaponGroups) {
+            currentGroups.clear();
+            for (int i = 0; i < fullWeaponGroups.length(); i++) {
+                variant.addWeaponGroup(unSerializeWeaponGroup(fullWeaponGroups.get(i)));
+            }
         }
-        Collections.sort(indices);
+    }
 
-        for (int index : indices) {
-            String indexStr = String.valueOf(index);
-            Object raw = fullWeaponGroups.opt(indexStr);
-            if (!(raw instanceof JSONObject groupData) || !groupData.has("type") || !groupData.has("slots")) {
-                continue;
-            }
-            WeaponGroupSpec spec = new WeaponGroupSpec();
-            spec.setType(WeaponGroupType.valueOf(groupData.getString("type")));
-            spec.setAutofireOnByDefault(groupData.optBoolean("autofire", false));
-            JSONArray slots = groupData.getJSONArray("slots");
-            for (int i = 0; i < slots.length(); i++) {
-                spec.addSlot(slots.getString(i));
-            }
-            variant.addWeaponGroup(spec);
+    private static WeaponGroupSpec unSerializeWeaponGroup(Object serializedGroup) throws JSONException {
+        JSONObject groupData = (JSONObject) serializedGroup;
+        WeaponGroupSpec spec = new WeaponGroupSpec(WeaponGroupType.valueOf(groupData.getString("type")));
+        spec.setAutofireOnByDefault(groupData.optBoolean("autofire", false));
+        JSONArray slots = groupData.getJSONArray("slots");
+        for (int i = 0; i < slots.length(); i++) {
+            spec.addSlot(slots.getString(i));
         }
+        return spec;
     }
 
     private static JSONObject serializeAssignment(FleetAssignmentDataAPI assignment) throws JSONException{
@@ -1,16 +1,41 @@
 package matlabmaster.multiplayer.utils;
 
 import matlabmaster.multiplayer.MultiplayerLog;
+import matlabmaster.multiplayer.metrics.SyncMetrics;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
+/**
+ * Diffs of serialized states. A diff mirrors the objects it describes, a changed key holds either the nested diff
+ * of its value or an instruction, a json array starting with an op code :
+ * <pre>
+ * ["s", value]                               set an existing key
+ * ["a", value]                               add a key
+ * ["r"]                                      remove a key
+ * ["x", start, deleteCount, [items], ...]    splice an array, the (start, deleteCount, items) triples apply in order
+ * </pre>
+ * A splice triple holding an index in place of the items is a move, (from, count, to) takes the count items at from
+ * out and inserts them back at to.
+ * Only what the receiver needs is sent, the previous values stay on the sender.
+ */
 public class JsonDiffUtility {
+    public static final String SET = "s";
+    public static final String ADD = "a";
+    public static final String REMOVE = "r";
+    public static final String SPLICE = "x";
+    /** longer unmatched middles of two arrays are replaced in one splice */
+    private static final int MAX_LCS_CELLS = 4096;
 
     public static JSONObject getDifferences(JSONObject oldState, JSONObject newState) {
+        long start = SyncMetrics.start();
         JSONObject diffs = new JSONObject();
         compareObjects(oldState, newState, diffs);
+        SyncMetrics.stop("getDifferences", start);
         return diffs;
     }
 
@@ -24,7 +49,7 @@ public class JsonDiffUtility {
             Object v1 = obj1.opt(key);
 
             if (!obj2.has(key)) {
-                safePut(diffs, key, createInstruction("REMOVED", null, v1));
+                safePut(diffs, key, createInstruction(REMOVE, null));
             } else {
                 Object v2 = obj2.opt(key);
                 handleValueComparison(v1, v2, key, diffs);
@@ -36,12 +61,14 @@ public class JsonDiffUtility {
         while (keys2.hasNext()) {
             String key = (String) keys2.next();
             if (!obj1.has(key)) {
-                safePut(diffs, key, createInstruction("ADDED", obj2.opt(key), null));
+                safePut(diffs, key, createInstruction(ADD, obj2.opt(key)));
             }
         }
     }
 
     private static void handleValueComparison(Object v1, Object v2, String key, JSONObject diffs) {
+        // same instance on both sides, nothing to walk
+        if (v1 == v2) return;
         v1 = (v1 == JSONObject.NULL) ? null : v1;
         v2 = (v2 == JSONObject.NULL) ? null : v2;
 
@@ -54,42 +81,339 @@ public class JsonDiffUtility {
                 safePut(diffs, key, subDiff);
             }
         } else if (v1 instanceof JSONArray a1 && v2 instanceof JSONArray a2) {
-            JSONObject arrayDiffs = new JSONObject();
-            compareArrays(a1, a2, arrayDiffs);
-            if (arrayDiffs.length() > 0) {
-                safePut(diffs, key, arrayDiffs);
+            JSONArray splice = diffArrays(a1, a2);
+            if (splice != null) {
+                safePut(diffs, key, splice);
             }
         } else if (v1 == null || !v1.equals(v2)) {
-            safePut(diffs, key, createInstruction("UPDATE", v2, v1));
+            safePut(diffs, key, createInstruction(SET, v2));
         }
     }
 
-    private static void compareArrays(JSONArray arr1, JSONArray arr2, JSONObject arrayDiffs) {
-        int max = Math.max(arr1.length(), arr2.length());
-        for (int i = 0; i < max; i++) {
-            Object v1 = arr1.opt(i);
-            Object v2 = arr2.opt(i);
-            String indexKey = "[" + i + "]";
+    /**
+     * Splice turning arr1 into arr2. The items kept in order are found by longest common subsequence, the others
+     * are removed, moved or inserted, so one insertion doesn't shift the whole tail into the diff.
+     * @return null when they're equal
+     */
+    public static JSONArray diffArrays(JSONArray arr1, JSONArray arr2) {
+        int head = 0;
+        int max = Math.min(arr1.length(), arr2.length());
+        while (head < max && sameValue(arr1.opt(head), arr2.opt(head))) head++;
+        if (head == arr1.length() && head == arr2.length()) return null;
+
+        int tail = 0;
+        while (tail < max - head && sameValue(arr1.opt(arr1.length() - 1 - tail), arr2.opt(arr2.length() - 1 - tail))) tail++;
+
+        int oldCount = arr1.length() - tail - head;
+        int newCount = arr2.length() - tail - head;
+        if (oldCount == 0 || newCount == 0 || oldCount * newCount > MAX_LCS_CELLS) {
+            // pure insertion or removal, or too long to match, one splice over the middle
+            JSONArray items = new JSONArray();
+            for (int i = head; i < arr2.length() - tail; i++) {
+                items.put(arr2.opt(i));
+            }
+            return createSplice(head, oldCount, items);
+        }
+        return diffMiddle(arr1, arr2, head, oldCount, newCount);
+    }
+
+    private static JSONArray diffMiddle(JSONArray arr1, JSONArray arr2, int head, int oldCount, int newCount) {
+        boolean[][] same = new boolean[oldCount][newCount];
+        int[][] lcs = new int[oldCount + 1][newCount + 1];
+        for (int i = oldCount - 1; i >= 0; i--) {
+            for (int j = newCount - 1; j >= 0; j--) {
+                same[i][j] = sameValue(arr1.opt(head + i), arr2.opt(head + j));
+                lcs[i][j] = same[i][j] ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+
+        // sourceOf[j] : the old item that ends at j, -1 for an insertion
+        int[] sourceOf = new int[newCount];
+        Arrays.fill(sourceOf, -1);
+        boolean[] used = new boolean[oldCount];
+        for (int i = 0, j = 0; i < oldCount && j < newCount; ) {
+            if (same[i][j]) {
+                sourceOf[j++] = i;
+                used[i++] = true;
+            } else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        boolean[] moved = new boolean[oldCount];
+        for (int j = 0; j < newCount; j++) {
+            if (sourceOf[j] >= 0) continue;
+            for (int i = 0; i < oldCount; i++) {
+                if (!used[i] && same[i][j]) {
+                    sourceOf[j] = i;
+                    used[i] = true;
+                    moved[i] = true;
+                    break;
+                }
+            }
+        }
+
+        JSONArray splice = new JSONArray();
+        splice.put(SPLICE);
+        List<Integer> current = new ArrayList<>(oldCount);
+        for (int i = 0; i < oldCount; i++) current.add(i);
+
+        // 1. moves, in target order each moved item goes right after the item preceding it in arr2
+        for (int j = 0; j < newCount; j++) {
+            int source = sourceOf[j];
+            if (source < 0 || !moved[source]) continue;
+            int from = current.indexOf(source);
+            current.remove(from);
+            int to = 0;
+            for (int p = j - 1; p >= 0; p--) {
+                if (sourceOf[p] >= 0) {
+                    to = current.indexOf(sourceOf[p]) + 1;
+                    break;
+                }
+            }
+            current.add(to, source);
+            if (to != from) {
+                splice.put(head + from);
+                splice.put(1);
+                splice.put(head + to);
+            }
+        }
+
+        // 2. the kept and moved items are now in order, replace the runs of dropped items by the runs of new ones
+        int c = 0;
+        int out = 0;
+        int j = 0;
+        while (c < current.size() || j < newCount) {
+            if (c < current.size() && j < newCount && current.get(c) == sourceOf[j]) {
+                c++;
+                out++;
+                j++;
+                continue;
+            }
+            int deleteCount = 0;
+            while (c + deleteCount < current.size() && !used[current.get(c + deleteCount)]) deleteCount++;
+            JSONArray items = new JSONArray();
+            while (j < newCount && sourceOf[j] < 0) items.put(arr2.opt(head + j++));
+            splice.put(head + out);
+            splice.put(deleteCount);
+            splice.put(items);
+            c += deleteCount;
+            out += items.length();
+        }
+        return splice;
+    }
+
+    /**
+     * Deep equality, json objects and arrays only compare by identity on their own
+     */
+    private static boolean sameValue(Object v1, Object v2) {
+        if (v1 == v2) return true;
+        if (v1 instanceof JSONObject o1 && v2 instanceof JSONObject o2) {
+            JSONObject subDiff = new JSONObject();
+            compareObjects(o1, o2, subDiff);
+            return subDiff.length() == 0;
+        }
+        if (v1 instanceof JSONArray a1 && v2 instanceof JSONArray a2) {
+            return diffArrays(a1, a2) == null;
+        }
+        return v1 != null && v1.equals(v2);
+    }
+
+    /**
+     * Combines two consecutive diffs into one that has the same effect as applying older then newer.
+     * Used to collapse queued updates of a fleet, the inputs must not be shared since older is modified in place.
+     */
+    public static JSONObject mergeDifferences(JSONObject older, JSONObject newer) throws JSONException {
+        Iterator<?> keys = newer.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object v1 = older.opt(key);
+            Object v2 = newer.get(key);
+
+            if (v1 == null) {
+                older.put(key, v2);
+            } else if (isInstruction(v2)) {
+                String op = opOf(v2);
+                boolean wasAdded = isInstruction(v1) && ADD.equals(opOf(v1));
+                if (wasAdded && REMOVE.equals(op)) {
+                    older.remove(key); // added then removed, nothing left to tell
+                } else if (wasAdded && SET.equals(op)) {
+                    older.put(key, createInstruction(ADD, valueOf(v2)));
+                } else if (SPLICE.equals(op) && isInstruction(v1) && SPLICE.equals(opOf(v1))) {
+                    // the triples apply in order, the newer ones simply follow
+                    JSONArray splices = (JSONArray) v1;
+                    JSONArray newerSplices = (JSONArray) v2;
+                    for (int i = 1; i < newerSplices.length(); i++) splices.put(newerSplices.get(i));
+                } else if (SPLICE.equals(op) && isInstruction(v1) && valueOf(v1) instanceof JSONArray array) {
+                    older.put(key, createInstruction(opOf(v1), applySplices(array, (JSONArray) v2)));
+                } else {
+                    older.put(key, v2);
+                }
+            } else if (!(v2 instanceof JSONObject newDelta)) {
+                older.put(key, v2);
+            } else if (isInstruction(v1)) {
+                // nested changes on top of a whole value, patch the value itself
+                if (valueOf(v1) instanceof JSONObject valueObject) {
+                    applyDifferences(valueObject, newDelta);
+                } else {
+                    older.put(key, newDelta);
+                }
+            } else if (v1 instanceof JSONObject o1) {
+                mergeDifferences(o1, newDelta);
+            } else {
+                older.put(key, v2);
+            }
+        }
+        return older;
+    }
+
+    /**
+     * Deep copy of a diff or a state, for the callers of {@link #mergeDifferences} that must keep the original intact
+     * if the merge fails halfway
+     */
+    public static JSONObject copy(JSONObject object) throws JSONException {
+        JSONObject copy = new JSONObject();
+        Iterator<?> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            copy.put(key, copyValue(object.get(key)));
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) throws JSONException {
+        if (value instanceof JSONObject object) return copy(object);
+        if (value instanceof JSONArray array) {
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) copy.put(copyValue(array.get(i)));
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Applies a diff produced by {@link #getDifferences} to a serialized state, in place.
+     */
+    public static void applyDifferences(JSONObject state, JSONObject diff) throws JSONException {
+        Iterator<?> keys = diff.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object delta = diff.get(key);
 
-            // Use opt to safely check existence vs null
-            if (v1 != null && (v2 == null && i >= arr2.length())) {
-                safePut(arrayDiffs, indexKey, createInstruction("REMOVED", null, v1));
+            if (isInstruction(delta)) {
+                String op = opOf(delta);
+                if (REMOVE.equals(op)) {
+                    state.remove(key);
+                } else if (SPLICE.equals(op)) {
+                    JSONArray current = state.optJSONArray(key);
+                    state.put(key, applySplices(current == null ? new JSONArray() : current, (JSONArray) delta));
+                } else {
+                    state.put(key, valueOf(delta));
+                }
+            } else if (delta instanceof JSONObject nested) {
+                Object current = state.opt(key);
+                if (current instanceof JSONObject currentObject) {
+                    applyDifferences(currentObject, nested);
+                } else {
+                    JSONObject created = new JSONObject();
+                    applyDifferences(created, nested);
+                    state.put(key, created);
+                }
             } else {
-                handleValueComparison(v1, v2, indexKey, arrayDiffs);
+                state.put(key, delta);
             }
         }
     }
 
-    private static JSONObject createInstruction(String action, Object newValue, Object oldValue) {
-        JSONObject instruction = new JSONObject();
-        // Since we are creating a fresh object here, safePut ensures no crashes
-        // if keys are null or values are unsupported.
-        safePut(instruction, "action", action);
-        safePut(instruction, "value", newValue == null ? JSONObject.NULL : newValue);
-        safePut(instruction, "oldValue", oldValue == null ? JSONObject.NULL : oldValue);
+    /**
+     * Turns an inserted json item into a list element, see {@link #applySplices(List, JSONArray, ItemReader)}
+     */
+    public interface ItemReader<T> {
+        T read(Object item) throws JSONException;
+    }
+
+    /**
+     * @return a new array, the splice instruction applied to array
+     */
+    public static JSONArray applySplices(JSONArray array, JSONArray splice) throws JSONException {
+        List<Object> items = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            items.add(array.get(i));
+        }
+        applySplices(items, splice, item -> item);
+        JSONArray result = new JSONArray();
+        for (Object item : items) {
+            result.put(item);
+        }
+        return result;
+    }
+
+    /**
+     * Applies a splice instruction to a list in place, lets the game lists (weapon groups) be patched directly
+     */
+    public static <T> void applySplices(List<T> list, JSONArray splice, ItemReader<T> reader) throws JSONException {
+        for (int i = 1; i + 2 < splice.length(); i += 3) {
+            int start = Math.min(splice.getInt(i), list.size());
+            int end = Math.min(start + splice.getInt(i + 1), list.size());
+            Object third = splice.get(i + 2);
+            if (third instanceof JSONArray inserted) {
+                list.subList(start, end).clear();
+                for (int j = 0; j < inserted.length(); j++) {
+                    list.add(start + j, reader.read(inserted.get(j)));
+                }
+            } else {
+                List<T> moved = new ArrayList<>(list.subList(start, end));
+                list.subList(start, end).clear();
+                list.addAll(Math.min(((Number) third).intValue(), list.size()), moved);
+            }
+        }
+    }
+
+    /**
+     * @return true if delta is an instruction rather than the nested diff of an object
+     */
+    public static boolean isInstruction(Object delta) {
+        return delta instanceof JSONArray;
+    }
+
+    /**
+     * @return the op code of an instruction
+     */
+    public static String opOf(Object instruction) {
+        return ((JSONArray) instruction).optString(0);
+    }
+
+    /**
+     * @return the value carried by a set or add instruction, null for the others
+     */
+    public static Object valueOf(Object instruction) {
+        Object value = ((JSONArray) instruction).opt(1);
+        return value == JSONObject.NULL ? null : value;
+    }
+
+    /**
+     * One diff instruction, {@link #SET}, {@link #ADD} or {@link #REMOVE} (value ignored). Also used by the typed FleetStateDiffer.
+     */
+    public static JSONArray createInstruction(String op, Object value) {
+        JSONArray instruction = new JSONArray();
+        instruction.put(op);
+        if (!REMOVE.equals(op)) instruction.put(value == null ? JSONObject.NULL : value);
         return instruction;
     }
 
+    /**
+     * Splice instruction replacing deleteCount items at start with items
+     */
+    public static JSONArray createSplice(int start, int deleteCount, JSONArray items) {
+        JSONArray splice = new JSONArray();
+        splice.put(SPLICE);
+        splice.put(start);
+        splice.put(deleteCount);
+        splice.put(items);
+        return splice;
+    }
+
     /**
      * Internal helper to handle the checked JSONException from .put()
      * This is vital for restrictive sandboxes where you can't allow crashes.
@@ -25,7 +25,7 @@ public class PauseUtility {
                     Global.getSector().getPlayerFleet().setName(fleetName);
                     fleetSync.sendOwnFleetUpdate(client);//send the updated name
 
-                    client.send(String.valueOf(packet));
+                    client.send(packet);
                 }
             }else{
                 if(client.wasPaused){
@@ -46,7 +46,7 @@ public class PauseUtility {
 
 
 
-                    client.send(packet.toString());
+                    client.send(packet);
                 }
             }
         }catch (JSONException e){
@@ -130,27 +130,27 @@ public class PersonsSerializer {
     public static void patchPerson(PersonAPI person, JSONObject diff) throws JSONException {
         // 1. Handle Simple Properties
         if (diff.has("firstName") || diff.has("lastName") || diff.has("gender")) {
-            String first = diff.has("firstName") ? diff.getJSONObject("firstName").getString("value") : person.getName().getFirst();
-            String last = diff.has("lastName") ? diff.getJSONObject("lastName").getString("value") : person.getName().getLast();
+            String first = diff.has("firstName") ? (String) JsonDiffUtility.valueOf(diff.get("firstName")) : person.getName().getFirst();
+            String last = diff.has("lastName") ? (String) JsonDiffUtility.valueOf(diff.get("lastName")) : person.getName().getLast();
             FullName.Gender gender = diff.has("gender") ?
-                    FullName.Gender.valueOf(diff.getJSONObject("gender").getString("value")) : person.getName().getGender();
+                    FullName.Gender.valueOf((String) JsonDiffUtility.valueOf(diff.get("gender"))) : person.getName().getGender();
             person.setName(new FullName(first, last, gender));
         }
 
         if (diff.has("personalityId")) {
-            person.setPersonality(diff.getJSONObject("personalityId").getString("value"));
+            person.setPersonality((String) JsonDiffUtility.valueOf(diff.get("personalityId")));
         }
         if (diff.has("rank")) {
-            person.setRankId(diff.getJSONObject("rank").getString("value"));
+            person.setRankId((String) JsonDiffUtility.valueOf(diff.get("rank")));
         }
         if (diff.has("post")) {
-            person.setPostId(diff.getJSONObject("post").getString("value"));
+            person.setPostId((String) JsonDiffUtility.valueOf(diff.get("post")));
         }
         if (diff.has("sprite")) {
-            person.setPortraitSprite(diff.getJSONObject("sprite").getString("value"));
+            person.setPortraitSprite((String) JsonDiffUtility.valueOf(diff.get("sprite")));
         }
         if (diff.has("level")) {
-            person.getStats().setLevel(diff.getJSONObject("level").getInt("value"));
+            person.getStats().setLevel(((Number) JsonDiffUtility.valueOf(diff.get("level"))).intValue());
         }
 
         // 2. Handle Skills (Nested JSON Object)
@@ -162,13 +162,12 @@ public class PersonsSerializer {
                 String skillId = (String) skillIds.next();
                 Object delta = skillsDiff.get(skillId);
 
-                if (delta instanceof JSONObject obj && obj.has("action")) {
-                    String action = obj.getString("action");
-                    if ("REMOVED".equals(action)) {
+                if (JsonDiffUtility.isInstruction(delta)) {
+                    if (JsonDiffUtility.REMOVE.equals(JsonDiffUtility.opOf(delta))) {
                         person.getStats().setSkillLevel(skillId, 0);
                     } else {
-                        // ADDED or UPDATE
-                        float level = ((Number) obj.get("value")).floatValue();
+                        // add or set
+                        float level = ((Number) JsonDiffUtility.valueOf(delta)).floatValue();
                         person.getStats().setSkillLevel(skillId, level);
                     }
                 }
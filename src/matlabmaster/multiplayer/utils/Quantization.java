@@ -0,0 +1,81 @@
+package matlabmaster.multiplayer.utils;
+
+/**
+ * Fixed point encoding of the continuous fleet values. The json carries small integers instead of decimal text, and the
+ * typed states hold the same integers so the diffs compare quantized values and float noise never makes an update.
+ * Positions are coordinates of the containing location (star system or hyperspace), in steps of 1 / positionSteps unit.
+ * Combat readiness is in steps of 1 / crSteps, a percentage by default.
+ * Both ends must use the same resolution : the server announces its own in helloAck and the clients adopt it until they
+ * disconnect, nothing quantized is sent before that. Our own resolution (settings or dedicated server arguments) is the
+ * one announced by our server and used while not connected.
+ */
+public final class Quantization {
+    public static final String POSITION_STEPS_SETTING = "multiplayer_positionSteps";
+    public static final String CR_STEPS_SETTING = "multiplayer_crSteps";
+    public static final int DEFAULT_POSITION_STEPS = 8;
+    public static final int DEFAULT_CR_STEPS = 100;
+
+    private static volatile int hostPositionSteps = DEFAULT_POSITION_STEPS;
+    private static volatile int hostCrSteps = DEFAULT_CR_STEPS;
+    private static volatile int positionSteps = DEFAULT_POSITION_STEPS;
+    private static volatile int crSteps = DEFAULT_CR_STEPS;
+
+    private Quantization() {}
+
+    /**
+     * Sets our own resolution and goes back to it, values below 1 keep the current one
+     */
+    public static void setHostResolution(int positionSteps, int crSteps) {
+        if (positionSteps >= 1) hostPositionSteps = positionSteps;
+        if (crSteps >= 1) hostCrSteps = crSteps;
+        reset();
+    }
+
+    /**
+     * Applies the resolution announced by the server, values below 1 keep the current one
+     */
+    public static void configure(int positionSteps, int crSteps) {
+        if (positionSteps >= 1) Quantization.positionSteps = positionSteps;
+        if (crSteps >= 1) Quantization.crSteps = crSteps;
+    }
+
+    /**
+     * Back to our own resolution, called on disconnect
+     */
+    public static void reset() {
+        positionSteps = hostPositionSteps;
+        crSteps = hostCrSteps;
+    }
+
+    public static int getHostPositionSteps() {
+        return hostPositionSteps;
+    }
+
+    public static int getHostCrSteps() {
+        return hostCrSteps;
+    }
+
+    public static int getPositionSteps() {
+        return positionSteps;
+    }
+
+    public static int getCrSteps() {
+        return crSteps;
+    }
+
+    public static int position(double value) {
+        return (int) Math.round(value * positionSteps);
+    }
+
+    public static float decodePosition(Number steps) {
+        return (float) (steps.doubleValue() / positionSteps);
+    }
+
+    public static int cr(double value) {
+        return (int) Math.round(value * crSteps);
+    }
+
+    public static float decodeCr(Number steps) {
+        return (float) (steps.doubleValue() / crSteps);
+    }
+}
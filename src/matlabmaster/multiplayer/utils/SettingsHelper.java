@@ -0,0 +1,25 @@
+package matlabmaster.multiplayer.utils;
+
+import com.fs.starfarer.api.Global;
+
+/**
+ * Reads the mod settings from data/config/settings.json, which the game merges into {@link Global#getSettings()}.
+ * Falls back to the given default when the key is missing so an outdated settings file never breaks the sync.
+ */
+public class SettingsHelper {
+    public static float getFloat(String key, float defaultValue) {
+        try {
+            return Global.getSettings().getFloat(key);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        try {
+            return Global.getSettings().getBoolean(key);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}